@@ -0,0 +1,51 @@
+package info.ladislav.jlox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Error reporter that collects errors instead of printing them, so work done
+ * out of order (e.g. on several threads) can report them in order afterwards.
+ */
+public class Diagnostics implements ErrorReporter {
+
+    public static final class Diagnostic {
+        public final int line;
+        public final String where;
+        public final String message;
+
+        Diagnostic(int line, String where, String message) {
+            this.line = line;
+            this.where = where;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return "[line " + line + "] Error" + where + ": " + message;
+        }
+    }
+
+    private final List<Diagnostic> diagnostics = new ArrayList<>();
+
+    @Override
+    public void report(int line, String where, String message) {
+        diagnostics.add(new Diagnostic(line, where, message));
+    }
+
+    public boolean hasErrors() {
+        return !diagnostics.isEmpty();
+    }
+
+    public List<Diagnostic> all() {
+        return Collections.unmodifiableList(diagnostics);
+    }
+
+    /** Passes the collected errors on, in the order they were reported. */
+    public void replay(ErrorReporter reporter) {
+        for (Diagnostic diagnostic : diagnostics) {
+            reporter.report(diagnostic.line, diagnostic.where, diagnostic.message);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package info.ladislav.jlox;
+
+import info.ladislav.jlox.lexer.Token;
+import info.ladislav.jlox.lexer.TokenType;
+
+/**
+ * Receives compile time errors from the scanner, parser and resolver.
+ */
+public interface ErrorReporter {
+
+    /** Reports an error, where describes the location, e.g. " at 'foo'". */
+    void report(int line, String where, String message);
+
+    default void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    default void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.lexeme + "'", message);
+        }
+    }
+}
@@ -3,10 +3,16 @@ package info.ladislav.jlox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Function;
 
 import info.ladislav.jlox.lexer.*;
 import info.ladislav.jlox.parser.*;
@@ -18,12 +24,72 @@ public class JLox
 {
     private static final Interpreter interpreter = new Interpreter();
 
+    /**
+     * Scripts up to this size are read into a byte array and scanned by the
+     * byte-level fast path, larger ones only when they are scanned on all
+     * cores, as the tokens take more memory than the bytes anyway. Others are
+     * mapped and scanned without a copy.
+     */
+    private static final long MAP_THRESHOLD = 16 * 1024 * 1024;
+
+    /** Scripts from this size on are scanned and parsed on all cores. */
+    private static final long PARALLEL_THRESHOLD = 2 * 1024 * 1024;
+
+    /** The largest script a byte array holds. */
+    private static final long MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+    /** Prints compile time errors to stderr and remembers that there were some. */
+    public static final ErrorReporter reporter = JLox::report;
+
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
+    /** Set by --pipeline: scan, parse and execute a script at the same time, see {@link Pipeline}. */
+    private static boolean pipelined = false;
+
+    /** Set by --lazy, or --lazy --validate: parse function bodies on their first call. */
+    private static Parser.FunctionBodies functionBodies = Parser.FunctionBodies.EAGER;
+
+    /** Set by --arena: keep the program in an {@link AstArena} instead of as objects. */
+    private static boolean arena = false;
+
+    /** Set by --cache or --cache=dir: reuse the resolved tree of a script that did not change. */
+    private static AstCache cache = null;
+
+    /** Set by --profile or --profile=dir: start from what earlier runs of a script observed. */
+    private static Profile profile = null;
+
     public static void main( String[] args ) throws IOException
     {
+        int options = 0;
+        boolean validate = false;
+        for (; options < args.length && args[options].startsWith("--"); options++) {
+            switch (args[options]) {
+                case "--pipeline": pipelined = true; break;
+                case "--lazy": functionBodies = Parser.FunctionBodies.LAZY; break;
+                case "--validate": validate = true; break;
+                case "--arena": arena = true; break;
+                case "--cache": cache = new AstCache(Paths.get(System.getProperty("user.home"), ".cache", "jlox")); break;
+                case "--profile": profile = new Profile(Paths.get(System.getProperty("user.home"), ".cache", "jlox")); break;
+                default:
+                    if (args[options].startsWith("--cache=")) {
+                        cache = new AstCache(Paths.get(args[options].substring("--cache=".length())));
+                        break;
+                    }
+                    if (args[options].startsWith("--profile=")) {
+                        profile = new Profile(Paths.get(args[options].substring("--profile=".length())));
+                        break;
+                    }
+                    System.out.println("Unknown option " + args[options]);
+                    System.exit(64);
+            }
+        }
+        if (validate && functionBodies == Parser.FunctionBodies.LAZY) {
+            functionBodies = Parser.FunctionBodies.VALIDATED;
+        }
+        args = Arrays.copyOfRange(args, options, args.length);
+
         if(args.length > 1){
-            System.out.println("Usage: jlox [script]");
+            System.out.println("Usage: jlox [--pipeline] [--lazy [--validate]] [--cache[=dir]] [--profile[=dir]] [--arena] [script]");
             System.exit(64);
         }else if( args.length == 1){
             runFile(args[0]);
@@ -33,14 +99,89 @@ public class JLox
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));        
-        run(new String(bytes, Charset.defaultCharset()));
+        Path file = Paths.get(path);
+        Charset charset = Charset.defaultCharset();
+
+        long size = Files.size(file);
+        boolean parallel = size >= PARALLEL_THRESHOLD && Runtime.getRuntime().availableProcessors() > 1;
+
+        if ((size <= MAP_THRESHOLD || parallel) && size <= MAX_ARRAY && ByteScanner.supports(charset)) {
+          byte[] source = Files.readAllBytes(file);
+          List<Stmt> cached = cache != null ? cache.load(source, charset, interpreter) : null;
+          if (cached != null) {
+            runProfiled(source, charset, cached);
+          } else if (pipelined) {
+            runPipelined(reporter -> new ByteScanner(source, charset, reporter));
+          } else if (arena) {
+            runArena(new ByteScanner(source, charset));
+          } else {
+            List<Stmt> statements;
+            if (parallel) {
+              TokenStream tokens = new ParallelScanner(source, charset).scanTokenStream();
+              ParallelParser parser = new ParallelParser(tokens);
+              parser.setFunctionBodies(functionBodies);
+              statements = parser.parse();
+            } else {
+              ByteScanner scanner = new ByteScanner(source, charset);
+              if (functionBodies == Parser.FunctionBodies.EAGER) {
+                statements = parse(scanner);
+              } else {
+                statements = parse(scanner.scanTokenStream());
+              }
+            }
+
+            List<Stmt> program = compile(statements);
+            if (program != null) {
+              // Lazy bodies would have to be parsed to be stored, which is what they avoid.
+              if (cache != null && functionBodies == Parser.FunctionBodies.EAGER) {
+                cache.store(source, charset, program, interpreter);
+              }
+              runProfiled(source, charset, program);
+            }
+          }
+        } else {
+          runMapped(file, charset);
+        }
 
         //indicate error in exit code
         if (hadError) System.exit(65);        
         if (hadRuntimeError) System.exit(70);
       }         
 
+      /** Runs a compiled script, starting from and adding to its profile with --profile. */
+      private static void runProfiled(byte[] source, Charset charset, List<Stmt> program) {
+        if (profile == null) {
+          interpreter.interpret(program);
+          return;
+        }
+
+        profile.load(source, charset, program, interpreter);
+        interpreter.interpret(program);
+        profile.store(source, charset, program);
+      }
+
+      private static void runMapped(Path file, Charset charset) throws IOException {
+        // Scan straight out of the page cache instead of copying the source onto the heap.
+        try (FileChannel channel = FileChannel.open(file)) {
+          if (channel.size() <= Integer.MAX_VALUE) {
+            MappedByteBuffer source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (pipelined) {
+              runPipelined(reporter -> new Scanner(source, charset, reporter));
+            } else if (arena) {
+              runArena(new Scanner(source, charset));
+            } else {
+              runProgram(parse(new Scanner(source, charset)));
+            }
+          } else if (pipelined) {
+            runPipelined(reporter -> new Scanner(channel, charset, reporter));
+          } else if (arena) {
+            runArena(new Scanner(channel, charset));
+          } else {
+            runProgram(parse(new Scanner(channel, charset)));
+          }
+        }
+      }
+
       private static void runPrompt() throws IOException {
         //TODO implement possibility to execute expressions with REPL
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
@@ -53,23 +194,76 @@ public class JLox
       }                
       
       private static void run(String source) {    
-        // For now, just print the tokens.
-        List<Token> tokens =  new Scanner(source).scanTokens();
+        run(new Scanner(source));
+      }
+
+      private static void run(Iterator<Token> tokens) {
+        run(parse(tokens));
+      }
+
+      private static List<Stmt> parse(Iterator<Token> tokens) {
         Parser parser = new Parser(tokens);               
-        List<Stmt> statements = parser.parse();
+        parser.setFunctionBodies(functionBodies);
+        return parser.parse();
+      }
+
+      private static List<Stmt> parse(TokenStream tokens) {
+        // Random access lets lazy function bodies be kept as token ranges.
+        Parser parser = new Parser(tokens);
+        parser.setFunctionBodies(functionBodies);
+        return parser.parse();
+      }
+
+      private static void run(List<Stmt> statements) {
+        if (resolve(statements) != null) {
+          interpreter.interpret(statements);
+        }
+      }
+
+      /** Runs a whole script, which can be optimized as nothing read later can change its globals. */
+      private static void runProgram(List<Stmt> statements) {
+        List<Stmt> program = compile(statements);
+        if (program != null) {
+          interpreter.interpret(program);
+        }
+      }
+
+      /** Resolves and optimizes a whole script, null if it had syntax or resolution errors. */
+      private static List<Stmt> compile(List<Stmt> statements) {
+        Resolver resolver = resolve(statements);
+        return resolver == null ? null : new Optimizer(interpreter, resolver).optimize(statements);
+      }
 
+      /** Resolves parsed statements, null if they had syntax or resolution errors. */
+      private static Resolver resolve(List<Stmt> statements) {
         // Stop if there was a syntax error.                   
-        if (hadError) return;              
+        if (hadError) return null;              
 
         Resolver resolver = new Resolver(interpreter);
         resolver.resolve(statements);
         
         // Stop if there was a resolution error.     
-        if(hadError) return;
-
-        interpreter.interpret(statements);
+        return hadError ? null : resolver;
       }              
       
+      private static void runArena(Iterator<Token> tokens) {
+        AstArena program = new AstArena();
+        int[] roots = program.addAll(new Parser(tokens), reporter);
+        if (hadError) return;
+
+        // Each top level statement is an object only while it runs.
+        for (int root : roots) {
+          if (!interpreter.interpret(program.statement(root, interpreter))) break;
+        }
+        interpreter.cancelTasks();
+      }
+
+      private static void runPipelined(Function<ErrorReporter, Iterator<Token>> scanner) {
+        Pipeline pipeline = new Pipeline(scanner);
+        pipeline.setFunctionBodies(functionBodies);
+        pipeline.run(interpreter, reporter);
+      }
+
       public static void error(int line, String message) {                       
         report(line, "", message);                                        
       }
@@ -89,7 +283,8 @@ public class JLox
       }
 
       public static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
+        // Only an interrupted loop outside of any call has no line.
+        System.err.println(error.token == null ? error.getMessage() : error.getMessage() +
             "\n[line " + error.token.line + "]");
         hadRuntimeError = true;
       }
@@ -0,0 +1,168 @@
+package info.ladislav.jlox;
+
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import info.ladislav.jlox.lexer.Scanner;
+import info.ladislav.jlox.parser.CacheEntries;
+import info.ladislav.jlox.parser.Interpreter;
+import info.ladislav.jlox.parser.Optimizer;
+import info.ladislav.jlox.parser.Parser;
+import info.ladislav.jlox.parser.Resolver;
+import info.ladislav.jlox.parser.RuntimeError;
+import info.ladislav.jlox.parser.Stmt;
+
+/**
+ * Runs Lox from a host program without going through {@link JLox}'s static
+ * state:
+ *
+ * <pre>
+ * LoxEngine engine = new LoxEngine();
+ * LoxEngine.Script script = engine.compile("print greeting + \" world\";");
+ * LoxEngine.Result result = script.eval(Map.of("greeting", "hello"), System.out::println);
+ * </pre>
+ *
+ * A script is compiled once, its errors collected in its own {@link Diagnostics},
+ * and can then be evaluated any number of times, from any number of threads at
+ * once. Every evaluation gets a new interpreter, so its own globals, and prints
+ * to the output it is given; nothing of one evaluation is seen by another.
+ *
+ * What compiling produces is shared by all evaluations and never changed by
+ * them: the tree, the depths the resolver recorded in it and the declarations
+ * classes and functions are created from. Only the numeric form of a function
+ * is added on its first call, and computing it twice gives the same result. Scripts are kept by the
+ * SHA-256 of their source, so compiling the same source again, e.g. for
+ * another tenant, returns the script compiled before; the least recently used
+ * ones are dropped beyond the engine's capacity.
+ */
+public class LoxEngine {
+
+    /** Compiled scripts an engine keeps by default. */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final Map<ByteBuffer, Script> scripts;
+
+    public LoxEngine() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** An engine that keeps up to capacity compiled scripts, none for 0. */
+    public LoxEngine(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("Negative capacity " + capacity);
+        scripts = new LinkedHashMap<ByteBuffer, Script>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Script> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** A compiled script, resolved and optimized as a whole program. */
+    public static final class Script {
+        private final List<Stmt> program;
+        private final Diagnostics diagnostics;
+
+        private Script(List<Stmt> program, Diagnostics diagnostics) {
+            this.program = Collections.unmodifiableList(program);
+            this.diagnostics = diagnostics;
+        }
+
+        /** Syntax and resolution errors of the script, which then cannot be evaluated. */
+        public Diagnostics diagnostics() {
+            return diagnostics;
+        }
+
+        public boolean hasErrors() {
+            return diagnostics.hasErrors();
+        }
+
+        public Result eval(Consumer<String> output) {
+            return eval(Collections.emptyMap(), output);
+        }
+
+        /**
+         * Runs the script with its own globals, the given ones defined first, e.g.
+         * numbers as Doubles, strings, booleans or null. Print statements pass each
+         * line to output.
+         */
+        public Result eval(Map<String, Object> globals, Consumer<String> output) {
+            if (hasErrors()) throw new IllegalStateException("The script has errors: " + diagnostics.all());
+
+            RuntimeError[] error = { null };
+            Interpreter interpreter = new Interpreter(output, e -> error[0] = e);
+            globals.forEach(interpreter::define);
+            interpreter.interpret(program);
+            return new Result(interpreter, error[0]);
+        }
+    }
+
+    /** What an evaluation left behind. */
+    public static final class Result {
+        private final Interpreter interpreter;
+        private final RuntimeError error;
+
+        private Result(Interpreter interpreter, RuntimeError error) {
+            this.interpreter = interpreter;
+            this.error = error;
+        }
+
+        /** The runtime error that stopped the script, null if it ran to the end. */
+        public RuntimeError error() {
+            return error;
+        }
+
+        /** The value a global of the script ended with, null if there is none. */
+        public Object global(String name) {
+            return interpreter.global(name);
+        }
+    }
+
+    /** Compiles a script, or returns the one compiled from the same source, with errors reported to it instead of stderr. */
+    public Script compile(String source) {
+        ByteBuffer key = key(source);
+        synchronized (scripts) {
+            Script script = scripts.get(key);
+            if (script != null) return script;
+        }
+
+        // Compiled outside of the lock, so other sources do not wait; of two
+        // threads compiling the same one, the first to finish wins.
+        Script script = compileUncached(source);
+        synchronized (scripts) {
+            Script earlier = scripts.putIfAbsent(key, script);
+            return earlier != null ? earlier : script;
+        }
+    }
+
+    /** Compiled scripts the engine keeps at the moment. */
+    public int cached() {
+        synchronized (scripts) {
+            return scripts.size();
+        }
+    }
+
+    private static Script compileUncached(String source) {
+        Diagnostics diagnostics = new Diagnostics();
+        List<Stmt> statements = new Parser(new Scanner(new StringReader(source), diagnostics), diagnostics).parse();
+        if (diagnostics.hasErrors()) return new Script(statements, diagnostics);
+
+        // Resolution and folding only need an interpreter to record depths in
+        // the nodes and to evaluate literals, so this one prints nothing.
+        Interpreter compiler = new Interpreter(line -> {}, e -> {});
+        Resolver resolver = new Resolver(compiler, diagnostics);
+        resolver.resolve(statements);
+        if (diagnostics.hasErrors()) return new Script(statements, diagnostics);
+
+        return new Script(new Optimizer(compiler, resolver).optimize(statements), diagnostics);
+    }
+
+    private static ByteBuffer key(String source) {
+        return ByteBuffer.wrap(CacheEntries.sha256(source.getBytes(StandardCharsets.UTF_8)));
+    }
+}
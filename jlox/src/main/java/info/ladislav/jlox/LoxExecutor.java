@@ -0,0 +1,136 @@
+package info.ladislav.jlox;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs scripts of a {@link LoxEngine} concurrently, each invocation as a task
+ * whose {@link Future} gives its {@link LoxEngine.Result}.
+ *
+ * On Java 21 and later every invocation gets a virtual thread of its own, and
+ * at most maxConcurrent of them run scripts at once, the others waiting for a
+ * permit without holding a carrier thread. On older Java the invocations share
+ * a pool of maxConcurrent platform threads. The interpreter holds no lock while
+ * a script runs and prints through the output each invocation is given, so it
+ * never pins a carrier thread itself.
+ *
+ * Cancelling an invocation interrupts its thread, and the interpreter stops
+ * the script at its next loop iteration or function call. An invocation that
+ * runs longer than its timeout, counted from when it gets a permit, is
+ * cancelled the same way; getting its result then throws a
+ * {@link java.util.concurrent.CancellationException}.
+ */
+public class LoxExecutor implements AutoCloseable {
+
+    private final LoxEngine engine;
+    private final ExecutorService threads;
+    private final ScheduledExecutorService timeouts;
+    private final Semaphore permits;
+    private final boolean virtual;
+
+    public LoxExecutor(LoxEngine engine, int maxConcurrent) {
+        if (maxConcurrent < 1) throw new IllegalArgumentException("maxConcurrent must be positive, not " + maxConcurrent);
+        this.engine = engine;
+        this.permits = new Semaphore(maxConcurrent, true);
+
+        ExecutorService threads;
+        boolean virtual;
+        try {
+            threads = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            virtual = true;
+        } catch (ReflectiveOperationException e) {
+            threads = Executors.newFixedThreadPool(maxConcurrent, daemon("lox-script"));
+            virtual = false;
+        }
+        this.threads = threads;
+        this.virtual = virtual;
+        this.timeouts = Executors.newSingleThreadScheduledExecutor(daemon("lox-timeouts"));
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /** Whether invocations run on virtual threads, which needs Java 21. */
+    public boolean usesVirtualThreads() {
+        return virtual;
+    }
+
+    /** Compiles, or takes from the engine's cache, and runs a source without a timeout. */
+    public Future<LoxEngine.Result> submit(String source, Consumer<String> output) {
+        return submit(engine.compile(source), Collections.emptyMap(), output, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /** Compiles, or takes from the engine's cache, and runs a source, see {@link #submit(LoxEngine.Script, Map, Consumer, long, TimeUnit)}. */
+    public Future<LoxEngine.Result> submit(String source, Map<String, Object> globals, Consumer<String> output,
+            long timeout, TimeUnit unit) {
+        return submit(engine.compile(source), globals, output, timeout, unit);
+    }
+
+    /**
+     * Runs a script like {@link LoxEngine.Script#eval(Map, Consumer)}, cancelled
+     * after timeout unless that is 0. A script with compile errors fails with
+     * an IllegalStateException.
+     */
+    public Future<LoxEngine.Result> submit(LoxEngine.Script script, Map<String, Object> globals, Consumer<String> output,
+            long timeout, TimeUnit unit) {
+        if (timeout < 0) throw new IllegalArgumentException("Negative timeout " + timeout);
+        Invocation invocation = new Invocation(script, globals, output, unit.toNanos(timeout));
+        threads.execute(invocation);
+        return invocation;
+    }
+
+    /** Cancels the invocations still waiting or running and stops the threads. */
+    @Override
+    public void close() {
+        // Invocations the pool never started would never complete otherwise.
+        for (Runnable waiting : threads.shutdownNow()) {
+            ((Invocation) waiting).cancel(false);
+        }
+        timeouts.shutdownNow();
+    }
+
+    private final class Invocation extends FutureTask<LoxEngine.Result> {
+
+        private final long timeoutNanos;
+
+        Invocation(LoxEngine.Script script, Map<String, Object> globals, Consumer<String> output, long timeoutNanos) {
+            super(() -> script.eval(globals, output));
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        @Override
+        public void run() {
+            if (isDone()) return;
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                cancel(false);
+                return;
+            }
+
+            ScheduledFuture<?> timeout = timeoutNanos == 0 ? null
+                : timeouts.schedule(() -> cancel(true), timeoutNanos, TimeUnit.NANOSECONDS);
+            try {
+                super.run();
+            } finally {
+                if (timeout != null) timeout.cancel(false);
+                permits.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package info.ladislav.jlox;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.function.Function;
+
+import info.ladislav.jlox.lexer.Token;
+import info.ladislav.jlox.parser.Interpreter;
+import info.ladislav.jlox.parser.Parser;
+import info.ladislav.jlox.parser.Resolver;
+import info.ladislav.jlox.parser.Stmt;
+
+/**
+ * Runs a script with the stages overlapping instead of one after another:
+ *
+ * scanner thread -> token batches -> parser thread -> declarations -> resolve and execute
+ *
+ * Both queues are bounded, so a fast stage waits for a slow one instead of
+ * buffering the whole file. Each top level declaration is resolved and executed
+ * on the calling thread as soon as it has been parsed, so the first statements
+ * of a large script run while the rest of it is still being scanned.
+ *
+ * Errors travel through the queues next to the tokens and statements they
+ * belong to and are reported on the calling thread, in source order. Unlike
+ * {@link JLox#run}, statements before a syntax error have already run by the
+ * time it is found; nothing runs after it, but later syntax errors are still
+ * reported.
+ */
+public class Pipeline {
+
+    private static final int BATCH_SIZE = 1024;
+    private static final int QUEUED_BATCHES = 64;
+    private static final int QUEUED_DECLARATIONS = 256;
+
+    private static final class Batch {
+        final Token[] tokens = new Token[BATCH_SIZE];
+        final Diagnostics diagnostics = new Diagnostics();
+        /** For each scanner error, the index of the first token scanned after it. */
+        final List<Integer> errorsBefore = new ArrayList<>();
+        int size = 0;
+        boolean last = false;
+        RuntimeException failure;
+
+        void report(int line, String where, String message) {
+            errorsBefore.add(size);
+            diagnostics.report(line, where, message);
+        }
+    }
+
+    private static final class Declaration {
+        final Stmt statement;
+        final Diagnostics diagnostics;
+        final boolean end;
+        final RuntimeException failure;
+
+        Declaration(Stmt statement, Diagnostics diagnostics, boolean end, RuntimeException failure) {
+            this.statement = statement;
+            this.diagnostics = diagnostics;
+            this.end = end;
+            this.failure = failure;
+        }
+    }
+
+    private final Function<ErrorReporter, Iterator<Token>> scanner;
+    private final BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+    private final BlockingQueue<Declaration> declarations = new ArrayBlockingQueue<>(QUEUED_DECLARATIONS);
+    private Parser.FunctionBodies functionBodies = Parser.FunctionBodies.EAGER;
+
+    /**
+     * @param scanner creates the token source, reporting its errors to the given reporter.
+     *                It is called once, on the scanner thread.
+     */
+    public Pipeline(Function<ErrorReporter, Iterator<Token>> scanner) {
+        this.scanner = scanner;
+    }
+
+    public void setFunctionBodies(Parser.FunctionBodies functionBodies) {
+        this.functionBodies = functionBodies;
+    }
+
+    /**
+     * Runs the script, returning once its last statement has executed or after
+     * the first runtime error. Errors go to reporter and JLox.runtimeError.
+     */
+    public void run(Interpreter interpreter, ErrorReporter reporter) {
+        Thread scan = start("lox-scanner", this::scan);
+        Thread parse = start("lox-parser", this::parse);
+
+        try {
+            boolean failed = false;
+
+            while (true) {
+                Declaration declaration = take(declarations);
+                declaration.diagnostics.replay(reporter);
+                if (declaration.failure != null) throw declaration.failure;
+                if (declaration.end) return;
+
+                // After an error only the remaining syntax errors are reported.
+                failed |= declaration.diagnostics.hasErrors();
+                if (failed || declaration.statement == null) continue;
+
+                Diagnostics resolution = new Diagnostics();
+                new Resolver(interpreter, resolution).resolve(declaration.statement);
+                resolution.replay(reporter);
+                if (resolution.hasErrors()) {
+                    failed = true;
+                    continue;
+                }
+
+                if (!interpreter.interpret(declaration.statement)) return;
+            }
+        } finally {
+            interpreter.cancelTasks();
+            scan.interrupt();
+            parse.interrupt();
+        }
+    }
+
+    private static Thread start(String name, Runnable stage) {
+        Thread thread = new Thread(stage, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /** Scanner thread: cuts the token stream into batches. */
+    private void scan() {
+        Batch[] batch = { new Batch() };
+        try {
+            Iterator<Token> tokens = scanner.apply((line, where, message) -> batch[0].report(line, where, message));
+
+            while (true) {
+                boolean more = tokens.hasNext();
+                if (more) {
+                    // Scan first: errors reported while scanning record the size before this token.
+                    Token token = tokens.next();
+                    batch[0].tokens[batch[0].size++] = token;
+                }
+                if (!more || batch[0].size == BATCH_SIZE) {
+                    batch[0].last = !more;
+                    batches.put(batch[0]);
+                    if (!more) return;
+                    batch[0] = new Batch();
+                }
+            }
+        } catch (InterruptedException e) {
+            // The script stopped early.
+        } catch (RuntimeException e) {
+            batch[0].failure = e;
+            handOver(batches, batch[0]);
+        }
+    }
+
+    /** Parser thread: hands over each declaration with the errors found while scanning and parsing it. */
+    private void parse() {
+        Diagnostics[] errors = { new Diagnostics() };
+        try {
+            Parser parser = new Parser(new BatchIterator(errors), (line, where, message) -> errors[0].report(line, where, message));
+            parser.setFunctionBodies(functionBodies);
+
+            while (parser.hasNextDeclaration()) {
+                Stmt statement = parser.nextDeclaration();
+                declarations.put(new Declaration(statement, errors[0], false, null));
+                errors[0] = new Diagnostics();
+            }
+            // Errors reported at the very end, e.g. an unterminated comment, come with the end marker.
+            declarations.put(new Declaration(null, errors[0], true, null));
+        } catch (InterruptedException | CancellationException e) {
+            // The script stopped early.
+        } catch (RuntimeException e) {
+            handOver(declarations, new Declaration(null, errors[0], true, e));
+        }
+    }
+
+    /** Tokens from the batch queue; scanner errors are passed on as the tokens after them are reached. */
+    private final class BatchIterator implements Iterator<Token> {
+        private final Diagnostics[] errors;
+        private Batch batch;
+        private int index = 0;
+        private int replayed = 0;
+
+        BatchIterator(Diagnostics[] errors) {
+            this.errors = errors;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (batch == null || index == batch.size) {
+                if (batch != null) {
+                    replay(Integer.MAX_VALUE);
+                    if (batch.last) return false;
+                }
+
+                batch = take(batches);
+                index = 0;
+                replayed = 0;
+                if (batch.failure != null) throw batch.failure;
+            }
+            return true;
+        }
+
+        @Override
+        public Token next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            replay(index);
+            return batch.tokens[index++];
+        }
+
+        private void replay(int upTo) {
+            List<Diagnostics.Diagnostic> diagnostics = batch.diagnostics.all();
+            for (; replayed < diagnostics.size() && batch.errorsBefore.get(replayed) <= upTo; replayed++) {
+                Diagnostics.Diagnostic diagnostic = diagnostics.get(replayed);
+                errors[0].report(diagnostic.line, diagnostic.where, diagnostic.message);
+            }
+        }
+    }
+
+    /** Passes a failure on to the next stage, unless the script has stopped in the meantime. */
+    private static <T> void handOver(BlockingQueue<T> queue, T item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            // Nobody is waiting for it any more.
+        }
+    }
+
+    private static <T> T take(BlockingQueue<T> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package info.ladislav.jlox.lexer;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes characters straight out of a (typically memory-mapped) byte buffer.
+ * Only as many characters as the caller asks for are decoded, so a large file
+ * is never copied onto the heap as a whole.
+ */
+class ByteBufferReader extends Reader {
+
+    private final ByteBuffer bytes;
+    private final CharsetDecoder decoder;
+    private boolean flushed = false;
+
+    /** Low surrogate left over when a pair did not fit into the caller's buffer. */
+    private char pending;
+    private boolean hasPending = false;
+
+    ByteBufferReader(ByteBuffer bytes, Charset charset) {
+        this.bytes = bytes.duplicate();
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) {
+        if (length == 0) return 0;
+
+        if (hasPending) {
+            buffer[offset] = pending;
+            hasPending = false;
+            return 1;
+        }
+
+        if (flushed) return -1;
+
+        if (length == 1 && bytes.hasRemaining()) {
+            return readSingle(buffer, offset);
+        }
+
+        CharBuffer out = CharBuffer.wrap(buffer, offset, length);
+
+        // The whole input is already in the buffer, so every call may treat it as the end of input.
+        decoder.decode(bytes, out, true);
+
+        if (!bytes.hasRemaining() && !flushed && out.hasRemaining()) {
+            decoder.flush(out);
+            flushed = true;
+        }
+
+        int read = out.position() - offset;
+        return read == 0 && flushed ? -1 : read;
+    }
+
+    private int readSingle(char[] buffer, int offset) {
+        char[] pair = new char[2];
+        CharBuffer out = CharBuffer.wrap(pair);
+        decoder.decode(bytes, out, true);
+
+        if (out.position() == 0) {
+            return read(buffer, offset, 1);
+        }
+
+        buffer[offset] = pair[0];
+        if (out.position() > 1) {
+            pending = pair[1];
+            hasPending = true;
+        }
+        return 1;
+    }
+
+    @Override
+    public void close() {
+    }
+}
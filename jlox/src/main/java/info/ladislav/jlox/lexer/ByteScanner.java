@@ -0,0 +1,469 @@
+package info.ladislav.jlox.lexer;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static info.ladislav.jlox.lexer.TokenType.*;
+
+import info.ladislav.jlox.ErrorReporter;
+import info.ladislav.jlox.JLox;
+
+/**
+ * Fast path scanner working directly on the bytes of an ASCII compatible
+ * source (UTF-8, ISO-8859-1, ...). Produces exactly the same tokens as
+ * {@link Scanner}, but
+ *
+ * - whitespace and comments are skipped eight bytes at a time (SWAR),
+ * - keywords are recognised by a switch on length and first byte,
+ * - number literals are parsed straight from the bytes,
+ * - operator, keyword and repeated identifier lexemes are shared strings.
+ *
+ * Only string literals are decoded with the source charset, everything else
+ * in Lox is plain ASCII.
+ */
+public class ByteScanner implements Iterator<Token> {
+
+  static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+  private static final long ALL_HIGH_BITS  = 0x8080808080808080L;
+  private static final long SPACES         = 0x2020202020202020L;
+  private static final long TABS           = 0x0909090909090909L;
+  private static final long RETURNS        = 0x0D0D0D0D0D0D0D0DL;
+  static final long NEWLINES               = 0x0A0A0A0A0A0A0A0AL;
+  static final long STARS                  = 0x2A2A2A2A2A2A2A2AL;
+
+  /** Powers of ten that are exactly representable as doubles. */
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+    1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  /** Lexemes of operators, punctuation and keywords by token type, null for the other types. */
+  private static final String[] FIXED_LEXEMES = new String[TokenType.values().length];
+
+  static {
+    String[] lexemes = {
+      "(", ")", "{", "}", ",", ".", "-", "+", ";", "/", "*", "?", ":",
+      "!", "!=", "=", "==", ">", ">=", "<", "<="
+    };
+    for (int i = 0; i < lexemes.length; i++) {
+      FIXED_LEXEMES[LEFT_PAREN.ordinal() + i] = lexemes[i];
+    }
+
+    String[] keywords = {
+      "and", "class", "else", "false", "fun", "for", "if", "nil", "or",
+      "print", "return", "super", "this", "true", "var", "while"
+    };
+    for (int i = 0; i < keywords.length; i++) {
+      FIXED_LEXEMES[AND.ordinal() + i] = keywords[i];
+    }
+
+    FIXED_LEXEMES[EOF.ordinal()] = "";
+  }
+
+  private final byte[] source;
+  private final int end;
+  private final Charset charset;
+  private final ErrorReporter reporter;
+  private final NameTable names = new NameTable();
+
+  private int start;
+  private int current;
+  private int line;
+
+  /** Value of the last NUMBER token scanned. */
+  private double number;
+
+  private boolean emittedEof = false;
+
+  public ByteScanner(byte[] source) {
+    this(source, StandardCharsets.UTF_8);
+  }
+
+  public ByteScanner(byte[] source, Charset charset) {
+    this(source, charset, JLox.reporter);
+  }
+
+  public ByteScanner(byte[] source, Charset charset, ErrorReporter reporter) {
+    this(source, 0, source.length, 1, charset, reporter);
+  }
+
+  /** Scans source[from, to), which starts on the given line, outside of any string or comment. */
+  ByteScanner(byte[] source, int from, int to, int line, Charset charset, ErrorReporter reporter) {
+    this.source = source;
+    this.start = from;
+    this.current = from;
+    this.end = to;
+    this.line = line;
+    this.charset = charset;
+    this.reporter = reporter;
+  }
+
+  /**
+   * Whether characters of the charset below 0x80 are always single ASCII
+   * bytes, which is what this scanner relies on.
+   */
+  public static boolean supports(Charset charset) {
+    return charset.equals(StandardCharsets.UTF_8)
+        || charset.equals(StandardCharsets.US_ASCII)
+        || charset.equals(StandardCharsets.ISO_8859_1);
+  }
+
+  public List<Token> scanTokens() {
+    List<Token> tokens = new ArrayList<>();
+    while (hasNext()) {
+      tokens.add(nextToken());
+    }
+    return tokens;
+  }
+
+  /** Scans the rest of the input into a compact token stream, no Token objects are created. */
+  public TokenStream scanTokenStream() {
+    TokenStream tokens = new TokenStream(source, charset, (end - current) / 8);
+    TokenType type;
+    do {
+      type = scan();
+      tokens.add(type, start, current - start, line);
+    } while (type != EOF);
+
+    tokens.trim();
+    emittedEof = true;
+    return tokens;
+  }
+
+  /** Returns the next token, the last one returned is always EOF. */
+  public Token nextToken() {
+    if (emittedEof) throw new NoSuchElementException();
+
+    TokenType type = scan();
+    switch (type) {
+      case EOF:
+        emittedEof = true;
+        return new Token(EOF, "", null, line);
+      case IDENTIFIER:
+        return new Token(type, names.intern(source, start, current), null, line);
+      case NUMBER:
+        return new Token(type, ascii(source, start, current), number, line);
+      case STRING:
+        String lexeme = new String(source, start, current - start, charset);
+        return new Token(type, lexeme, lexeme.substring(1, lexeme.length() - 1), line);
+      default:
+        return new Token(type, FIXED_LEXEMES[type.ordinal()], null, line);
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    return !emittedEof;
+  }
+
+  @Override
+  public Token next() {
+    return nextToken();
+  }
+
+  /** Lexeme shared by every token of the given type, null if the lexeme depends on the source. */
+  static String fixedLexeme(TokenType type) {
+    return FIXED_LEXEMES[type.ordinal()];
+  }
+
+  /**
+   * Finds the next token, which is then source[start, current) ending on line.
+   * Returns EOF at the end of input.
+   */
+  private TokenType scan() {
+    while (true) {
+      skipWhitespace();
+
+      // We are at the beginning of the next lexeme.
+      start = current;
+      if (current >= end) return EOF;
+
+      TokenType type = scanToken();
+      if (type != null) return type;
+    }
+  }
+
+  private TokenType scanToken() {
+    byte c = source[current++];
+    switch (c) {
+      case '(': return LEFT_PAREN;
+      case ')': return RIGHT_PAREN;
+      case '{': return LEFT_BRACE;
+      case '}': return RIGHT_BRACE;
+      case ',': return COMMA;
+      case '.': return DOT;
+      case '-': return MINUS;
+      case '+': return PLUS;
+      case ';': return SEMICOLON;
+      case '*': return STAR;
+      case '?': return QUESTION_MARK;
+      case ':': return COLON;
+
+      case '!': return match('=') ? BANG_EQUAL : BANG;
+      case '=': return match('=') ? EQUAL_EQUAL : EQUAL;
+      case '<': return match('=') ? LESS_EQUAL : LESS;
+      case '>': return match('=') ? GREATER_EQUAL : GREATER;
+
+      case '/':
+        if (match('/')) {
+          skipLineComment();
+          return null;
+        }
+        if (match('*')) {
+          skipBlockComment();
+          return null;
+        }
+        return SLASH;
+
+      case '"': return string();
+
+      default:
+        if (isDigit(c)) return number();
+        if (isAlpha(c)) return identifier();
+
+        if (c < 0 && charset.equals(StandardCharsets.UTF_8)) {
+          // Report a multi-byte character once, not once per byte.
+          while (current < end && (source[current] & 0xC0) == 0x80) current++;
+        }
+        reporter.error(line, "Unexpected character");
+        return null;
+    }
+  }
+
+  private boolean match(char expected) {
+    if (current >= end || source[current] != expected) return false;
+
+    current++;
+    return true;
+  }
+
+  private TokenType string() {
+    while (current < end && source[current] != '"') {
+      if (source[current] == '\n') line++;
+      current++;
+    }
+
+    // Unterminated string.
+    if (current >= end) {
+      reporter.error(line, "Unterminated string.");
+      return null;
+    }
+
+    // The closing ".
+    current++;
+    return STRING;
+  }
+
+  private TokenType number() {
+    while (current < end && isDigit(source[current])) current++;
+
+    // Look for a fractional part.
+    if (current + 1 < end && source[current] == '.' && isDigit(source[current + 1])) {
+      // Consume the "."
+      current++;
+
+      while (current < end && isDigit(source[current])) current++;
+    }
+
+    number = parseNumber(source, start, current);
+    return NUMBER;
+  }
+
+  /** Parses a number literal (digits with an optional fraction) without building its lexeme. */
+  static double parseNumber(byte[] source, int from, int to) {
+    long mantissa = 0;
+    int digits = 0;
+    int fractionDigits = -1;
+
+    for (int i = from; i < to; i++) {
+      byte c = source[i];
+      if (c == '.') {
+        fractionDigits = 0;
+        continue;
+      }
+      mantissa = mantissa * 10 + (c - '0');
+      digits++;
+      if (fractionDigits >= 0) fractionDigits++;
+    }
+
+    if (fractionDigits < 0) fractionDigits = 0;
+
+    if (digits <= 15 && fractionDigits < POWERS_OF_TEN.length) {
+      // Both operands are exact and IEEE division rounds correctly, so this
+      // is the same double Double.parseDouble would produce.
+      return mantissa / POWERS_OF_TEN[fractionDigits];
+    }
+
+    return Double.parseDouble(ascii(source, from, to));
+  }
+
+  private TokenType identifier() {
+    while (current < end && isAlphaNumeric(source[current])) current++;
+
+    TokenType keyword = keyword();
+    return keyword != null ? keyword : IDENTIFIER;
+  }
+
+  /** Keyword recognition by length and first byte, no lexeme is needed. */
+  private TokenType keyword() {
+    int length = current - start;
+    switch (length) {
+      case 2:
+        switch (source[start]) {
+          case 'i': return rest("f") ? IF : null;
+          case 'o': return rest("r") ? OR : null;
+        }
+        return null;
+      case 3:
+        switch (source[start]) {
+          case 'a': return rest("nd") ? AND : null;
+          case 'f': return rest("or") ? FOR : rest("un") ? FUN : null;
+          case 'n': return rest("il") ? NIL : null;
+          case 'v': return rest("ar") ? VAR : null;
+        }
+        return null;
+      case 4:
+        switch (source[start]) {
+          case 'e': return rest("lse") ? ELSE : null;
+          case 't': return rest("his") ? THIS : rest("rue") ? TRUE : null;
+        }
+        return null;
+      case 5:
+        switch (source[start]) {
+          case 'c': return rest("lass") ? CLASS : null;
+          case 'f': return rest("alse") ? FALSE : null;
+          case 'p': return rest("rint") ? PRINT : null;
+          case 's': return rest("uper") ? SUPER : null;
+          case 'w': return rest("hile") ? WHILE : null;
+        }
+        return null;
+      case 6:
+        return source[start] == 'r' && rest("eturn") ? RETURN : null;
+    }
+    return null;
+  }
+
+  private boolean rest(String expected) {
+    for (int i = 0; i < expected.length(); i++) {
+      if (source[start + 1 + i] != expected.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  @SuppressWarnings("deprecation")
+  static String ascii(byte[] source, int from, int to) {
+    // The hibyte constructor copies bytes straight into a Latin-1 string without a decoder.
+    return new String(source, 0, from, to - from);
+  }
+
+  /** WHITESPACE AND COMMENTS */
+
+  private void skipWhitespace() {
+    while (current < end) {
+      byte c = source[current];
+      if (c == '\n') {
+        line++;
+      } else if (c != ' ' && c != '\r' && c != '\t') {
+        return;
+      }
+      current++;
+      if (current + 8 <= end && isBlank(source[current])) skipBlankWords();
+    }
+  }
+
+  /** Skips whole words of eight whitespace bytes, e.g. indentation. */
+  private void skipBlankWords() {
+    while (current + 8 <= end) {
+      long word = (long) LONGS.get(source, current);
+      long newlines = matches(word, NEWLINES);
+      long blanks = matches(word, SPACES) | matches(word, TABS) | matches(word, RETURNS) | newlines;
+
+      if (blanks != ALL_HIGH_BITS) return;
+
+      line += Long.bitCount(newlines);
+      current += 8;
+    }
+  }
+
+  /** A comment goes until the end of the line. */
+  private void skipLineComment() {
+    while (current + 8 <= end) {
+      long newlines = matches((long) LONGS.get(source, current), NEWLINES);
+      if (newlines != 0) {
+        current += Long.numberOfTrailingZeros(newlines) >>> 3;
+        return;
+      }
+      current += 8;
+    }
+
+    while (current < end && source[current] != '\n') current++;
+  }
+
+  private void skipBlockComment() {
+    while (current + 8 <= end) {
+      long word = (long) LONGS.get(source, current);
+      long newlines = matches(word, NEWLINES);
+      long stars = matches(word, STARS);
+
+      if (stars == 0) {
+        line += Long.bitCount(newlines);
+        current += 8;
+        continue;
+      }
+
+      // Count the lines up to the first star, then look at what follows it.
+      int offset = Long.numberOfTrailingZeros(stars) >>> 3;
+      line += Long.bitCount(newlines & ((1L << (offset * 8)) - 1));
+      current += offset + 1;
+
+      if (current < end && source[current] == '/') {
+        current++;
+        return;
+      }
+    }
+
+    while (current < end) {
+      byte c = source[current++];
+      if (c == '\n') line++;
+      if (c == '*' && current < end && source[current] == '/') {
+        current++;
+        return;
+      }
+    }
+
+    reporter.error(line, "Unmached multiline comment - reached EOF");
+  }
+
+  /** Returns a word with the high bit set in exactly the bytes of word that equal the pattern's byte. */
+  static long matches(long word, long pattern) {
+    long diff = word ^ pattern;
+    return ~(((diff & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | diff | LOW_SEVEN_BITS);
+  }
+
+  private static boolean isBlank(byte c) {
+    return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+  }
+
+  private static boolean isDigit(byte c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isAlpha(byte c) {
+    return (c >= 'a' && c <= 'z') ||
+           (c >= 'A' && c <= 'Z') ||
+            c == '_';
+  }
+
+  private static boolean isAlphaNumeric(byte c) {
+    return isAlpha(c) || isDigit(c);
+  }
+}
@@ -0,0 +1,81 @@
+package info.ladislav.jlox.lexer;
+
+/**
+ * Interns identifier lexemes read from ASCII bytes, so an identifier that
+ * appears thousands of times in a script is backed by a single String.
+ * Open addressing with linear probing on the String hash code.
+ *
+ * Safe for the chunk parsers of a {@link TokenStream} running at once: a name
+ * already in the table is found without locking, as a slot never changes
+ * once set and a table is only published after it was filled; a name that is
+ * not found is added under the lock, after looking again in the current table.
+ */
+class NameTable {
+
+    private volatile String[] names = new String[256];
+    /** Guarded by this. */
+    private int count = 0;
+
+    String intern(byte[] source, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + source[i];
+        }
+
+        String name = find(names, hash, source, from, to);
+        return name != null ? name : add(hash, source, from, to);
+    }
+
+    private synchronized String add(int hash, byte[] source, int from, int to) {
+        String[] table = names;
+        int mask = table.length - 1;
+        for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            String name = table[slot];
+            if (name == null) {
+                name = ByteScanner.ascii(source, from, to);
+                table[slot] = name;
+                if (++count * 2 > table.length) grow(table);
+                return name;
+            }
+            if (name.hashCode() == hash && sameAscii(name, source, from, to)) {
+                return name;
+            }
+        }
+    }
+
+    /** The name in a table, or null if it is not there, or not visible to this thread yet. */
+    private static String find(String[] table, int hash, byte[] source, int from, int to) {
+        int mask = table.length - 1;
+        for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            String name = table[slot];
+            if (name == null) return null;
+            if (name.hashCode() == hash && sameAscii(name, source, from, to)) {
+                return name;
+            }
+        }
+    }
+
+    private void grow(String[] old) {
+        String[] table = new String[old.length * 2];
+        int mask = table.length - 1;
+        for (String name : old) {
+            if (name == null) continue;
+            int slot = mix(name.hashCode()) & mask;
+            while (table[slot] != null) slot = (slot + 1) & mask;
+            table[slot] = name;
+        }
+        names = table;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean sameAscii(String name, byte[] source, int from, int to) {
+        if (name.length() != to - from) return false;
+        for (int i = from; i < to; i++) {
+            if (name.charAt(i - from) != source[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,205 @@
+package info.ladislav.jlox.lexer;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import info.ladislav.jlox.Diagnostics;
+import info.ladislav.jlox.ErrorReporter;
+import info.ladislav.jlox.JLox;
+
+/**
+ * Scans a large source on several cores and produces exactly the tokens,
+ * lines and errors of a sequential {@link ByteScanner}.
+ *
+ * 1. The source is cut into chunks that end right after a newline.
+ * 2. A cheap pre-pass runs a four state machine (code, string, line comment,
+ *    block comment) over every chunk in parallel, once for each state the
+ *    chunk could start in, and counts its newlines.
+ * 3. Chaining the end states tells which chunks really start in code; the
+ *    others continue a string or comment and are merged into the previous chunk.
+ * 4. The chunks are scanned in parallel, each with its starting line, and the
+ *    token streams and errors are stitched back together in order.
+ */
+public class ParallelScanner {
+
+    static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    // Lexical states a chunk boundary can fall in. A chunk ends with a newline,
+    // so a line comment never carries over into the next chunk.
+    private static final int CODE = 0;
+    private static final int STRING = 1;
+    private static final int BLOCK_COMMENT = 2;
+    private static final int LINE_COMMENT = 3;
+
+    private static final long QUOTES  = 0x2222222222222222L;
+    private static final long SLASHES = 0x2F2F2F2F2F2F2F2FL;
+
+    private final byte[] source;
+    private final Charset charset;
+    private final int chunkSize;
+    private final ForkJoinPool pool;
+    private final ErrorReporter reporter;
+
+    public ParallelScanner(byte[] source, Charset charset) {
+        this(source, charset, DEFAULT_CHUNK_SIZE, ForkJoinPool.commonPool(), JLox.reporter);
+    }
+
+    ParallelScanner(byte[] source, Charset charset, int chunkSize, ForkJoinPool pool, ErrorReporter reporter) {
+        this.source = source;
+        this.charset = charset;
+        this.chunkSize = chunkSize;
+        this.pool = pool;
+        this.reporter = reporter;
+    }
+
+    public List<Token> scanTokens() {
+        List<Token> tokens = new ArrayList<>();
+        for (Token token : scanTokenStream()) {
+            tokens.add(token);
+        }
+        return tokens;
+    }
+
+    public TokenStream scanTokenStream() {
+        List<Integer> boundaries = candidateBoundaries();
+        int chunks = boundaries.size() - 1;
+
+        // Pre-pass: end state for every possible start state, and the number of newlines.
+        int[][] endStates = new int[chunks][];
+        int[] newlines = new int[chunks];
+        List<ForkJoinTask<?>> prePass = new ArrayList<>();
+        for (int i = 0; i < chunks; i++) {
+            int chunk = i;
+            int from = boundaries.get(i);
+            int to = boundaries.get(i + 1);
+            prePass.add(pool.submit(() -> {
+                endStates[chunk] = new int[] {
+                    endState(CODE, from, to), endState(STRING, from, to), endState(BLOCK_COMMENT, from, to)
+                };
+                newlines[chunk] = countNewlines(from, to);
+            }));
+        }
+        prePass.forEach(ForkJoinTask::join);
+
+        // Keep only the boundaries that fall in code, and work out the line each chunk starts on.
+        List<int[]> ranges = new ArrayList<>();
+        int state = CODE;
+        int line = 1;
+        int from = boundaries.get(0);
+        int fromLine = 1;
+        for (int i = 0; i < chunks; i++) {
+            state = endStates[i][state];
+            line += newlines[i];
+            int to = boundaries.get(i + 1);
+            if (state == CODE || i == chunks - 1) {
+                ranges.add(new int[] { from, to, fromLine });
+                from = to;
+                fromLine = line;
+            }
+        }
+
+        List<ForkJoinTask<TokenStream>> scans = new ArrayList<>();
+        List<Diagnostics> errors = new ArrayList<>();
+        for (int[] range : ranges) {
+            Diagnostics diagnostics = new Diagnostics();
+            errors.add(diagnostics);
+            scans.add(pool.submit(() ->
+                new ByteScanner(source, range[0], range[1], range[2], charset, diagnostics).scanTokenStream()));
+        }
+
+        List<TokenStream> parts = new ArrayList<>();
+        for (int i = 0; i < scans.size(); i++) {
+            parts.add(scans.get(i).join());
+            errors.get(i).replay(reporter);
+        }
+
+        return TokenStream.concat(source, charset, parts);
+    }
+
+    /** Chunk starts: roughly every chunkSize bytes, moved forward to just after a newline. */
+    private List<Integer> candidateBoundaries() {
+        List<Integer> boundaries = new ArrayList<>();
+        boundaries.add(0);
+
+        int position = chunkSize;
+        while (position < source.length) {
+            while (position < source.length && source[position - 1] != '\n') position++;
+            if (position >= source.length) break;
+
+            boundaries.add(position);
+            position += chunkSize;
+        }
+
+        boundaries.add(source.length);
+        return boundaries;
+    }
+
+    /** Follows the scanner's notion of strings and comments through source[from, to). */
+    private int endState(int state, int from, int to) {
+        for (int i = from; i < to; i++) {
+            // Skip eight bytes at a time while none of them can change the state.
+            if (i + 8 <= to) {
+                long significant = significantBytes(state, (long) ByteScanner.LONGS.get(source, i));
+                if (significant == 0) {
+                    i += 7;
+                    continue;
+                }
+                i += Long.numberOfTrailingZeros(significant) >>> 3;
+            }
+
+            byte c = source[i];
+            switch (state) {
+                case CODE:
+                    if (c == '"') {
+                        state = STRING;
+                    } else if (c == '/' && i + 1 < to) {
+                        if (source[i + 1] == '/') {
+                            state = LINE_COMMENT;
+                            i++;
+                        } else if (source[i + 1] == '*') {
+                            state = BLOCK_COMMENT;
+                            i++;
+                        }
+                    }
+                    break;
+                case STRING:
+                    if (c == '"') state = CODE;
+                    break;
+                case LINE_COMMENT:
+                    if (c == '\n') state = CODE;
+                    break;
+                case BLOCK_COMMENT:
+                    if (c == '*' && i + 1 < to && source[i + 1] == '/') {
+                        state = CODE;
+                        i++;
+                    }
+                    break;
+            }
+        }
+        return state == LINE_COMMENT ? CODE : state;
+    }
+
+    private static long significantBytes(int state, long word) {
+        switch (state) {
+            case CODE: return ByteScanner.matches(word, QUOTES) | ByteScanner.matches(word, SLASHES);
+            case STRING: return ByteScanner.matches(word, QUOTES);
+            case BLOCK_COMMENT: return ByteScanner.matches(word, ByteScanner.STARS);
+            default: return ByteScanner.matches(word, ByteScanner.NEWLINES);
+        }
+    }
+
+    private int countNewlines(int from, int to) {
+        int count = 0;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            count += Long.bitCount(ByteScanner.matches((long) ByteScanner.LONGS.get(source, i), ByteScanner.NEWLINES));
+        }
+        for (; i < to; i++) {
+            if (source[i] == '\n') count++;
+        }
+        return count;
+    }
+}
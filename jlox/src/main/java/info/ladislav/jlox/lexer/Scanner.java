@@ -1,16 +1,37 @@
 package info.ladislav.jlox.lexer;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import static info.ladislav.jlox.lexer.TokenType.*;
 
+import info.ladislav.jlox.ErrorReporter;
 import info.ladislav.jlox.JLox;
 
+/**
+ * Streaming scanner. Characters are pulled from a {@link Reader} into a
+ * bounded window and tokens are produced one at a time by {@link #nextToken()},
+ * so neither the whole source nor the whole token list has to be in memory.
+ *
+ * The window only has to hold the lexeme currently being scanned plus two
+ * characters of lookahead; it grows only for lexemes longer than the window.
+ */
+public class Scanner implements Iterator<Token> {
 
-public class Scanner {            
+  private static final int WINDOW_SIZE = 8192;
 
   private static final Map<String, TokenType> keywords;
 
@@ -34,32 +55,159 @@ public class Scanner {
     keywords.put("while",  WHILE);                     
   }                                                    
 
-  private final String source;                                            
-  private final List<Token> tokens = new ArrayList<>();                   
+  /** Operators and punctuation always have the same lexeme, there is no need to copy it out of the source. */
+  private static final String[] fixedLexemes = new String[TokenType.values().length];
+
+  static {
+    fixedLexemes[LEFT_PAREN.ordinal()]    = "(";
+    fixedLexemes[RIGHT_PAREN.ordinal()]   = ")";
+    fixedLexemes[LEFT_BRACE.ordinal()]    = "{";
+    fixedLexemes[RIGHT_BRACE.ordinal()]   = "}";
+    fixedLexemes[COMMA.ordinal()]         = ",";
+    fixedLexemes[DOT.ordinal()]           = ".";
+    fixedLexemes[MINUS.ordinal()]         = "-";
+    fixedLexemes[PLUS.ordinal()]          = "+";
+    fixedLexemes[SEMICOLON.ordinal()]     = ";";
+    fixedLexemes[SLASH.ordinal()]         = "/";
+    fixedLexemes[STAR.ordinal()]          = "*";
+    fixedLexemes[QUESTION_MARK.ordinal()] = "?";
+    fixedLexemes[COLON.ordinal()]         = ":";
+    fixedLexemes[BANG.ordinal()]          = "!";
+    fixedLexemes[BANG_EQUAL.ordinal()]    = "!=";
+    fixedLexemes[EQUAL.ordinal()]         = "=";
+    fixedLexemes[EQUAL_EQUAL.ordinal()]   = "==";
+    fixedLexemes[GREATER.ordinal()]       = ">";
+    fixedLexemes[GREATER_EQUAL.ordinal()] = ">=";
+    fixedLexemes[LESS.ordinal()]          = "<";
+    fixedLexemes[LESS_EQUAL.ordinal()]    = "<=";
+  }
+
+  private final Reader reader;
+  private final ErrorReporter reporter;
+  private char[] window = new char[WINDOW_SIZE];
+  /** Number of valid characters in the window. */
+  private int limit = 0;
+  private boolean drained = false;
 
   private int start = 0;                               
   private int current = 0;                             
   private int line = 1;    
 
+  /** Token produced by the last call to scanToken(), if any. */
+  private Token scanned;
+  private boolean emittedEof = false;
+
   public Scanner(String source) {                                                
-    this.source = source;                                                 
+    this(new StringReader(source));
   }             
+
+  /**
+   * Scans directly out of a byte buffer, usually a memory-mapped file. Characters
+   * are decoded window by window, the file is never decoded as a whole.
+   */
+  public Scanner(ByteBuffer source, Charset charset) {
+    this(source, charset, JLox.reporter);
+  }
+
+  public Scanner(ByteBuffer source, Charset charset, ErrorReporter reporter) {
+    this(new ByteBufferReader(source, charset), reporter);
+  }
+
+  public Scanner(ReadableByteChannel channel, Charset charset) {
+    this(channel, charset, JLox.reporter);
+  }
+
+  public Scanner(ReadableByteChannel channel, Charset charset, ErrorReporter reporter) {
+    this(Channels.newReader(channel, charset.newDecoder(), -1), reporter);
+  }
+
+  public Scanner(Reader reader) {
+    this(reader, JLox.reporter);
+  }
+
+  public Scanner(Reader reader, ErrorReporter reporter) {
+    this.reader = reader;
+    this.reporter = reporter;
+  }
   
+  /** Scans the whole input. Thin wrapper around {@link #nextToken()}. */
   public List<Token> scanTokens() {                        
+    List<Token> tokens = new ArrayList<>();
+    while (hasNext()) {
+      tokens.add(nextToken());
+    }
+    return tokens;                                  
+  }        
+
+  /** Returns the next token, the last one returned is always EOF. */
+  public Token nextToken() {
+    if (emittedEof) throw new NoSuchElementException();
+
     while (!isAtEnd()) {                            
       // We are at the beginning of the next lexeme.
       start = current;                              
       scanToken();                                  
+
+      if (scanned != null) {
+        Token token = scanned;
+        scanned = null;
+        return token;
+      }
     }
 
-    tokens.add(new Token(EOF, "", null, line));     
-    return tokens;                                  
-  }        
+    emittedEof = true;
+    return new Token(EOF, "", null, line);     
+  }
+
+  @Override
+  public boolean hasNext() {
+    return !emittedEof;
+  }
+
+  @Override
+  public Token next() {
+    return nextToken();
+  }
   
   private boolean isAtEnd() {         
-    return current >= source.length();
+    return !available(0);
   }  
 
+  /** Makes sure window[current + ahead] is loaded, returns false at end of input. */
+  private boolean available(int ahead) {
+    while (current + ahead >= limit) {
+      if (drained) return false;
+      fill();
+    }
+    return true;
+  }
+
+  private void fill() {
+    // Drop everything before the current lexeme, it will not be looked at again.
+    if (start > 0) {
+      System.arraycopy(window, start, window, 0, limit - start);
+      limit -= start;
+      current -= start;
+      start = 0;
+    }
+
+    if (limit == window.length) {
+      window = Arrays.copyOf(window, window.length * 2);
+    }
+
+    try {
+      int read = reader.read(window, limit, window.length - limit);
+      if (read < 0) {
+        drained = true;
+        reader.close();
+      } else {
+        limit += read;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
   private void scanToken() {                     
     char c = advance();                          
     switch (c) {                                 
@@ -85,7 +233,10 @@ public class Scanner {
 
         if (match('/')) {                                             
           // A comment goes until the end of the line.                
-          while (peek() != '\n' && !isAtEnd()) advance();
+          while (peek() != '\n' && !isAtEnd()) {
+            start = current;
+            advance();
+          }
 
         } else if (match('*')){
           multilineComment();
@@ -107,35 +258,42 @@ public class Scanner {
         case '"': string(); break;
 
         default:
-          if(Character.isDigit(c)){
+          if(isDigit(c)){
             number();
           }else if (isAlpha(c)){
             identifier();
           } else{
-            JLox.error(line, "Unexpected character");
+            // A character outside the BMP once, not once per surrogate, like ByteScanner.
+            if (Character.isHighSurrogate(c) && Character.isLowSurrogate(peek())) advance();
+            reporter.error(line, "Unexpected character");
           }
         break;
     }                                            
   }                                   
   
   private char advance() {                               
+    available(0);
     current++;                                           
-    return source.charAt(current - 1);                   
+    return window[current - 1];
   }
 
   private void addToken(TokenType type) {                
-    addToken(type, null);                                
+    scanned = new Token(type, fixedLexemes[type.ordinal()], null, line);
   }                                                      
 
   private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);      
-    tokens.add(new Token(type, text, literal, line));    
+    String text = text(start, current);
+    scanned = new Token(type, text, literal, line);
   }            
+
+  private String text(int from, int to) {
+    return new String(window, from, to - from);
+  }
   
   /** Lookahead */
   private boolean match(char expected) {                 
     if (isAtEnd()) return false;                         
-    if (source.charAt(current) != expected) return false;
+    if (window[current] != expected) return false;
 
     current++;                                           
     return true;                                         
@@ -143,13 +301,13 @@ public class Scanner {
   
   /** Helper methods for character lookahead */
   private char peek() {           
-    if (isAtEnd()) return '\0';   
-    return source.charAt(current);
+    if (!available(0)) return '\0';
+    return window[current];
   }
 
   private char peekNext() {                         
-    if (current + 1 >= source.length()) return '\0';
-    return source.charAt(current + 1);              
+    if (!available(1)) return '\0';
+    return window[current + 1];
   } 
   
   private void string() {      
@@ -161,7 +319,7 @@ public class Scanner {
 
     // Unterminated string.                                 
     if (isAtEnd()) {                                        
-      JLox.error(line, "Unterminated string.");              
+      reporter.error(line, "Unterminated string.");              
       return;                                               
     }                                                       
 
@@ -169,29 +327,29 @@ public class Scanner {
     advance();                                              
 
     // Trim the surrounding quotes.                         
-    String value = source.substring(start + 1, current - 1);
+    String value = text(start + 1, current - 1);
     addToken(STRING, value);                                
   }
 
   private void number() {                                     
-    while (Character.isDigit(peek())) advance();
+    while (isDigit(peek())) advance();
 
     // Look for a fractional part.                            
-    if (peek() == '.' && Character.isDigit(peekNext())) {               
+    if (peek() == '.' && isDigit(peekNext())) {               
       // Consume the "."                                      
       advance();                                              
 
-      while (Character.isDigit(peek())) advance();                      
+      while (isDigit(peek())) advance();                      
     }                                                         
 
-    addToken(NUMBER,                                          
-        Double.parseDouble(source.substring(start, current)));
+    String text = text(start, current);
+    scanned = new Token(NUMBER, text, Double.parseDouble(text), line);
   }
   
   private void identifier() {
     while (isAlphaNumeric(peek())) advance();
 
-    String text = source.substring(start, current);
+    String text = text(start, current);
 
     TokenType type = keywords.get(text);           
     
@@ -199,7 +357,7 @@ public class Scanner {
       type = IDENTIFIER;
     }
 
-    addToken(type);                                            
+    scanned = new Token(type, text, null, line);
   }       
 
   /* TODO nested multiline comments */
@@ -207,6 +365,8 @@ public class Scanner {
   private void multilineComment(){
 
     while(!isAtEnd()){
+      // Comments are not tokens, nothing before current has to stay in the window.
+      start = current;
 
       if(peek() == '*' && peekNext() == '/'){
         advance(); 
@@ -221,7 +381,12 @@ public class Scanner {
       advance();
     }
 
-    JLox.error(current,"Unmached multiline comment - reached EOF");
+    reporter.error(line,"Unmached multiline comment - reached EOF");
+  }
+
+  /** ASCII digits only, like ByteScanner; Double.parseDouble takes no others. */
+  private boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
   }
 
   private boolean isAlpha(char c) {       
@@ -231,7 +396,7 @@ public class Scanner {
   }
 
   private boolean isAlphaNumeric(char c) {
-    return isAlpha(c) || Character.isDigit(c);      
+    return isAlpha(c) || isDigit(c);      
   }                             
 
 }                                       
\ No newline at end of file
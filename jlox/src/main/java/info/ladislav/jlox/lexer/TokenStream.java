@@ -0,0 +1,166 @@
+package info.ladislav.jlox.lexer;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Compact token list: types, source offsets, lengths and lines are kept in
+ * parallel primitive arrays next to the source bytes, about 13 bytes per
+ * token. Lexemes and literals are only materialised when asked for, and
+ * {@link #get(int)} builds a {@link Token} on demand.
+ *
+ * Produced by {@link ByteScanner#scanTokenStream()}.
+ */
+public final class TokenStream implements Iterable<Token> {
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final byte[] source;
+    private final Charset charset;
+    private final NameTable names = new NameTable();
+
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int size = 0;
+
+    TokenStream(byte[] source, Charset charset, int capacity) {
+        this.source = source;
+        this.charset = charset;
+        capacity = Math.max(capacity, 16);
+        this.types = new byte[capacity];
+        this.starts = new int[capacity];
+        this.lengths = new int[capacity];
+        this.lines = new int[capacity];
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        if (size == types.length) {
+            int capacity = size + (size >> 1);
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        size++;
+    }
+
+    /** Joins streams scanned from consecutive parts of the same source, keeping only the last EOF. */
+    static TokenStream concat(byte[] source, Charset charset, List<TokenStream> parts) {
+        int total = 0;
+        for (TokenStream part : parts) {
+            total += part.size - 1;
+        }
+
+        TokenStream joined = new TokenStream(source, charset, total + 1);
+        for (int p = 0; p < parts.size(); p++) {
+            TokenStream part = parts.get(p);
+            int count = p == parts.size() - 1 ? part.size : part.size - 1;
+            System.arraycopy(part.types, 0, joined.types, joined.size, count);
+            System.arraycopy(part.starts, 0, joined.starts, joined.size, count);
+            System.arraycopy(part.lengths, 0, joined.lengths, joined.size, count);
+            System.arraycopy(part.lines, 0, joined.lines, joined.size, count);
+            joined.size += count;
+        }
+
+        joined.trim();
+        return joined;
+    }
+
+    /** Drops the spare capacity once scanning is done. */
+    void trim() {
+        types = Arrays.copyOf(types, size);
+        starts = Arrays.copyOf(starts, size);
+        lengths = Arrays.copyOf(lengths, size);
+        lines = Arrays.copyOf(lines, size);
+    }
+
+    /** Number of tokens, including the final EOF. */
+    public int size() {
+        return size;
+    }
+
+    public TokenType type(int index) {
+        return TYPES[types[check(index)]];
+    }
+
+    public int line(int index) {
+        return lines[check(index)];
+    }
+
+    public String lexeme(int index) {
+        TokenType type = type(index);
+        String fixed = ByteScanner.fixedLexeme(type);
+        if (fixed != null) return fixed;
+
+        int start = starts[index];
+        int end = start + lengths[index];
+        switch (type) {
+            case IDENTIFIER: return names.intern(source, start, end);
+            case STRING: return new String(source, start, end - start, charset);
+            default: return ByteScanner.ascii(source, start, end);
+        }
+    }
+
+    public Object literal(int index) {
+        int start = starts[check(index)];
+        int end = start + lengths[index];
+        switch (type(index)) {
+            case NUMBER: return ByteScanner.parseNumber(source, start, end);
+            case STRING: return new String(source, start + 1, end - start - 2, charset);
+            default: return null;
+        }
+    }
+
+    /** Materialises the token at index. */
+    public Token get(int index) {
+        TokenType type = type(index);
+        if (type == TokenType.STRING) {
+            String lexeme = lexeme(index);
+            return new Token(type, lexeme, lexeme.substring(1, lexeme.length() - 1), lines[index]);
+        }
+        return new Token(type, lexeme(index), literal(index), lines[index]);
+    }
+
+    /** Materialises tokens one by one as the iteration proceeds. */
+    @Override
+    public Iterator<Token> iterator() {
+        return iterator(0, size);
+    }
+
+    /** Iterates over the tokens from index from up to, but not including, index to. */
+    public Iterator<Token> iterator(int from, int to) {
+        if (from < 0 || from > to || to > size) {
+            throw new IndexOutOfBoundsException("Tokens " + from + " to " + to + " of " + size);
+        }
+
+        return new Iterator<Token>() {
+            private int next = from;
+
+            @Override
+            public boolean hasNext() {
+                return next < to;
+            }
+
+            @Override
+            public Token next() {
+                if (next >= to) throw new NoSuchElementException();
+                return get(next++);
+            }
+        };
+    }
+
+    private int check(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Token " + index + " of " + size);
+        return index;
+    }
+}
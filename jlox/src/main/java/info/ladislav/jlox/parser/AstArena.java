@@ -0,0 +1,589 @@
+package info.ladislav.jlox.parser;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import info.ladislav.jlox.ErrorReporter;
+import info.ladislav.jlox.lexer.Token;
+import info.ladislav.jlox.lexer.TokenType;
+
+/**
+ * Syntax trees stored as rows of flat int arrays instead of one object per
+ * node and token, for programs too large to keep as objects.
+ *
+ * A node is an index into kind, token, first, second and third. Which of the
+ * last three are used depends on the kind, see the constants below; an absent
+ * child is -1, a list is an offset into lists holding its size followed by its
+ * items. Tokens are rows of type, lexeme and line, with each lexeme stored
+ * once in a pool; a token's literal is read off its lexeme like the scanner
+ * does. Locals carry the depth the resolver gave them plus one, 0 for globals.
+ *
+ * Compilers can walk the arrays directly with the accessors. The interpreter
+ * runs {@link #statement(int, Interpreter)}, which turns a root back into
+ * objects but leaves every function body in the arena until its first call.
+ */
+public final class AstArena {
+
+    // Expressions.
+    /** token: name, first: value, second: depth + 1. */
+    public static final int ASSIGN = 0;
+    /** token: operator, first: left, second: right. */
+    public static final int BINARY = 1;
+    /** token: paren, first: callee, second: list of arguments. */
+    public static final int CALL = 2;
+    /** token: name, first: object. */
+    public static final int GET = 3;
+    /** first: condition, second: if true, third: if false. */
+    public static final int TERNARY = 4;
+    /** first: expression. */
+    public static final int GROUPING = 5;
+    /** first: index of the value in the literal pool. */
+    public static final int LITERAL = 6;
+    /** token: operator, first: left, second: right. */
+    public static final int LOGICAL = 7;
+    /** token: name, first: object, second: value. */
+    public static final int SET = 8;
+    /** token: keyword, first: method token, second: depth + 1. */
+    public static final int SUPER = 9;
+    /** token: keyword, first: depth + 1. */
+    public static final int THIS = 10;
+    /** first: list of parameter tokens, second: list of body statements. */
+    public static final int FUNCTION_EXPR = 11;
+    /** token: operator, first: operand. */
+    public static final int UNARY = 12;
+    /** token: name, first: depth + 1. */
+    public static final int VARIABLE = 13;
+
+    // Statements.
+    /** first: list of statements. */
+    public static final int BLOCK = 14;
+    /** token: name, first: superclass variable, second: list of method statements. */
+    public static final int CLASS = 15;
+    /** first: expression. */
+    public static final int EXPRESSION = 16;
+    /** token: name, first: function expression. */
+    public static final int FUNCTION_STMT = 17;
+    /** first: condition, second: then branch, third: else branch. */
+    public static final int IF = 18;
+    /** first: expression. */
+    public static final int PRINT = 19;
+    /** token: keyword, first: value. */
+    public static final int RETURN = 20;
+    /** token: name, first: initializer. */
+    public static final int VAR = 21;
+    /** first: condition, second: body. */
+    public static final int WHILE = 22;
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    /** Key of nil in the literal pool index, which cannot hold null. */
+    private static final Object NIL = new Object();
+
+    private byte[] kinds = new byte[1024];
+    private int[] nodeTokens = new int[1024];
+    private int[] firsts = new int[1024];
+    private int[] seconds = new int[1024];
+    private int[] thirds = new int[1024];
+    private int nodes = 0;
+
+    private byte[] tokenTypes = new byte[1024];
+    private int[] tokenLexemes = new int[1024];
+    private int[] tokenLines = new int[1024];
+    private int tokens = 0;
+
+    private int[] lists = new int[1024];
+    private int listsSize = 0;
+
+    private final List<String> lexemes = new ArrayList<>();
+    private final Map<String, Integer> lexemeIndex = new HashMap<>();
+    private final List<Object> literals = new ArrayList<>();
+    private final Map<Object, Integer> literalIndex = new HashMap<>();
+
+    /**
+     * Appends a parsed and resolved statement, taking the depths of its locals
+     * from the map, and returns its node. The statement itself can be dropped
+     * afterwards.
+     */
+    public int add(Stmt statement, Map<Expr, Integer> depths) {
+        return new Flattener(depths).stmt(statement);
+    }
+
+    /**
+     * Parses, resolves and appends the declarations of a parser one at a time,
+     * so no more than one of them is ever held as objects, and returns their
+     * nodes. Errors go to the reporter; declarations with syntax errors are
+     * left out.
+     */
+    public int[] addAll(Parser parser, ErrorReporter reporter) {
+        Map<Expr, Integer> depths = new HashMap<>();
+        Resolver resolver = new Resolver(depths::put, reporter);
+
+        int[] roots = new int[16];
+        int size = 0;
+        while (parser.hasNextDeclaration()) {
+            Stmt statement = parser.nextDeclaration();
+            if (statement == null) continue;
+
+            resolver.resolve(statement);
+            if (size == roots.length) {
+                roots = Arrays.copyOf(roots, size * 2);
+            }
+            roots[size++] = add(statement, depths);
+            depths.clear();
+        }
+        trim();
+        return Arrays.copyOf(roots, size);
+    }
+
+    /** Drops the room left for growth, up to half of the arrays. */
+    private void trim() {
+        kinds = Arrays.copyOf(kinds, nodes);
+        nodeTokens = Arrays.copyOf(nodeTokens, nodes);
+        firsts = Arrays.copyOf(firsts, nodes);
+        seconds = Arrays.copyOf(seconds, nodes);
+        thirds = Arrays.copyOf(thirds, nodes);
+        tokenTypes = Arrays.copyOf(tokenTypes, tokens);
+        tokenLexemes = Arrays.copyOf(tokenLexemes, tokens);
+        tokenLines = Arrays.copyOf(tokenLines, tokens);
+        lists = Arrays.copyOf(lists, listsSize);
+    }
+
+    // Direct access.
+
+    public int size() {
+        return nodes;
+    }
+
+    public int kind(int node) {
+        return kinds[node];
+    }
+
+    /** Token of the node, or -1 if it has none. */
+    public int token(int node) {
+        return nodeTokens[node];
+    }
+
+    public int first(int node) {
+        return firsts[node];
+    }
+
+    public int second(int node) {
+        return seconds[node];
+    }
+
+    public int third(int node) {
+        return thirds[node];
+    }
+
+    public int listSize(int list) {
+        return lists[list];
+    }
+
+    public int listItem(int list, int index) {
+        return lists[list + 1 + index];
+    }
+
+    public TokenType tokenType(int token) {
+        return TOKEN_TYPES[tokenTypes[token]];
+    }
+
+    public String lexeme(int token) {
+        return lexemes.get(tokenLexemes[token]);
+    }
+
+    public int line(int token) {
+        return tokenLines[token];
+    }
+
+    public Object literal(int literal) {
+        return literals.get(literal);
+    }
+
+    /** Approximate bytes held by the arrays and pools, for comparing with object trees. */
+    public long footprint() {
+        long bytes = kinds.length + 4L * (nodeTokens.length + firsts.length + seconds.length + thirds.length)
+            + tokenTypes.length + 4L * (tokenLexemes.length + tokenLines.length) + 4L * lists.length;
+        for (String lexeme : lexemes) {
+            bytes += 56 + lexeme.length();
+        }
+        return bytes + 24L * literals.size();
+    }
+
+    // Back to objects, for the interpreter.
+
+    /**
+     * The statement of a node, with the depths of its locals registered in the
+     * interpreter. Function bodies are only turned into objects on first use.
+     */
+    public Stmt statement(int node, Interpreter interpreter) {
+        return new Inflater(interpreter).stmt(node);
+    }
+
+    /** Function body left in the arena until the interpreter or anyone else looks at it. */
+    private final class Body extends AbstractList<Stmt> {
+
+        private final int list;
+        private final Interpreter interpreter;
+        private volatile List<Stmt> statements;
+
+        Body(int list, Interpreter interpreter) {
+            this.list = list;
+            this.interpreter = interpreter;
+        }
+
+        private List<Stmt> statements() {
+            List<Stmt> statements = this.statements;
+            if (statements == null) {
+                synchronized (this) {
+                    statements = this.statements;
+                    if (statements == null) {
+                        statements = new Inflater(interpreter).stmts(list);
+                        this.statements = statements;
+                    }
+                }
+            }
+            return statements;
+        }
+
+        @Override
+        public Stmt get(int index) {
+            return statements().get(index);
+        }
+
+        @Override
+        public int size() {
+            return listSize(list);
+        }
+    }
+
+    private final class Inflater {
+
+        private final Interpreter interpreter;
+
+        Inflater(Interpreter interpreter) {
+            this.interpreter = interpreter;
+        }
+
+        List<Stmt> stmts(int list) {
+            int size = listSize(list);
+            List<Stmt> statements = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                statements.add(stmt(listItem(list, i)));
+            }
+            return statements;
+        }
+
+        Stmt stmt(int node) {
+            if (node < 0) return null;
+            switch (kinds[node]) {
+                case BLOCK:
+                    return new Stmt.Block(stmts(firsts[node]));
+                case CLASS: {
+                    int list = seconds[node];
+                    List<Stmt.Function> methods = new ArrayList<>(listSize(list));
+                    for (int i = 0; i < listSize(list); i++) {
+                        methods.add((Stmt.Function) stmt(listItem(list, i)));
+                    }
+                    return new Stmt.Class(token(nodeTokens[node]), (Expr.Variable) expr(firsts[node]), methods);
+                }
+                case EXPRESSION:
+                    return new Stmt.Expression(expr(firsts[node]));
+                case FUNCTION_STMT:
+                    return new Stmt.Function(token(nodeTokens[node]), (Expr.Function) expr(firsts[node]));
+                case IF:
+                    return new Stmt.If(expr(firsts[node]), stmt(seconds[node]), stmt(thirds[node]));
+                case PRINT:
+                    return new Stmt.Print(expr(firsts[node]));
+                case RETURN:
+                    return new Stmt.Return(token(nodeTokens[node]), expr(firsts[node]));
+                case VAR:
+                    return new Stmt.Var(token(nodeTokens[node]), expr(firsts[node]));
+                case WHILE:
+                    return new Stmt.While(expr(firsts[node]), stmt(seconds[node]));
+                default:
+                    throw new IllegalArgumentException("Not a statement: " + node);
+            }
+        }
+
+        Expr expr(int node) {
+            if (node < 0) return null;
+            switch (kinds[node]) {
+                case ASSIGN:
+                    return resolved(new Expr.Assign(token(nodeTokens[node]), expr(firsts[node])), seconds[node]);
+                case BINARY:
+                    return new Expr.Binary(expr(firsts[node]), token(nodeTokens[node]), expr(seconds[node]));
+                case CALL: {
+                    int list = seconds[node];
+                    List<Expr> arguments = new ArrayList<>(listSize(list));
+                    for (int i = 0; i < listSize(list); i++) {
+                        arguments.add(expr(listItem(list, i)));
+                    }
+                    return new Expr.Call(expr(firsts[node]), token(nodeTokens[node]), arguments);
+                }
+                case GET:
+                    return new Expr.Get(expr(firsts[node]), token(nodeTokens[node]));
+                case TERNARY:
+                    return new Expr.Ternary(expr(firsts[node]), expr(seconds[node]), expr(thirds[node]));
+                case GROUPING:
+                    return new Expr.Grouping(expr(firsts[node]));
+                case LITERAL:
+                    return new Expr.Literal(literals.get(firsts[node]));
+                case LOGICAL:
+                    return new Expr.Logical(expr(firsts[node]), token(nodeTokens[node]), expr(seconds[node]));
+                case SET:
+                    return new Expr.Set(expr(firsts[node]), token(nodeTokens[node]), expr(seconds[node]));
+                case SUPER:
+                    return resolved(new Expr.Super(token(nodeTokens[node]), token(firsts[node])), seconds[node]);
+                case THIS:
+                    return resolved(new Expr.This(token(nodeTokens[node])), firsts[node]);
+                case FUNCTION_EXPR: {
+                    int list = firsts[node];
+                    List<Token> parameters = new ArrayList<>(listSize(list));
+                    for (int i = 0; i < listSize(list); i++) {
+                        parameters.add(token(listItem(list, i)));
+                    }
+                    return new Expr.Function(parameters, new Body(seconds[node], interpreter));
+                }
+                case UNARY:
+                    return new Expr.Unary(token(nodeTokens[node]), expr(firsts[node]));
+                case VARIABLE:
+                    return resolved(new Expr.Variable(token(nodeTokens[node])), firsts[node]);
+                default:
+                    throw new IllegalArgumentException("Not an expression: " + node);
+            }
+        }
+
+        private Expr resolved(Expr expr, int depth) {
+            if (depth > 0) {
+                interpreter.resolve(expr, depth - 1);
+            }
+            return expr;
+        }
+
+        private Token token(int token) {
+            TokenType type = tokenType(token);
+            String lexeme = lexeme(token);
+            Object literal = null;
+            if (type == TokenType.NUMBER) {
+                literal = Double.parseDouble(lexeme);
+            } else if (type == TokenType.STRING) {
+                literal = lexeme.substring(1, lexeme.length() - 1);
+            }
+            return new Token(type, lexeme, literal, tokenLines[token]);
+        }
+    }
+
+    private final class Flattener implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+
+        private final Map<Expr, Integer> depths;
+
+        Flattener(Map<Expr, Integer> depths) {
+            this.depths = depths;
+        }
+
+        int stmt(Stmt stmt) {
+            return stmt == null ? -1 : stmt.accept(this);
+        }
+
+        int expr(Expr expr) {
+            return expr == null ? -1 : expr.accept(this);
+        }
+
+        private int node(int kind, Token token, int first, int second, int third) {
+            if (nodes == kinds.length) {
+                int capacity = Math.max(nodes * 2, 1024);
+                kinds = Arrays.copyOf(kinds, capacity);
+                nodeTokens = Arrays.copyOf(nodeTokens, capacity);
+                firsts = Arrays.copyOf(firsts, capacity);
+                seconds = Arrays.copyOf(seconds, capacity);
+                thirds = Arrays.copyOf(thirds, capacity);
+            }
+            kinds[nodes] = (byte) kind;
+            nodeTokens[nodes] = token == null ? -1 : token(token);
+            firsts[nodes] = first;
+            seconds[nodes] = second;
+            thirds[nodes] = third;
+            return nodes++;
+        }
+
+        private int token(Token token) {
+            if (tokens == tokenTypes.length) {
+                int capacity = Math.max(tokens * 2, 1024);
+                tokenTypes = Arrays.copyOf(tokenTypes, capacity);
+                tokenLexemes = Arrays.copyOf(tokenLexemes, capacity);
+                tokenLines = Arrays.copyOf(tokenLines, capacity);
+            }
+            Integer lexeme = lexemeIndex.get(token.lexeme);
+            if (lexeme == null) {
+                lexeme = lexemes.size();
+                lexemes.add(token.lexeme);
+                lexemeIndex.put(token.lexeme, lexeme);
+            }
+            tokenTypes[tokens] = (byte) token.type.ordinal();
+            tokenLexemes[tokens] = lexeme;
+            tokenLines[tokens] = token.line;
+            return tokens++;
+        }
+
+        /** Children are flattened before the list is written, so lists never interleave. */
+        private int list(int[] items) {
+            if (listsSize + items.length + 1 > lists.length) {
+                lists = Arrays.copyOf(lists, Math.max(lists.length * 2, listsSize + items.length + 1));
+            }
+            int list = listsSize;
+            lists[listsSize++] = items.length;
+            System.arraycopy(items, 0, lists, listsSize, items.length);
+            listsSize += items.length;
+            return list;
+        }
+
+        private int stmts(List<? extends Stmt> statements) {
+            int[] items = new int[statements.size()];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = stmt(statements.get(i));
+            }
+            return list(items);
+        }
+
+        private int depth(Expr expr) {
+            Integer depth = depths.get(expr);
+            return depth == null ? 0 : depth + 1;
+        }
+
+        @Override
+        public Integer visitAssignExpr(Expr.Assign expr) {
+            return node(ASSIGN, expr.name, expr(expr.value), depth(expr), -1);
+        }
+
+        @Override
+        public Integer visitBinaryExpr(Expr.Binary expr) {
+            return node(BINARY, expr.operator, expr(expr.left), expr(expr.right), -1);
+        }
+
+        @Override
+        public Integer visitCallExpr(Expr.Call expr) {
+            int callee = expr(expr.callee);
+            int[] items = new int[expr.arguments.size()];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = expr(expr.arguments.get(i));
+            }
+            return node(CALL, expr.paren, callee, list(items), -1);
+        }
+
+        @Override
+        public Integer visitGetExpr(Expr.Get expr) {
+            return node(GET, expr.name, expr(expr.object), -1, -1);
+        }
+
+        @Override
+        public Integer visitTernaryExpr(Expr.Ternary expr) {
+            return node(TERNARY, null, expr(expr.condition), expr(expr.if_true), expr(expr.if_false));
+        }
+
+        @Override
+        public Integer visitGroupingExpr(Expr.Grouping expr) {
+            return node(GROUPING, null, expr(expr.expression), -1, -1);
+        }
+
+        @Override
+        public Integer visitLiteralExpr(Expr.Literal expr) {
+            Integer literal = literalIndex.get(expr.value == null ? NIL : expr.value);
+            if (literal == null) {
+                literal = literals.size();
+                literals.add(expr.value);
+                literalIndex.put(expr.value == null ? NIL : expr.value, literal);
+            }
+            return node(LITERAL, null, literal, -1, -1);
+        }
+
+        @Override
+        public Integer visitLogicalExpr(Expr.Logical expr) {
+            return node(LOGICAL, expr.operator, expr(expr.left), expr(expr.right), -1);
+        }
+
+        @Override
+        public Integer visitSetExpr(Expr.Set expr) {
+            return node(SET, expr.name, expr(expr.object), expr(expr.value), -1);
+        }
+
+        @Override
+        public Integer visitSuperExpr(Expr.Super expr) {
+            return node(SUPER, expr.keyword, token(expr.method), depth(expr), -1);
+        }
+
+        @Override
+        public Integer visitThisExpr(Expr.This expr) {
+            return node(THIS, expr.keyword, depth(expr), -1, -1);
+        }
+
+        @Override
+        public Integer visitFunctionExpr(Expr.Function expr) {
+            int[] parameters = new int[expr.parameters.size()];
+            for (int i = 0; i < parameters.length; i++) {
+                parameters[i] = token(expr.parameters.get(i));
+            }
+            int body = stmts(expr.body);
+            return node(FUNCTION_EXPR, null, list(parameters), body, -1);
+        }
+
+        @Override
+        public Integer visitUnaryExpr(Expr.Unary expr) {
+            return node(UNARY, expr.operator, expr(expr.right), -1, -1);
+        }
+
+        @Override
+        public Integer visitVariableExpr(Expr.Variable expr) {
+            return node(VARIABLE, expr.name, depth(expr), -1, -1);
+        }
+
+        @Override
+        public Integer visitBlockStmt(Stmt.Block stmt) {
+            return node(BLOCK, null, stmts(stmt.statements), -1, -1);
+        }
+
+        @Override
+        public Integer visitClassStmt(Stmt.Class stmt) {
+            int superclass = expr(stmt.superclass);
+            return node(CLASS, stmt.name, superclass, stmts(stmt.methods), -1);
+        }
+
+        @Override
+        public Integer visitExpressionStmt(Stmt.Expression stmt) {
+            return node(EXPRESSION, null, expr(stmt.expression), -1, -1);
+        }
+
+        @Override
+        public Integer visitFunctionStmt(Stmt.Function stmt) {
+            return node(FUNCTION_STMT, stmt.name, expr(stmt.function), -1, -1);
+        }
+
+        @Override
+        public Integer visitIfStmt(Stmt.If stmt) {
+            return node(IF, null, expr(stmt.condition), stmt(stmt.thenBranch), stmt(stmt.elseBranch));
+        }
+
+        @Override
+        public Integer visitPrintStmt(Stmt.Print stmt) {
+            return node(PRINT, null, expr(stmt.expression), -1, -1);
+        }
+
+        @Override
+        public Integer visitReturnStmt(Stmt.Return stmt) {
+            return node(RETURN, stmt.keyword, expr(stmt.value), -1, -1);
+        }
+
+        @Override
+        public Integer visitVarStmt(Stmt.Var stmt) {
+            return node(VAR, stmt.name, expr(stmt.initializer), -1, -1);
+        }
+
+        @Override
+        public Integer visitWhileStmt(Stmt.While stmt) {
+            return node(WHILE, null, expr(stmt.condition), stmt(stmt.body), -1);
+        }
+    }
+}
@@ -0,0 +1,633 @@
+package info.ladislav.jlox.parser;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import info.ladislav.jlox.lexer.Token;
+import info.ladislav.jlox.lexer.TokenType;
+
+/**
+ * Directory of parsed and resolved programs, so a script that did not change
+ * since its last run skips the scanner, parser and resolver.
+ *
+ * Entries are named by the SHA-256 of the source and its charset, so an edited
+ * script simply misses and gets a new entry. Each entry starts with a format
+ * version; an entry of another version, or one that cannot be read, is a miss
+ * as well and is overwritten by the next store. Entries are written by
+ * {@link CacheEntries}, so concurrent runs never see half an entry.
+ *
+ * The format is a pre-order walk of the tree: one tag byte per node, varints
+ * for depths and sizes, and every string once, referred to by index
+ * afterwards. A token is its type, its lexeme and the distance to the line of
+ * the token before it; its literal is read off the lexeme again. Variables,
+ * assignments, this and super carry the depth the resolver gave them plus
+ * one, or 0 for globals.
+ */
+public class AstCache {
+
+    /** Bump on any change to the format or to the trees the parser builds. */
+    static final int VERSION = 2;
+    private static final int MAGIC = 0x4c4f5841; // "LOXA"
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    // Node tags.
+    private static final int ASSIGN = 1, BINARY = 2, CALL = 3, GET = 4, TERNARY = 5, GROUPING = 6,
+        LITERAL = 7, LOGICAL = 8, SET = 9, SUPER = 10, THIS = 11, FUNCTION_EXPR = 12, UNARY = 13,
+        VARIABLE = 14;
+    private static final int BLOCK = 32, CLASS = 33, EXPRESSION = 34, FUNCTION_STMT = 35, IF = 36,
+        PRINT = 37, RETURN = 38, VAR = 39, WHILE = 40;
+    private static final int NULL = 0;
+
+    // Value tags.
+    private static final int NIL = 0, FALSE = 1, TRUE = 2, NUMBER = 3, STRING = 4;
+
+    private final CacheEntries entries;
+
+    public AstCache(Path directory) {
+        this.entries = new CacheEntries(directory, ".ast");
+    }
+
+    /** Statements stored for this source with their resolved depths registered in the interpreter, or null. */
+    public List<Stmt> load(byte[] source, Charset charset, Interpreter interpreter) {
+        try {
+            // Depths of an entry that turns out broken half way stay registered
+            // for expressions that are never evaluated, which is harmless.
+            return new Reader(Files.readAllBytes(entry(source, charset)), interpreter).program();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // Truncated, corrupt or of another version: parse the source again.
+            return null;
+        }
+    }
+
+    /**
+     * Stores statements that were parsed from this source and resolved for this
+     * interpreter without errors. Failing to write is not an error, the next
+     * run just parses again.
+     */
+    public void store(byte[] source, Charset charset, List<Stmt> statements, Interpreter interpreter) {
+        try {
+            Writer writer = new Writer(interpreter);
+            writer.program(statements);
+            entries.write(entry(source, charset), writer.bytes, writer.size);
+        } catch (IOException | RuntimeException e) {
+            // Read only or full disk: keep running uncached.
+        }
+    }
+
+    Path entry(byte[] source, Charset charset) {
+        return entries.entry(source, charset);
+    }
+
+    private static final class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+        private final Interpreter interpreter;
+        private final Map<String, Integer> strings = new HashMap<>();
+        private int line = 0;
+
+        byte[] bytes = new byte[1 << 12];
+        int size = 0;
+
+        Writer(Interpreter interpreter) {
+            this.interpreter = interpreter;
+        }
+
+        void program(List<Stmt> statements) {
+            writeInt(MAGIC);
+            writeInt(VERSION);
+            statements(statements);
+        }
+
+        private void statements(List<Stmt> statements) {
+            size(statements.size());
+            for (Stmt statement : statements) {
+                stmt(statement);
+            }
+        }
+
+        private void stmt(Stmt stmt) {
+            if (stmt == null) {
+                tag(NULL);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        private void expr(Expr expr) {
+            if (expr == null) {
+                tag(NULL);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void depth(Expr expr) {
+            Integer depth = interpreter.depth(expr);
+            size(depth == null ? 0 : depth + 1);
+        }
+
+        /** The literal is left out, the reader gets it from the lexeme like the scanner did. */
+        private void token(Token token) {
+            tag(token.type.ordinal());
+            string(token.lexeme);
+            // Zigzag encoded distance to the line of the previous token, mostly 0 or 1.
+            int delta = token.line - line;
+            size((delta << 1) ^ (delta >> 31));
+            line = token.line;
+        }
+
+        private void tokens(List<Token> tokens) {
+            size(tokens.size());
+            for (Token token : tokens) {
+                token(token);
+            }
+        }
+
+        private void value(Object value) {
+            if (value == null) {
+                tag(NIL);
+            } else if (value instanceof Boolean) {
+                tag((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                tag(NUMBER);
+                long bits = Double.doubleToRawLongBits((Double) value);
+                writeInt((int) (bits >>> 32));
+                writeInt((int) bits);
+            } else if (value instanceof String) {
+                tag(STRING);
+                string((String) value);
+            } else {
+                throw new IllegalArgumentException("Cannot store a literal of " + value.getClass());
+            }
+        }
+
+        private void string(String string) {
+            Integer index = strings.get(string);
+            if (index != null) {
+                size(index);
+            } else {
+                size(strings.size());
+                strings.put(string, strings.size());
+                byte[] encoded = string.getBytes(StandardCharsets.UTF_8);
+                size(encoded.length);
+                reserve(encoded.length);
+                System.arraycopy(encoded, 0, bytes, size, encoded.length);
+                size += encoded.length;
+            }
+        }
+
+        private void tag(int tag) {
+            reserve(1);
+            bytes[size++] = (byte) tag;
+        }
+
+        private void writeInt(int value) {
+            reserve(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        /** Unsigned LEB128, most depths, sizes and string indices take a single byte. */
+        private void size(int value) {
+            reserve(5);
+            while ((value & ~0x7f) != 0) {
+                bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        private void reserve(int length) {
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+            }
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            tag(ASSIGN);
+            token(expr.name);
+            expr(expr.value);
+            depth(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            tag(BINARY);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            tag(CALL);
+            expr(expr.callee);
+            token(expr.paren);
+            size(expr.arguments.size());
+            for (Expr argument : expr.arguments) {
+                expr(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            tag(GET);
+            expr(expr.object);
+            token(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            tag(TERNARY);
+            expr(expr.condition);
+            expr(expr.if_true);
+            expr(expr.if_false);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            tag(GROUPING);
+            expr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            tag(LITERAL);
+            value(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            tag(LOGICAL);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            tag(SET);
+            expr(expr.object);
+            token(expr.name);
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            tag(SUPER);
+            token(expr.keyword);
+            token(expr.method);
+            depth(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            tag(THIS);
+            token(expr.keyword);
+            depth(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionExpr(Expr.Function expr) {
+            tag(FUNCTION_EXPR);
+            function(expr);
+            return null;
+        }
+
+        private void function(Expr.Function function) {
+            tokens(function.parameters);
+            statements(function.body);
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            tag(UNARY);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            tag(VARIABLE);
+            token(expr.name);
+            depth(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            tag(BLOCK);
+            statements(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            tag(CLASS);
+            token(stmt.name);
+            expr(stmt.superclass);
+            size(stmt.methods.size());
+            for (Stmt.Function method : stmt.methods) {
+                method.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            tag(EXPRESSION);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            tag(FUNCTION_STMT);
+            token(stmt.name);
+            function(stmt.function);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            tag(IF);
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            tag(PRINT);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            tag(RETURN);
+            token(stmt.keyword);
+            expr(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            tag(VAR);
+            token(stmt.name);
+            expr(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            tag(WHILE);
+            expr(stmt.condition);
+            stmt(stmt.body);
+            return null;
+        }
+    }
+
+    private static final class Reader {
+
+        private final byte[] bytes;
+        private int position = 0;
+        private final Interpreter interpreter;
+        private final List<String> strings = new ArrayList<>();
+        private int line = 0;
+
+        Reader(byte[] bytes, Interpreter interpreter) {
+            this.bytes = bytes;
+            this.interpreter = interpreter;
+        }
+
+        List<Stmt> program() throws IOException {
+            if (readInt() != MAGIC || readInt() != VERSION) {
+                throw new IOException("Not an AST cache entry of version " + VERSION);
+            }
+            List<Stmt> statements = statements();
+            if (position != bytes.length) {
+                throw new IOException("Trailing bytes");
+            }
+            return statements;
+        }
+
+        private List<Stmt> statements() throws IOException {
+            int size = size();
+            List<Stmt> statements = new ArrayList<>(Math.min(size, 1024));
+            for (int i = 0; i < size; i++) {
+                statements.add(stmt());
+            }
+            return statements;
+        }
+
+        private Stmt stmt() throws IOException {
+            int tag = tag();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case BLOCK:
+                    return new Stmt.Block(statements());
+                case CLASS: {
+                    Token name = token();
+                    Expr.Variable superclass = (Expr.Variable) expr();
+                    int size = size();
+                    List<Stmt.Function> methods = new ArrayList<>(Math.min(size, 1024));
+                    for (int i = 0; i < size; i++) {
+                        methods.add((Stmt.Function) stmt());
+                    }
+                    return new Stmt.Class(name, superclass, methods);
+                }
+                case EXPRESSION:
+                    return new Stmt.Expression(expr());
+                case FUNCTION_STMT:
+                    return new Stmt.Function(token(), function());
+                case IF:
+                    return new Stmt.If(expr(), stmt(), stmt());
+                case PRINT:
+                    return new Stmt.Print(expr());
+                case RETURN:
+                    return new Stmt.Return(token(), expr());
+                case VAR:
+                    return new Stmt.Var(token(), expr());
+                case WHILE:
+                    return new Stmt.While(expr(), stmt());
+                default:
+                    throw new IOException("Unknown statement tag " + tag);
+            }
+        }
+
+        private Expr expr() throws IOException {
+            int tag = tag();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case ASSIGN:
+                    return resolved(new Expr.Assign(token(), expr()));
+                case BINARY:
+                    return new Expr.Binary(expr(), token(), expr());
+                case CALL: {
+                    Expr callee = expr();
+                    Token paren = token();
+                    int size = size();
+                    List<Expr> arguments = new ArrayList<>(Math.min(size, 256));
+                    for (int i = 0; i < size; i++) {
+                        arguments.add(expr());
+                    }
+                    return new Expr.Call(callee, paren, arguments);
+                }
+                case GET:
+                    return new Expr.Get(expr(), token());
+                case TERNARY:
+                    return new Expr.Ternary(expr(), expr(), expr());
+                case GROUPING:
+                    return new Expr.Grouping(expr());
+                case LITERAL:
+                    return new Expr.Literal(value());
+                case LOGICAL:
+                    return new Expr.Logical(expr(), token(), expr());
+                case SET:
+                    return new Expr.Set(expr(), token(), expr());
+                case SUPER:
+                    return resolved(new Expr.Super(token(), token()));
+                case THIS:
+                    return resolved(new Expr.This(token()));
+                case FUNCTION_EXPR:
+                    return function();
+                case UNARY:
+                    return new Expr.Unary(token(), expr());
+                case VARIABLE:
+                    return resolved(new Expr.Variable(token()));
+                default:
+                    throw new IOException("Unknown expression tag " + tag);
+            }
+        }
+
+        private Expr.Function function() throws IOException {
+            int size = size();
+            List<Token> parameters = new ArrayList<>(Math.min(size, 256));
+            for (int i = 0; i < size; i++) {
+                parameters.add(token());
+            }
+            return new Expr.Function(parameters, statements());
+        }
+
+        private Expr resolved(Expr expr) throws IOException {
+            int depth = size();
+            if (depth > 0) {
+                interpreter.resolve(expr, depth - 1);
+            }
+            return expr;
+        }
+
+        private Token token() throws IOException {
+            int type = tag();
+            if (type >= TOKEN_TYPES.length) {
+                throw new IOException("Unknown token type " + type);
+            }
+            String lexeme = string();
+            int delta = size();
+            line += (delta >>> 1) ^ -(delta & 1);
+
+            Object literal = null;
+            if (type == TokenType.NUMBER.ordinal()) {
+                literal = Double.parseDouble(lexeme);
+            } else if (type == TokenType.STRING.ordinal()) {
+                literal = lexeme.substring(1, lexeme.length() - 1);
+            }
+            return new Token(TOKEN_TYPES[type], lexeme, literal, line);
+        }
+
+        private Object value() throws IOException {
+            int tag = tag();
+            switch (tag) {
+                case NIL:
+                    return null;
+                case FALSE:
+                    return false;
+                case TRUE:
+                    return true;
+                case NUMBER:
+                    long high = readInt();
+                    return Double.longBitsToDouble(high << 32 | (readInt() & 0xffffffffL));
+                case STRING:
+                    return string();
+                default:
+                    throw new IOException("Unknown value tag " + tag);
+            }
+        }
+
+        private String string() throws IOException {
+            int index = size();
+            if (index < strings.size()) {
+                return strings.get(index);
+            }
+            if (index != strings.size()) {
+                throw new IOException("String index out of order");
+            }
+            int length = size();
+            if (length > bytes.length - position) {
+                throw new EOFException();
+            }
+            String string = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            strings.add(string);
+            return string;
+        }
+
+        private int tag() throws IOException {
+            if (position == bytes.length) {
+                throw new EOFException();
+            }
+            return bytes[position++] & 0xff;
+        }
+
+        private int readInt() throws IOException {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = value << 8 | tag();
+            }
+            return value;
+        }
+
+        private int size() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = tag();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) throw new IOException("Negative size");
+                    return value;
+                }
+            }
+            throw new EOFException("Varint too long");
+        }
+    }
+}
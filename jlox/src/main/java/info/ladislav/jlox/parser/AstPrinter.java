@@ -1,5 +1,7 @@
 package info.ladislav.jlox.parser;
 
+import java.util.List;
+
 import info.ladislav.jlox.lexer.Token;
 import info.ladislav.jlox.lexer.TokenType;
 import info.ladislav.jlox.parser.Expr.Assign;
@@ -17,7 +19,7 @@ import info.ladislav.jlox.parser.Expr.This;
 import info.ladislav.jlox.parser.Expr.Unary;
 import info.ladislav.jlox.parser.Expr.Variable;
 
-public class AstPrinter implements Expr.Visitor<String> {
+public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
 
     public static void main(String[] args) {
         Expr expression = new Expr.Binary(new Expr.Literal(123), new Token(TokenType.COMMA, ",", null, 1),
@@ -30,6 +32,19 @@ public class AstPrinter implements Expr.Visitor<String> {
         return expr.accept(this);
     }
 
+    public String print(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    /** One line per top level statement. */
+    public String print(List<Stmt> statements) {
+        StringBuilder builder = new StringBuilder();
+        for (Stmt stmt : statements) {
+            builder.append(stmt == null ? "(error)" : stmt.accept(this)).append('\n');
+        }
+        return builder.toString();
+    }
+
     @Override
     public String visitBinaryExpr(Binary expr) {
         return parenthesize(expr.operator.lexeme, expr.left, expr.right);
@@ -45,6 +60,8 @@ public class AstPrinter implements Expr.Visitor<String> {
     public String visitLiteralExpr(Literal expr) {
         if (expr.value == null)
             return "nil";
+        if (expr.value instanceof String)
+            return "\"" + expr.value + "\"";
         return expr.value.toString();
     }
 
@@ -61,68 +78,145 @@ public class AstPrinter implements Expr.Visitor<String> {
     private String parenthesize(String name, Expr... exprs) {
         StringBuilder builder = new StringBuilder();
 
-        builder.append("(");
+        builder.append("(").append(name);
         for (Expr expr : exprs) {
             builder.append(" ");
             builder.append(expr.accept(this));
         }
-        builder.append(name).append(")");
+        builder.append(")");
 
         return builder.toString();
     }
 
     @Override
     public String visitVariableExpr(Variable expr) {
-        // TODO Auto-generated method stub
-        return null;
+        return expr.name.lexeme;
     }
 
     @Override
     public String visitAssignExpr(Assign expr) {
-        // TODO Auto-generated method stub
-        return null;
+        return parenthesize("= " + expr.name.lexeme, expr.value);
     }
 
     @Override
     public String visitLogicalExpr(Logical expr) {
-        // TODO Auto-generated method stub
-        return null;
+        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
     }
 
     @Override
     public String visitCallExpr(Call expr) {
-        // TODO Auto-generated method stub
-        return null;
+        Expr[] parts = new Expr[expr.arguments.size() + 1];
+        parts[0] = expr.callee;
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            parts[i + 1] = expr.arguments.get(i);
+        }
+        return parenthesize("call", parts);
     }
 
     @Override
     public String visitFunctionExpr(Function expr) {
-        // TODO Auto-generated method stub
-        return null;
+        return function("fun", expr);
     }
 
     @Override
     public String visitGetExpr(Get expr) {
-        // TODO Auto-generated method stub
-        return null;
+        return parenthesize(". " + expr.name.lexeme, expr.object);
     }
 
     @Override
     public String visitSetExpr(Set expr) {
-        // TODO Auto-generated method stub
-        return null;
+        return parenthesize("=. " + expr.name.lexeme, expr.object, expr.value);
     }
 
     @Override
     public String visitThisExpr(This expr) {
-        // TODO Auto-generated method stub
-        return null;
+        return "this";
     }
 
     @Override
     public String visitSuperExpr(Super expr) {
-        // TODO Auto-generated method stub
-        return null;
+        return "(super " + expr.method.lexeme + ")";
+    }
+
+    @Override
+    public String visitBlockStmt(Stmt.Block stmt) {
+        return block("block", stmt.statements);
+    }
+
+    @Override
+    public String visitClassStmt(Stmt.Class stmt) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(class ").append(stmt.name.lexeme);
+        if (stmt.superclass != null) {
+            builder.append(" < ").append(stmt.superclass.name.lexeme);
+        }
+        for (Stmt.Function method : stmt.methods) {
+            builder.append(" ").append(method.accept(this));
+        }
+        return builder.append(")").toString();
+    }
+
+    @Override
+    public String visitExpressionStmt(Stmt.Expression stmt) {
+        return parenthesize(";", stmt.expression);
+    }
+
+    @Override
+    public String visitFunctionStmt(Stmt.Function stmt) {
+        return function("fun " + stmt.name.lexeme, stmt.function);
+    }
+
+    @Override
+    public String visitIfStmt(Stmt.If stmt) {
+        String branches = stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) {
+            branches += " " + stmt.elseBranch.accept(this);
+        }
+        return "(if " + stmt.condition.accept(this) + " " + branches + ")";
+    }
+
+    @Override
+    public String visitPrintStmt(Stmt.Print stmt) {
+        return parenthesize("print", stmt.expression);
+    }
+
+    @Override
+    public String visitReturnStmt(Stmt.Return stmt) {
+        return stmt.value == null ? "(return)" : parenthesize("return", stmt.value);
+    }
+
+    @Override
+    public String visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return "(var " + stmt.name.lexeme + ")";
+        return parenthesize("var " + stmt.name.lexeme, stmt.initializer);
+    }
+
+    @Override
+    public String visitWhileStmt(Stmt.While stmt) {
+        return "(while " + stmt.condition.accept(this) + " " + stmt.body.accept(this) + ")";
+    }
+
+    private String function(String name, Function function) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(").append(name).append(" (");
+        for (int i = 0; i < function.parameters.size(); i++) {
+            if (i > 0) builder.append(" ");
+            builder.append(function.parameters.get(i).lexeme);
+        }
+        builder.append(")");
+        for (Stmt stmt : function.body) {
+            builder.append(" ").append(stmt.accept(this));
+        }
+        return builder.append(")").toString();
+    }
+
+    private String block(String name, List<Stmt> statements) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(").append(name);
+        for (Stmt stmt : statements) {
+            builder.append(" ").append(stmt.accept(this));
+        }
+        return builder.append(")").toString();
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,83 @@
+package info.ladislav.jlox.parser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Files of a directory keyed by a source, as {@link AstCache} and
+ * {@link Profile} keep them.
+ *
+ * An entry is named by the SHA-256 of the source and its charset plus a suffix
+ * of its kind. It is written to a temporary file first and moved into place,
+ * so concurrent runs never see half an entry.
+ */
+public final class CacheEntries {
+
+    private final Path directory;
+    private final String suffix;
+
+    CacheEntries(Path directory, String suffix) {
+        this.directory = directory;
+        this.suffix = suffix;
+    }
+
+    /** The SHA-256 of the bytes, also what {@link info.ladislav.jlox.LoxEngine} caches compiled scripts by. */
+    public static byte[] sha256(byte[] bytes) {
+        return digest().digest(bytes);
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    Path entry(byte[] source, Charset charset) {
+        MessageDigest digest = digest();
+        digest.update(charset.name().getBytes(StandardCharsets.US_ASCII));
+        digest.update((byte) 0);
+        digest.update(source);
+
+        StringBuilder name = new StringBuilder();
+        for (byte b : digest.digest()) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return directory.resolve(name.append(suffix).toString());
+    }
+
+    /** Replaces an entry with the first length bytes, leaving no temporary file behind if that fails. */
+    void write(Path entry, byte[] bytes, int length) throws IOException {
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, entry.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                out.write(bytes, 0, length);
+            }
+            try {
+                Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temporary = null;
+        } finally {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException e) {
+                    // Nothing else to do.
+                }
+            }
+        }
+    }
+}
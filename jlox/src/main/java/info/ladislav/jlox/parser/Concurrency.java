@@ -0,0 +1,245 @@
+package info.ladislav.jlox.parser;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The natives that run Lox on several threads:
+ *
+ * - spawn(fn) calls a function without parameters on the common
+ *   {@link ForkJoinPool} and returns a task,
+ * - await(task) waits for it and returns what the function returned, or
+ *   fails with its runtime error,
+ * - channel(n) creates a channel that holds up to n values, send(channel,
+ *   value) waits for room in it and receive(channel) for a value in it.
+ *
+ * Each task runs on an interpreter of its own that shares the globals of the
+ * one that spawned it. The scopes a function closes over are shared, see
+ * {@link Environment#share()}, when it is spawned or sent, or stored where
+ * another thread can read it. Waiting on a pool thread lets the pool start
+ * another one, so tasks waiting for each other cannot run out of threads.
+ * Cancelling the script, see {@link Interpreter#checkInterrupted()}, stops
+ * waiting, and interrupts the tasks the script spawned that are still
+ * running, see {@link Tasks#cancel()}, which then stop like the script. So
+ * does the script ending, as no task outlives it: a script awaits the tasks
+ * whose work it needs.
+ */
+final class Concurrency {
+
+    private Concurrency() {
+    }
+
+    /** What a channel holding nil holds, as queues take no nulls. */
+    private static final Object NIL = new Object();
+
+    static void define(Environment globals) {
+        globals.define("spawn", SPAWN);
+        globals.define("await", AWAIT);
+        globals.define("channel", CHANNEL);
+        globals.define("send", SEND);
+        globals.define("receive", RECEIVE);
+    }
+
+    /** The tasks of a script that have not finished, shared by its interpreter and their forks. */
+    static final class Tasks {
+        private final Set<Task> running = ConcurrentHashMap.newKeySet();
+        private volatile boolean cancelled = false;
+
+        private void add(Task task) {
+            running.add(task);
+            // Checked after adding, so a task spawned while cancel() runs is cancelled by one of them.
+            if (cancelled) task.cancel();
+        }
+
+        /** Interrupts the running tasks, and the ones spawned until {@link #reset()}. */
+        void cancel() {
+            cancelled = true;
+            for (Task task : running) {
+                task.cancel();
+            }
+        }
+
+        /** Lets tasks run again, for the next script of an interpreter. */
+        void reset() {
+            cancelled = false;
+        }
+    }
+
+    /** What spawn returns. */
+    private static final class Task extends RecursiveTask<Object> {
+        private static final long serialVersionUID = 1L;
+
+        /** The task whose thread runs this one, while it waits for it. */
+        private static final ThreadLocal<Task> CURRENT = new ThreadLocal<>();
+
+        private final LoxCallable function;
+        private final Interpreter interpreter;
+        private RuntimeError error;
+        /** Guarded by this, the thread running the task to interrupt on cancel. */
+        private Thread runner;
+        private volatile boolean cancelled = false;
+
+        Task(LoxCallable function, Interpreter interpreter) {
+            this.function = function;
+            this.interpreter = interpreter;
+        }
+
+        @Override
+        protected Object compute() {
+            Task outer = CURRENT.get();
+            CURRENT.set(this);
+            try {
+                synchronized (this) {
+                    if (cancelled) throw new RuntimeError("Interrupted.");
+                    runner = Thread.currentThread();
+                }
+                return function.call(interpreter, Collections.emptyList());
+            } catch (RuntimeError e) {
+                error = e;
+                return null;
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                    // The interrupt was for this task, not for what the thread runs next,
+                    // unless that is the task it ran this one for while waiting.
+                    if (cancelled && Thread.interrupted() && outer != null && outer.cancelled) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                CURRENT.set(outer);
+                interpreter.tasks.running.remove(this);
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (runner != null) runner.interrupt();
+        }
+
+        @Override
+        public String toString() {
+            return "<task>";
+        }
+    }
+
+    private static final class Channel {
+        final BlockingQueue<Object> values;
+
+        Channel(int capacity) {
+            values = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public String toString() {
+            return "<channel>";
+        }
+    }
+
+    private static final LoxCallable SPAWN = LoxCallable.of(1, (interpreter, args) -> {
+        Object callee = args.get(0);
+        if (!(callee instanceof LoxCallable) || ((LoxCallable) callee).arity() != 0) {
+            throw new RuntimeError("Can only spawn functions without parameters.");
+        }
+
+        interpreter.globals.share();
+        Environment.share(callee);
+        Task task = new Task((LoxCallable) callee, interpreter.fork());
+        interpreter.tasks.add(task);
+        ForkJoinPool.commonPool().execute(task);
+        return task;
+    });
+
+    private static final LoxCallable AWAIT = LoxCallable.of(1, (interpreter, args) -> {
+        if (!(args.get(0) instanceof Task)) throw new RuntimeError("Can only await tasks.");
+        Task task = (Task) args.get(0);
+
+        Object value;
+        try {
+            // On a pool thread this runs other tasks, or starts a thread, while it waits.
+            value = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeError("Interrupted.");
+        } catch (ExecutionException e) {
+            // Anything but a runtime error, e.g. a StackOverflowError.
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw (RuntimeException) e.getCause();
+        }
+        if (task.error != null) throw task.error;
+        return value;
+    });
+
+    private static final LoxCallable CHANNEL = LoxCallable.of(1, (interpreter, args) -> {
+        Object capacity = args.get(0);
+        if (!(capacity instanceof Double) || (double) capacity < 1 || (double) capacity > Integer.MAX_VALUE
+                || (double) capacity != Math.floor((double) capacity)) {
+            throw new RuntimeError("Channel capacity must be a positive integer.");
+        }
+        return new Channel((int) (double) capacity);
+    });
+
+    private static final LoxCallable SEND = LoxCallable.of(2, (interpreter, args) -> {
+        BlockingQueue<Object> values = channel(args.get(0));
+        Object value = args.get(1);
+        Environment.share(value);
+        Object item = value == null ? NIL : value;
+
+        boolean[] sent = { false };
+        block(new ForkJoinPool.ManagedBlocker() {
+            @Override
+            public boolean block() throws InterruptedException {
+                if (!sent[0]) {
+                    values.put(item);
+                    sent[0] = true;
+                }
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return sent[0] || (sent[0] = values.offer(item));
+            }
+        });
+        return null;
+    });
+
+    private static final LoxCallable RECEIVE = LoxCallable.of(1, (interpreter, args) -> {
+        BlockingQueue<Object> values = channel(args.get(0));
+
+        Object[] item = { null };
+        block(new ForkJoinPool.ManagedBlocker() {
+            @Override
+            public boolean block() throws InterruptedException {
+                if (item[0] == null) item[0] = values.take();
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return item[0] != null || (item[0] = values.poll()) != null;
+            }
+        });
+        return item[0] == NIL ? null : item[0];
+    });
+
+    private static BlockingQueue<Object> channel(Object channel) {
+        if (!(channel instanceof Channel)) throw new RuntimeError("Can only send to and receive from channels.");
+        return ((Channel) channel).values;
+    }
+
+    /** Waits, letting the pool start another thread if this is one of its own. */
+    private static void block(ForkJoinPool.ManagedBlocker blocker) {
+        try {
+            ForkJoinPool.managedBlock(blocker);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeError("Interrupted.");
+        }
+    }
+}
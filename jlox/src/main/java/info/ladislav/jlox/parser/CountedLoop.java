@@ -0,0 +1,331 @@
+package info.ladislav.jlox.parser;
+
+import java.util.List;
+
+import info.ladislav.jlox.lexer.Token;
+import info.ladislav.jlox.lexer.TokenType;
+
+/**
+ * A for loop that counts a local number by a constant step, such as
+ * for (var i = 0; i < n; i = i + 1), which the interpreter runs on a
+ * primitive counter.
+ *
+ * The loop is still a while loop with the desugared condition and body, so
+ * everything but the interpreter, whose visitCountedLoopStmt {@link Dispatch}
+ * calls for its kind, treats it as one. The interpreter skips evaluating the
+ * condition's counter read and the increment, and stores the counter in its
+ * variable only for a body that reads it. Nothing else can tell: the body and
+ * the limit do not assign the counter and no function in them mentions it,
+ * so it cannot be read later. Blocks around the body that declare nothing
+ * are entered once for the whole loop instead of once per iteration, as an
+ * environment nothing is defined in is the same whoever holds it.
+ */
+final class CountedLoop extends Stmt.While {
+
+    final Token counter;
+    /** The comparison of the counter with the limit. */
+    final Token operator;
+    final Expr limit;
+    final double step;
+    /** Declaration-free blocks around the statements, each of them one environment. */
+    final int scopes;
+    final List<Stmt> statements;
+    final boolean readsCounter;
+
+    private CountedLoop(Stmt.While loop, Token counter, Token operator, Expr limit, double step,
+            int scopes, List<Stmt> statements, boolean readsCounter) {
+        super(Stmt.COUNTED_LOOP, loop.condition, loop.body);
+        this.counter = counter;
+        this.operator = operator;
+        this.limit = limit;
+        this.step = step;
+        this.scopes = scopes;
+        this.statements = statements;
+        this.readsCounter = readsCounter;
+    }
+
+    @Override
+    <R> R accept(Stmt.Visitor<R> visitor) {
+        return visitor.visitCountedLoopStmt(this);
+    }
+
+    /**
+     * The loop declared by the block [var i = ...; while (i < limit) { body; i = i + step; }]
+     * as a counted loop, or null if it is not one.
+     */
+    static CountedLoop of(List<Stmt> block, Interpreter interpreter) {
+        if (block.size() != 2 || !(block.get(0) instanceof Stmt.Var) || !(block.get(1) instanceof Stmt.While)) {
+            return null;
+        }
+        String name = ((Stmt.Var) block.get(0)).name.lexeme;
+        Stmt.While loop = (Stmt.While) block.get(1);
+        if (loop instanceof CountedLoop) return null;
+
+        // The condition: i < limit, or <=, > and >=.
+        if (!(loop.condition instanceof Expr.Binary)) return null;
+        Expr.Binary condition = (Expr.Binary) loop.condition;
+        TokenType comparison = condition.operator.type;
+        if (comparison != TokenType.LESS && comparison != TokenType.LESS_EQUAL
+                && comparison != TokenType.GREATER && comparison != TokenType.GREATER_EQUAL) {
+            return null;
+        }
+        if (!isCounter(condition.left, name, 0, interpreter)) return null;
+
+        // The body: a block of the loop body and i = i + step, or i - step.
+        if (!(loop.body instanceof Stmt.Block)) return null;
+        List<Stmt> iteration = ((Stmt.Block) loop.body).statements;
+        if (iteration.size() != 2 || !(iteration.get(1) instanceof Stmt.Expression)) return null;
+        Expr increment = ((Stmt.Expression) iteration.get(1)).expression;
+        if (!(increment instanceof Expr.Assign)) return null;
+        Expr.Assign assign = (Expr.Assign) increment;
+        if (!assign.name.lexeme.equals(name) || !Integer.valueOf(1).equals(interpreter.depth(assign))) {
+            return null;
+        }
+        if (!(assign.value instanceof Expr.Binary)) return null;
+        Expr.Binary next = (Expr.Binary) assign.value;
+        if (!isCounter(next.left, name, 1, interpreter) || !(next.right instanceof Expr.Literal)
+                || !(((Expr.Literal) next.right).value instanceof Double)) {
+            return null;
+        }
+        double step = (double) ((Expr.Literal) next.right).value;
+        if (next.operator.type == TokenType.MINUS) {
+            step = -step;
+        } else if (next.operator.type != TokenType.PLUS) {
+            return null;
+        }
+
+        Uses limit = new Uses(name);
+        condition.right.accept(limit);
+        Uses body = new Uses(name);
+        iteration.get(0).accept(body);
+        if (limit.reads || limit.assigns || body.assigns) return null;
+
+        // The block around the body and the increment declares nothing, and
+        // neither do the ones the body itself is wrapped in.
+        int scopes = 1;
+        List<Stmt> statements = iteration.subList(0, 1);
+        while (statements.size() == 1 && statements.get(0) instanceof Stmt.Block
+                && !declares(((Stmt.Block) statements.get(0)).statements)) {
+            statements = ((Stmt.Block) statements.get(0)).statements;
+            scopes++;
+        }
+
+        return new CountedLoop(loop, ((Expr.Variable) condition.left).name, condition.operator,
+                condition.right, step, scopes, statements, body.reads);
+    }
+
+    private static boolean isCounter(Expr expr, String name, int depth, Interpreter interpreter) {
+        return expr instanceof Expr.Variable && ((Expr.Variable) expr).name.lexeme.equals(name)
+            && Integer.valueOf(depth).equals(interpreter.depth(expr));
+    }
+
+    private static boolean declares(List<Stmt> statements) {
+        if (statements instanceof LazyBlock) return true;
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var || statement instanceof Stmt.Function
+                    || statement instanceof Stmt.Class) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds out whether code reads or assigns a variable, by name, so shadowing
+     * variables count too. Any mention inside a function counts as both,
+     * since the function might outlive the loop.
+     */
+    private static final class Uses implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+        private final String name;
+        boolean reads = false;
+        boolean assigns = false;
+        private int functions = 0;
+
+        Uses(String name) {
+            this.name = name;
+        }
+
+        private void mention(boolean assignment) {
+            reads |= !assignment;
+            assigns |= assignment || functions > 0;
+        }
+
+        private void expr(Expr expr) {
+            if (expr != null) expr.accept(this);
+        }
+
+        private void stmts(List<Stmt> statements) {
+            if (statements instanceof LazyBlock) {
+                // Not parsed yet, so it might mention anything.
+                mention(true);
+                return;
+            }
+            for (Stmt statement : statements) {
+                statement.accept(this);
+            }
+        }
+
+        private void function(Expr.Function function) {
+            for (Token parameter : function.parameters) {
+                if (parameter.lexeme.equals(name)) mention(false);
+            }
+            functions++;
+            stmts(function.body);
+            functions--;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            if (expr.name.lexeme.equals(name)) mention(true);
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expr(expr.left);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            expr(expr.condition);
+            expr(expr.if_true);
+            expr(expr.if_false);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            expr(expr.callee);
+            for (Expr argument : expr.arguments) {
+                expr(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionExpr(Expr.Function expr) {
+            function(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            expr(expr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            expr(expr.left);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            expr(expr.object);
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            if (expr.name.lexeme.equals(name)) mention(false);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            stmts(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            if (stmt.name.lexeme.equals(name)) mention(true);
+            expr(stmt.superclass);
+            for (Stmt.Function method : stmt.methods) {
+                function(method.function);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            if (stmt.name.lexeme.equals(name)) mention(true);
+            function(stmt.function);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            expr(stmt.condition);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            expr(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            // A shadowing declaration, whose later reads count anyway.
+            expr(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            expr(stmt.condition);
+            stmt.body.accept(this);
+            return null;
+        }
+    }
+}
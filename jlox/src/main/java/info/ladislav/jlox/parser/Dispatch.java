@@ -0,0 +1,96 @@
+package info.ladislav.jlox.parser;
+
+// Generated by tool/GenerateAst.java, edit the generator instead.
+
+/**
+ * Runs nodes in the interpreter with a switch on their kind. Unlike accept,
+ * whose call sites see every node class, the switch calls the interpreter
+ * directly and stays monomorphic.
+ */
+final class Dispatch {
+
+  private Dispatch() {
+  }
+
+  static Object evaluate(Interpreter interpreter, Expr expr) {
+    switch (expr.kind) {
+      case Expr.ASSIGN:
+        return interpreter.visitAssignExpr((Expr.Assign) expr);
+      case Expr.BINARY:
+        return interpreter.visitBinaryExpr((Expr.Binary) expr);
+      case Expr.CALL:
+        return interpreter.visitCallExpr((Expr.Call) expr);
+      case Expr.GET:
+        return interpreter.visitGetExpr((Expr.Get) expr);
+      case Expr.TERNARY:
+        return interpreter.visitTernaryExpr((Expr.Ternary) expr);
+      case Expr.GROUPING:
+        return interpreter.visitGroupingExpr((Expr.Grouping) expr);
+      case Expr.LITERAL:
+        return interpreter.visitLiteralExpr((Expr.Literal) expr);
+      case Expr.LOGICAL:
+        return interpreter.visitLogicalExpr((Expr.Logical) expr);
+      case Expr.SET:
+        return interpreter.visitSetExpr((Expr.Set) expr);
+      case Expr.SUPER:
+        return interpreter.visitSuperExpr((Expr.Super) expr);
+      case Expr.THIS:
+        return interpreter.visitThisExpr((Expr.This) expr);
+      case Expr.FUNCTION:
+        return interpreter.visitFunctionExpr((Expr.Function) expr);
+      case Expr.UNARY:
+        return interpreter.visitUnaryExpr((Expr.Unary) expr);
+      case Expr.VARIABLE:
+        return interpreter.visitVariableExpr((Expr.Variable) expr);
+      case Expr.INCREMENT:
+        return interpreter.visitIncrementExpr((Fused.Increment) expr);
+      case Expr.PROPERTY_CHAIN:
+        return interpreter.visitPropertyChainExpr((Fused.PropertyChain) expr);
+      default:
+        return expr.accept(interpreter);
+    }
+  }
+
+  static void execute(Interpreter interpreter, Stmt stmt) {
+    switch (stmt.kind) {
+      case Stmt.BLOCK:
+        interpreter.visitBlockStmt((Stmt.Block) stmt);
+        return;
+      case Stmt.CLASS:
+        interpreter.visitClassStmt((Stmt.Class) stmt);
+        return;
+      case Stmt.EXPRESSION:
+        interpreter.visitExpressionStmt((Stmt.Expression) stmt);
+        return;
+      case Stmt.FUNCTION:
+        interpreter.visitFunctionStmt((Stmt.Function) stmt);
+        return;
+      case Stmt.IF:
+        interpreter.visitIfStmt((Stmt.If) stmt);
+        return;
+      case Stmt.PRINT:
+        interpreter.visitPrintStmt((Stmt.Print) stmt);
+        return;
+      case Stmt.RETURN:
+        interpreter.visitReturnStmt((Stmt.Return) stmt);
+        return;
+      case Stmt.VAR:
+        interpreter.visitVarStmt((Stmt.Var) stmt);
+        return;
+      case Stmt.WHILE:
+        interpreter.visitWhileStmt((Stmt.While) stmt);
+        return;
+      case Stmt.COMPARE_BRANCH:
+        interpreter.visitCompareBranchStmt((Fused.CompareBranch) stmt);
+        return;
+      case Stmt.RETURN_BINARY:
+        interpreter.visitReturnBinaryStmt((Fused.ReturnBinary) stmt);
+        return;
+      case Stmt.COUNTED_LOOP:
+        interpreter.visitCountedLoopStmt((CountedLoop) stmt);
+        return;
+      default:
+        stmt.accept(interpreter);
+    }
+  }
+}
@@ -2,14 +2,33 @@ package info.ladislav.jlox.parser;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import info.ladislav.jlox.lexer.Token;
 
+/**
+ * Variables of a scope. An environment starts out as a plain HashMap used by
+ * the thread that created it; {@link #share()} moves it and the environments
+ * enclosing it to ConcurrentHashMaps before another thread can reach them,
+ * see {@link Concurrency}. Values are stored as {@link #NIL} instead of null
+ * either way, so a single lookup tells a missing variable from a nil one.
+ */
 public class Environment {
 
+    /** Value of a variable declared without an initializer, reading it is an error. */
+    static final Object UNINITIALIZED = new Object();
+    /** What a variable holding nil maps to. */
+    private static final Object NIL = new Object();
+    /** Counts rebinds of globals assigned from several threads without losing any. */
+    private static final AtomicIntegerFieldUpdater<Environment> REBINDS =
+        AtomicIntegerFieldUpdater.newUpdater(Environment.class, "rebinds");
+
     final Environment enclosing;
-    private final Map<String, Optional<Object>> values = new HashMap<>();
+    /** Replaced only by {@link #share()}, on the thread that owns it, before other threads see it. */
+    private Map<String, Object> values = new HashMap<>();
+    /** Of the globals: how often a variable that held a function got another value, see {@link MemoFunction}. */
+    private volatile int rebinds = 0;
 
     Environment() {
         enclosing = null;
@@ -21,8 +40,9 @@ public class Environment {
 
     Object get(Token name){
         
-        if(values.containsKey(name.lexeme)){
-            return values.get(name.lexeme).orElseThrow(()-> new RuntimeError(name, "Variable " + name.lexeme + " is not defined."));
+        Object value = values.get(name.lexeme);
+        if(value != null){
+            return initialized(name, unwrap(value));
         }
 
         if (enclosing != null) return enclosing.get(name);
@@ -30,8 +50,66 @@ public class Environment {
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
+    Object getAt(int distance, Token name) {
+        return initialized(name, getAt(distance, name.lexeme));
+    }
+
     Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+        return unwrap(ancestor(distance).values.get(name));
+    }
+
+    private static Object unwrap(Object value) {
+        return value == NIL ? null : value;
+    }
+
+    /** The value to store for a Lox value, functions stored in a shared scope become shared too. */
+    private Object wrap(Object value) {
+        if (value == null) return NIL;
+        if (isShared()) share(value);
+        return value;
+    }
+
+    /** Whether {@link #share()} made the environment safe to use from other threads. */
+    boolean isShared() {
+        return values instanceof ConcurrentHashMap;
+    }
+
+    /**
+     * Makes this environment, the ones enclosing it and those of the functions
+     * stored in them safe to read and assign from several threads. Assignments
+     * are not atomic with the reads before them, so two threads adding to one
+     * variable can lose an update.
+     */
+    void share() {
+        if (isShared()) return;
+        // Converted first, so functions closing over this scope stop here.
+        values = new ConcurrentHashMap<>(values);
+        for (Object value : values.values()) {
+            share(value);
+        }
+        if (enclosing != null) enclosing.share();
+    }
+
+    /** Shares the scopes a value can reach variables of, when it is handed to another thread. */
+    static void share(Object value) {
+        if (value instanceof LoxFunction) {
+            ((LoxFunction) value).share();
+        } else if (value instanceof LoxClass) {
+            ((LoxClass) value).share();
+        } else if (value instanceof LoxInstance) {
+            ((LoxInstance) value).share();
+        } else if (value instanceof LoxList) {
+            ((LoxList) value).share();
+        } else if (value instanceof LoxMap) {
+            ((LoxMap) value).share();
+        }
+    }
+
+    private static Object initialized(Token name, Object value) {
+        if (value == UNINITIALIZED) {
+            throw new RuntimeError(name, "Variable " + name.lexeme + " is not defined.");
+        }
+        return value;
     }
 
     private Environment ancestor(int distance) {
@@ -44,14 +122,14 @@ public class Environment {
         return environment;
     }
 
-    void define(String name, Optional<Object> value) {
-        values.put(name, value);
+    void define(String name, Object value) {
+        put(name, value);
     }
 
-    void assign(Token name, Optional<Object> value){
+    void assign(Token name, Object value){
 
         if(values.containsKey(name.lexeme)){
-            values.put(name.lexeme, value);
+            put(name.lexeme, value);
             return;
         }
 
@@ -63,7 +141,30 @@ public class Environment {
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
+    /** Adds to the number a variable holds, returning the sum, or null if it does not hold a number. */
+    Object addAt(int distance, String name, double delta) {
+        Map<String, Object> scope = ancestor(distance).values;
+        Object value = scope.get(name);
+        if (!(value instanceof Double)) {
+            return null;
+        }
+
+        Object sum = (double) value + delta;
+        scope.put(name, sum);
+        return sum;
+    }
+
     void assignAt(int distance, Token name, Object value){
-        ancestor(distance).values.put(name.lexeme, Optional.of(value));
+        ancestor(distance).put(name.lexeme, value);
+    }
+
+    private void put(String name, Object value) {
+        Object old = values.put(name, wrap(value));
+        if (enclosing == null && old instanceof LoxCallable) REBINDS.incrementAndGet(this);
+    }
+
+    /** Changes whenever a global that held a function is redeclared or assigned, which can make a pure function impure. */
+    int rebinds() {
+        return rebinds;
     }
-}
\ No newline at end of file
+}
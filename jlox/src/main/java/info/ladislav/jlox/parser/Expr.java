@@ -4,6 +4,7 @@ import java.util.List;
 
 import info.ladislav.jlox.lexer.Token;
 
+// Generated by tool/GenerateAst.java, edit the generator instead.
 
 public abstract class Expr {
   interface Visitor<R> {
@@ -21,9 +22,57 @@ public abstract class Expr {
     R visitFunctionExpr(Function expr);
     R visitUnaryExpr(Unary expr);
     R visitVariableExpr(Variable expr);
+
+    /** Defaults to the node it extends, see {@link Fused.Increment}. */
+    default R visitIncrementExpr(Fused.Increment expr) {
+      return visitAssignExpr(expr);
+    }
+
+    /** Defaults to the node it extends, see {@link Fused.PropertyChain}. */
+    default R visitPropertyChainExpr(Fused.PropertyChain expr) {
+      return visitGetExpr(expr);
+    }
+  }
+
+  static final int ASSIGN = 0;
+  static final int BINARY = 1;
+  static final int CALL = 2;
+  static final int GET = 3;
+  static final int TERNARY = 4;
+  static final int GROUPING = 5;
+  static final int LITERAL = 6;
+  static final int LOGICAL = 7;
+  static final int SET = 8;
+  static final int SUPER = 9;
+  static final int THIS = 10;
+  static final int FUNCTION = 11;
+  static final int UNARY = 12;
+  static final int VARIABLE = 13;
+  static final int INCREMENT = 14;
+  static final int PROPERTY_CHAIN = 15;
+
+  /** Which of the classes below this node is, for a switch instead of accept. */
+  final int kind;
+
+  /** Free for a profiler to count executions in. */
+  int profile;
+
+  /** Depth of the scope a local is declared in, set by the resolver; UNRESOLVED for globals. */
+  int depth = UNRESOLVED;
+
+  static final int UNRESOLVED = -1;
+
+  private Expr(int kind) {
+    this.kind = kind;
   }
   static class Assign extends Expr {
     Assign(Token name, Expr value) {
+      this(ASSIGN, name, value);
+    }
+
+    /** For the derived nodes, with a kind of their own. */
+    Assign(int kind, Token name, Expr value) {
+      super(kind);
       this.name = name;
       this.value = value;
     }
@@ -38,6 +87,7 @@ public abstract class Expr {
   }
   static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
+      super(BINARY);
       this.left = left;
       this.operator = operator;
       this.right = right;
@@ -54,6 +104,7 @@ public abstract class Expr {
   }
   static class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
+      super(CALL);
       this.callee = callee;
       this.paren = paren;
       this.arguments = arguments;
@@ -70,6 +121,12 @@ public abstract class Expr {
   }
   static class Get extends Expr {
     Get(Expr object, Token name) {
+      this(GET, object, name);
+    }
+
+    /** For the derived nodes, with a kind of their own. */
+    Get(int kind, Expr object, Token name) {
+      super(kind);
       this.object = object;
       this.name = name;
     }
@@ -84,6 +141,7 @@ public abstract class Expr {
   }
   static class Ternary extends Expr {
     Ternary(Expr condition, Expr if_true, Expr if_false) {
+      super(TERNARY);
       this.condition = condition;
       this.if_true = if_true;
       this.if_false = if_false;
@@ -100,6 +158,7 @@ public abstract class Expr {
   }
   static class Grouping extends Expr {
     Grouping(Expr expression) {
+      super(GROUPING);
       this.expression = expression;
     }
 
@@ -112,6 +171,7 @@ public abstract class Expr {
   }
   static class Literal extends Expr {
     Literal(Object value) {
+      super(LITERAL);
       this.value = value;
     }
 
@@ -124,6 +184,7 @@ public abstract class Expr {
   }
   static class Logical extends Expr {
     Logical(Expr left, Token operator, Expr right) {
+      super(LOGICAL);
       this.left = left;
       this.operator = operator;
       this.right = right;
@@ -140,6 +201,7 @@ public abstract class Expr {
   }
   static class Set extends Expr {
     Set(Expr object, Token name, Expr value) {
+      super(SET);
       this.object = object;
       this.name = name;
       this.value = value;
@@ -156,6 +218,7 @@ public abstract class Expr {
   }
   static class Super extends Expr {
     Super(Token keyword, Token method) {
+      super(SUPER);
       this.keyword = keyword;
       this.method = method;
     }
@@ -170,6 +233,7 @@ public abstract class Expr {
   }
   static class This extends Expr {
     This(Token keyword) {
+      super(THIS);
       this.keyword = keyword;
     }
 
@@ -182,6 +246,7 @@ public abstract class Expr {
   }
   static class Function extends Expr {
     Function(List<Token> parameters, List<Stmt> body) {
+      super(FUNCTION);
       this.parameters = parameters;
       this.body = body;
     }
@@ -193,9 +258,13 @@ public abstract class Expr {
 
     final List<Token> parameters;
     final List<Stmt> body;
+
+    /** Set on the first call, see {@link NumericFunction#of(Function, String)}. */
+    volatile NumericFunction numeric;
   }
   static class Unary extends Expr {
     Unary(Token operator, Expr right) {
+      super(UNARY);
       this.operator = operator;
       this.right = right;
     }
@@ -210,6 +279,7 @@ public abstract class Expr {
   }
   static class Variable extends Expr {
     Variable(Token name) {
+      super(VARIABLE);
       this.name = name;
     }
 
@@ -0,0 +1,157 @@
+package info.ladislav.jlox.parser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import info.ladislav.jlox.lexer.Token;
+import info.ladislav.jlox.lexer.TokenType;
+
+/**
+ * Nodes for the shapes that dominate running scripts, which the interpreter
+ * executes in one step instead of visiting each of their parts.
+ *
+ * Each one extends the node it replaces and keeps its parts, so the printer,
+ * the resolver, the arena and the cache see the original node: it has a kind
+ * of its own, which {@link Dispatch} sends to the interpreter's visit method
+ * for it, and its visit method defaults to the original node's. The optimizer
+ * builds them with {@link #fuse(Expr, Interpreter)} and {@link #fuse(Stmt)}.
+ */
+final class Fused {
+
+    private Fused() {
+    }
+
+    /** x = x + n or x = x - n, for a local x and a number n. */
+    static final class Increment extends Expr.Assign {
+
+        final double delta;
+
+        private Increment(Expr.Assign assign, double delta) {
+            super(Expr.INCREMENT, assign.name, assign.value);
+            this.delta = delta;
+        }
+
+        @Override
+        <R> R accept(Expr.Visitor<R> visitor) {
+            return visitor.visitIncrementExpr(this);
+        }
+    }
+
+    /** a.b.c: properties read one after the other. */
+    static final class PropertyChain extends Expr.Get {
+
+        final Expr base;
+        final List<Token> names;
+
+        private PropertyChain(Expr.Get get, Expr base, List<Token> names) {
+            super(Expr.PROPERTY_CHAIN, get.object, get.name);
+            this.base = base;
+            this.names = names;
+        }
+
+        @Override
+        <R> R accept(Expr.Visitor<R> visitor) {
+            return visitor.visitPropertyChainExpr(this);
+        }
+    }
+
+    /** if (a < b), or another comparison or equality: a branch taken without a Boolean in between. */
+    static final class CompareBranch extends Stmt.If {
+
+        final Expr.Binary comparison;
+
+        private CompareBranch(Stmt.If stmt) {
+            super(Stmt.COMPARE_BRANCH, stmt.condition, stmt.thenBranch, stmt.elseBranch);
+            this.comparison = (Expr.Binary) stmt.condition;
+        }
+
+        @Override
+        <R> R accept(Stmt.Visitor<R> visitor) {
+            return visitor.visitCompareBranchStmt(this);
+        }
+    }
+
+    /** return a + b, or any other binary operator. */
+    static final class ReturnBinary extends Stmt.Return {
+
+        final Expr.Binary binary;
+
+        private ReturnBinary(Stmt.Return stmt) {
+            super(Stmt.RETURN_BINARY, stmt.keyword, stmt.value);
+            this.binary = (Expr.Binary) stmt.value;
+        }
+
+        @Override
+        <R> R accept(Stmt.Visitor<R> visitor) {
+            return visitor.visitReturnBinaryStmt(this);
+        }
+    }
+
+    /** The fused form of an optimized expression, or the expression itself. */
+    static Expr fuse(Expr expr, Interpreter interpreter) {
+        if (expr instanceof Expr.Assign && !(expr instanceof Increment)) {
+            Expr.Assign assign = (Expr.Assign) expr;
+            Integer depth = interpreter.depth(assign);
+            if (depth == null || !(assign.value instanceof Expr.Binary)) return expr;
+
+            Expr.Binary value = (Expr.Binary) assign.value;
+            TokenType operator = value.operator.type;
+            if ((operator == TokenType.PLUS || operator == TokenType.MINUS)
+                    && value.left instanceof Expr.Variable
+                    && ((Expr.Variable) value.left).name.lexeme.equals(assign.name.lexeme)
+                    && depth.equals(interpreter.depth(value.left))
+                    && value.right instanceof Expr.Literal
+                    && ((Expr.Literal) value.right).value instanceof Double) {
+                double delta = (double) ((Expr.Literal) value.right).value;
+                Increment increment = new Increment(assign, operator == TokenType.PLUS ? delta : -delta);
+                interpreter.resolve(increment, depth);
+                return increment;
+            }
+        } else if (expr instanceof Expr.Get && !(expr instanceof PropertyChain)
+                && ((Expr.Get) expr).object instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr;
+            Expr.Get inner = (Expr.Get) get.object;
+
+            List<Token> names = new ArrayList<>();
+            Expr base;
+            if (inner instanceof PropertyChain) {
+                base = ((PropertyChain) inner).base;
+                names.addAll(((PropertyChain) inner).names);
+            } else {
+                base = inner.object;
+                names.add(inner.name);
+            }
+            names.add(get.name);
+            return new PropertyChain(get, base, Collections.unmodifiableList(names));
+        }
+        return expr;
+    }
+
+    /** The fused form of an optimized statement, or the statement itself. */
+    static Stmt fuse(Stmt stmt) {
+        if (stmt instanceof Stmt.If && !(stmt instanceof CompareBranch)
+                && isComparison(((Stmt.If) stmt).condition)) {
+            return new CompareBranch((Stmt.If) stmt);
+        } else if (stmt instanceof Stmt.Return && !(stmt instanceof ReturnBinary)
+                && ((Stmt.Return) stmt).value instanceof Expr.Binary) {
+            return new ReturnBinary((Stmt.Return) stmt);
+        }
+        return stmt;
+    }
+
+    private static boolean isComparison(Expr expr) {
+        if (!(expr instanceof Expr.Binary)) return false;
+        switch (((Expr.Binary) expr).operator.type) {
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -4,7 +4,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.function.Consumer;
 
 import info.ladislav.jlox.JLox;
 import info.ladislav.jlox.lexer.Token;
@@ -34,38 +34,149 @@ import info.ladislav.jlox.parser.Stmt.While;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    // Natives keep no state, so every interpreter shares them.
+    private static final LoxCallable CLOCK = new LoxCallable() {
 
+        @Override
+        public Object call(Interpreter interpreter, List<Object> args) {
+            return (double) System.currentTimeMillis() / 1000.0;
+        }
+
+        @Override
+        public int arity() {
+            return 0;
+        }
+    };
+
+    private static final LoxCallable MEMO = new LoxCallable() {
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> args) {
+            return MemoFunction.of(args.get(0), interpreter.globals);
+        }
+
+        @Override
+        public int arity() {
+            return 1;
+        }
+    };
+
+    final Environment globals;
+    private Environment environment;
+    /** Records what runs, if set by {@link Profile#load}. */
+    Profile profile = null;
+    /** Receives what print statements print, one line each. */
+    private final Consumer<String> output;
+    /** Receives the runtime error that stopped {@link #interpret}. */
+    private final Consumer<RuntimeError> runtimeErrors;
+    /** What the script spawned, shared with the forks. */
+    final Concurrency.Tasks tasks;
+
+    /** Prints to stdout and reports runtime errors like {@link JLox#runtimeError}. */
     public Interpreter() {
-        globals.define("clock", Optional.of(new LoxCallable() {
+        this(line -> System.out.println(line), JLox::runtimeError);
+    }
 
-            @Override
-            public Object call(Interpreter interpreter, List<Object> args) {
-                return (double) System.currentTimeMillis() / 1000.0;
-            }
+    public Interpreter(Consumer<String> output, Consumer<RuntimeError> runtimeErrors) {
+        this(new Environment(), output, runtimeErrors, new Concurrency.Tasks());
 
-            @Override
-            public int arity() {
-                return 0;
-            }
-        }));
+        globals.define("clock", CLOCK);
+        globals.define("memo", MEMO);
+        Concurrency.define(globals);
+        Lists.define(globals);
+        Maps.define(globals);
     }
 
-    public void interpret(List<Stmt> statements) {
+    private Interpreter(Environment globals, Consumer<String> output, Consumer<RuntimeError> runtimeErrors,
+            Concurrency.Tasks tasks) {
+        this.globals = globals;
+        this.environment = globals;
+        this.output = output;
+        this.runtimeErrors = runtimeErrors;
+        this.tasks = tasks;
+    }
 
+    /** An interpreter for another thread, with the same globals, output, profile and tasks, see {@link Concurrency}. */
+    Interpreter fork() {
+        Interpreter fork = new Interpreter(globals, output, runtimeErrors, tasks);
+        fork.profile = profile;
+        return fork;
+    }
+
+    /**
+     * Executes statements until one fails, false if a runtime error stopped
+     * them. Tasks they spawned that still run when they end are cancelled, see
+     * {@link Concurrency}, so no task outlives its script.
+     */
+    public boolean interpret(List<Stmt> statements) {
+        tasks.reset();
         try {
             for (Stmt statement : statements) {
                 execute(statement);
             }
+            return true;
         } catch (RuntimeError e) {
-            JLox.runtimeError(e);
+            stopped(e);
+            return false;
+        } finally {
+            tasks.cancel();
+        }
+    }
+
+    /**
+     * Executes a single top level statement, reporting a runtime error like
+     * {@link #interpret(List)}. Tasks it spawned keep running for the next
+     * statements of the script, until {@link #cancelTasks()}.
+     */
+    public boolean interpret(Stmt statement) {
+        tasks.reset();
+        try {
+            execute(statement);
+            return true;
+        } catch (RuntimeError e) {
+            stopped(e);
+            return false;
+        }
+    }
+
+    /** Cancels the tasks still running after the last statement of a script run with {@link #interpret(Stmt)}. */
+    public void cancelTasks() {
+        tasks.cancel();
+    }
+
+    /** Reports the error, and stops the tasks the script spawned if it was interrupted. */
+    private void stopped(RuntimeError e) {
+        if (Thread.currentThread().isInterrupted()) {
+            tasks.cancel();
+        }
+        runtimeErrors.accept(e);
+    }
+
+    /** Defines a global for the script to read, a number must be a Double. */
+    public void define(String name, Object value) {
+        globals.define(name, value);
+    }
+
+    /** The value of a global variable, null if there is none or it has no value yet. */
+    public Object global(String name) {
+        Object value = globals.getAt(0, name);
+        return value == Environment.UNINITIALIZED ? null : value;
+    }
+
+    /**
+     * Stops a script whose thread was interrupted, e.g. when its
+     * {@link info.ladislav.jlox.LoxExecutor} task was cancelled. Loops check it
+     * on every iteration and functions on every call, so no script runs on
+     * forever; the error has no token until a call gives it one.
+     */
+    static void checkInterrupted() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new RuntimeError("Interrupted.");
         }
     }
 
     private void execute(Stmt stmt) {
-        stmt.accept(this);
+        Dispatch.execute(this, stmt);
     }
 
     @Override
@@ -142,28 +253,17 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
         Object cond = evaluate(expr.condition);
 
-        if (!isTruthy(cond)) {
-            return evaluate(expr.if_false);
-        }
-
-        if (cond instanceof Double) {
+        return evaluate(choosesTrueBranch(cond) ? expr.if_true : expr.if_false);
+    }
 
-            if ((double) cond > 0) {
-                return evaluate(expr.if_true);
-            }
-            return evaluate(expr.if_false);
+    /** Like isTruthy, except that numbers up to 0 choose the false branch too. */
+    static boolean choosesTrueBranch(Object cond) {
 
+        if (cond instanceof Double) {
+            return (double) cond > 0;
         }
 
-        if (cond instanceof Boolean) {
-            if ((boolean) cond == true) {
-                return evaluate(expr.if_true);
-            } else {
-                return evaluate(expr.if_false);
-            }
-        }
-
-        return evaluate(expr.if_true);
+        return isTruthy(cond);
     }
 
     @Override
@@ -201,16 +301,16 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Void visitPrintStmt(Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        output.accept(stringify(value));
         return null;
     }
 
     @Override
     public Void visitVarStmt(Var stmt) {
-        Optional<Object> value = Optional.empty();
+        Object value = Environment.UNINITIALIZED;
 
         if (stmt.initializer != null) {
-            value = Optional.of(evaluate(stmt.initializer));
+            value = evaluate(stmt.initializer);
         }
         environment.define(stmt.name.lexeme, value);
 
@@ -224,9 +324,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitAssignExpr(Assign expr) {
-        Optional<Object> value = Optional.of(evaluate(expr.value));
-        Integer distance = locals.get(expr);
-        if (distance != null) {
+        Object value = evaluate(expr.value);
+        int distance = expr.depth;
+        if (distance != Expr.UNRESOLVED) {
             environment.assignAt(distance, expr.name, value);
         } else {
             environment.assign(expr.name, value);
@@ -235,6 +335,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return value;
     }
 
+    @Override
+    public Object visitIncrementExpr(Fused.Increment expr) {
+        Object sum = environment.addAt(expr.depth, expr.name.lexeme, expr.delta);
+        // Not a number: concatenate or fail like the assignment does.
+        return sum != null ? sum : visitAssignExpr(expr);
+    }
+
     @Override
     public Void visitBlockStmt(Block stmt) {
         executeBlock(stmt.statements, new Environment(this.environment));
@@ -256,14 +363,22 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitIfStmt(If stmt) {
+        branch(stmt, isTruthy(evaluate(stmt.condition)));
+        return null;
+    }
 
-        if (isTruthy(evaluate(stmt.condition))) {
+    @Override
+    public Void visitCompareBranchStmt(Fused.CompareBranch stmt) {
+        branch(stmt, compare(stmt.comparison));
+        return null;
+    }
+
+    private void branch(If stmt, boolean taken) {
+        if (taken) {
             execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
             execute(stmt.elseBranch);
         }
-
-        return null;
     }
 
     @Override
@@ -296,19 +411,28 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         LoxCallable function = (LoxCallable) callee;
+        if (profile != null) {
+            profile.calledAt(expr, callee);
+        }
 
         if (args.size() != function.arity()) {
             throw new RuntimeError(expr.paren,
                     "Expected " + function.arity() + "arguments, but got" + args.size() + ".");
         }
 
-        return function.call(this, args);
+        try {
+            return function.call(this, args);
+        } catch (RuntimeError e) {
+            // Natives know no line to report.
+            if (e.token == null) throw e.at(expr.paren);
+            throw e;
+        }
     }
 
     @Override
     public Void visitFunctionStmt(Function stmt) {
         LoxFunction fn = new LoxFunction(stmt.name.lexeme, stmt.function, environment, false);
-        environment.define(stmt.name.lexeme, Optional.of(fn));
+        environment.define(stmt.name.lexeme, fn);
         return null;
     }
 
@@ -327,6 +451,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new info.ladislav.jlox.parser.Return(value);
     }
 
+    @Override
+    public Void visitReturnBinaryStmt(Fused.ReturnBinary stmt) {
+        throw new info.ladislav.jlox.parser.Return(visitBinaryExpr(stmt.binary));
+    }
+
     @Override
     public Void visitClassStmt(Class stmt) {
         Object superclass = null;
@@ -342,7 +471,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
         if (stmt.superclass != null) {
             environment = new Environment(environment);
-            environment.define("super", Optional.of(superclass));
+            environment.define("super", superclass);
         }
 
         Map<String, LoxFunction> methods = new HashMap<>();
@@ -359,7 +488,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
         ;
 
-        environment.assign(stmt.name, Optional.of(clazz));
+        environment.assign(stmt.name, clazz);
 
         return null;
     }
@@ -374,6 +503,18 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new RuntimeError(expr.name, "Only instances have properties");
     }
 
+    @Override
+    public Object visitPropertyChainExpr(Fused.PropertyChain expr) {
+        Object object = evaluate(expr.base);
+        for (Token name : expr.names) {
+            if (!(object instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have properties");
+            }
+            object = ((LoxInstance) object).get(name);
+        }
+        return object;
+    }
+
     @Override
     public Object visitSetExpr(Set expr) {
         Object object = evaluate(expr.object);
@@ -393,7 +534,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitSuperExpr(Super expr) {
-        int distance = locals.get(expr);
+        int distance = expr.depth;
         LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
         // "this" is always one level neared than "super"'s environment
         LoxInstance object = (LoxInstance) environment.getAt(distance -1, "this");
@@ -409,35 +550,118 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     /** HELPER METHODS */
 
     private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
+        int distance = expr.depth;
 
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+        if (distance != Expr.UNRESOLVED) {
+            return environment.getAt(distance, name);
         } else {
             return globals.get(name);
         }
     }
 
+    /**
+     * Through accept rather than {@link Dispatch#evaluate}: the switch over all
+     * expressions is too large for the JIT to inline, which made expression
+     * heavy loops slower, while statements gain from it.
+     */
     private Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
     @Override
     public Void visitWhileStmt(While stmt) {
-
         while (isTruthy(evaluate(stmt.condition))) {
+            checkInterrupted();
+            if (profile != null) {
+                profile.iterated(stmt);
+            }
             execute(stmt.body);
         }
 
         return null;
     }
 
+    /** Runs a counted loop on a double counter, as a while loop if the counter does not start as a number. */
+    @Override
+    public Void visitCountedLoopStmt(CountedLoop loop) {
+        Object start = environment.getAt(0, loop.counter);
+        if (!(start instanceof Double)) {
+            return visitWhileStmt(loop);
+        }
+
+        // The blocks inside the loop declare nothing, so their environments can be shared.
+        Environment scope = environment;
+        for (int i = 0; i < loop.scopes; i++) {
+            scope = new Environment(scope);
+        }
+
+        TokenType comparison = loop.operator.type;
+        for (double counter = (double) start;; counter += loop.step) {
+            Object limit = evaluate(loop.limit);
+            if (!(limit instanceof Double)) {
+                throw new RuntimeError(loop.operator, "Operands must be numbers.");
+            }
+            double bound = (double) limit;
+
+            boolean more = comparison == TokenType.LESS ? counter < bound
+                : comparison == TokenType.LESS_EQUAL ? counter <= bound
+                : comparison == TokenType.GREATER ? counter > bound
+                : counter >= bound;
+            if (!more) {
+                return null;
+            }
+
+            checkInterrupted();
+            if (profile != null) {
+                profile.iterated(loop);
+            }
+            if (loop.readsCounter) {
+                environment.define(loop.counter.lexeme, counter);
+            }
+            executeBlock(loop.statements, scope);
+        }
+    }
+
+    /** Records the depth in the node itself, so any interpreter running the tree sees it. */
     void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+        expr.depth = depth;
+    }
+
+    /** Depth given to an expression by {@link #resolve(Expr, int)}, null for globals. */
+    Integer depth(Expr expr) {
+        return expr.depth == Expr.UNRESOLVED ? null : expr.depth;
+    }
+
+    /** A comparison or equality, like visitBinaryExpr computes it, as a primitive. */
+    private boolean compare(Binary expr) {
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
+
+        switch (expr.operator.type) {
+            case BANG_EQUAL:
+                return !isEqual(left, right);
+            case EQUAL_EQUAL:
+                return isEqual(left, right);
+            default:
+                checkNumberOperands(expr.operator, left, right);
+        }
+
+        double a = (double) left;
+        double b = (double) right;
+        switch (expr.operator.type) {
+            case GREATER:
+                return a > b;
+            case GREATER_EQUAL:
+                return a >= b;
+            case LESS:
+                return a < b;
+            default:
+                return a <= b;
+        }
     }
 
     /** Like in Ruby "false" and "nil" are falsey and everything else is truthy */
-    private boolean isTruthy(Object obj) {
+    static boolean isTruthy(Object obj) {
 
         if (obj instanceof Boolean) {
             return (boolean) obj;
@@ -477,7 +701,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) {
             return "nil";
         }
@@ -490,7 +714,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return object.toString();
     }
 
-    private String removeTrailing(String t, String s) {
+    private static String removeTrailing(String t, String s) {
 
         if (s.endsWith(t)) {
             return s.substring(0, s.length() - t.length());
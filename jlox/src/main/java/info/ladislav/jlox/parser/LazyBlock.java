@@ -0,0 +1,95 @@
+package info.ladislav.jlox.parser;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+
+import info.ladislav.jlox.Diagnostics;
+import info.ladislav.jlox.ErrorReporter;
+import info.ladislav.jlox.lexer.Token;
+
+/**
+ * Function body that is parsed and resolved when it is first used, normally
+ * on the first call of the function.
+ *
+ * The parser only skips the tokens between the braces and gives the block a
+ * way to parse them later; the resolver hands it a copy of its scopes instead
+ * of walking it. Errors found at that point are reported as usual and the
+ * call fails with a runtime error.
+ */
+final class LazyBlock extends AbstractList<Stmt> {
+
+    /** Creates a parser over the body tokens that reports to the given reporter. */
+    private final Function<ErrorReporter, Parser> parser;
+    private final Token brace;
+    private final ErrorReporter reporter;
+
+    private List<Stmt> parsed;
+    private Resolver resolver;
+    private boolean failed = false;
+    /** Parsed and, if the resolver has been here, resolved. */
+    private volatile List<Stmt> statements;
+
+    LazyBlock(Function<ErrorReporter, Parser> parser, Token brace, ErrorReporter reporter) {
+        this.parser = parser;
+        this.brace = brace;
+        this.reporter = reporter;
+    }
+
+    /** A body parsed already, so syntax errors were reported eagerly; only its resolution waits. */
+    LazyBlock(List<Stmt> parsed, Token brace, ErrorReporter reporter) {
+        this((Function<ErrorReporter, Parser>) null, brace, reporter);
+        this.parsed = parsed;
+    }
+
+    /** Called by the resolver instead of resolving the body, with a copy of its state. */
+    synchronized void defer(Resolver resolver) {
+        this.resolver = resolver;
+        // Used before it was resolved, e.g. printed: resolve it on next use.
+        this.statements = null;
+    }
+
+    private List<Stmt> statements() {
+        List<Stmt> statements = this.statements;
+        return statements != null ? statements : materialize();
+    }
+
+    private synchronized List<Stmt> materialize() {
+        if (statements != null) return statements;
+        if (failed) throw new RuntimeError(brace, "Function body has errors.");
+
+        Diagnostics errors = new Diagnostics();
+        if (parsed == null) {
+            parsed = parser.apply(errors).parse();
+        }
+        if (!errors.hasErrors() && resolver != null) {
+            new Resolver(resolver, errors).resolve(parsed);
+            resolver = null;
+        }
+
+        if (errors.hasErrors() || parsed == null) {
+            failed = true;
+            errors.replay(reporter);
+            throw new RuntimeError(brace, "Function body has errors.");
+        }
+
+        statements = parsed;
+        return statements;
+    }
+
+    @Override
+    public Stmt get(int index) {
+        return statements().get(index);
+    }
+
+    @Override
+    public int size() {
+        return statements().size();
+    }
+
+    @Override
+    public Iterator<Stmt> iterator() {
+        return statements().iterator();
+    }
+}
@@ -0,0 +1,198 @@
+package info.ladislav.jlox.parser;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The natives of {@link LoxList}s:
+ *
+ * - list() creates an empty list, push(list, value) appends to it,
+ *   get(list, i) and set(list, i, value) read and replace the element at an
+ *   index from 0 and len(list) counts them; get, set and len also take a
+ *   map, see {@link Maps},
+ * - pmap(list, fn) returns a list of what fn returns for each element,
+ *   pfilter(list, fn) one of the elements fn returns a truthy value for, and
+ *   preduce(list, fn, initial) combines initial and the elements with
+ *   fn(accumulated, element), left to right.
+ *
+ * When fn is pure, see {@link Purity}, and the list long enough, pmap and
+ * pfilter split it into chunks that run on the common ForkJoinPool, each on an
+ * interpreter of its own. Any other fn runs on the calling thread, and so does
+ * preduce always: purity says nothing of whether fn is associative or initial
+ * its identity, which reducing the chunks apart would need.
+ */
+final class Lists {
+
+    private Lists() {
+    }
+
+    /** Elements of a chunk that runs as one task; callbacks are interpreted, so a few hundred are plenty. */
+    static final int CHUNK = 512;
+
+    static void define(Environment globals) {
+        globals.define("list", LIST);
+        globals.define("push", PUSH);
+        globals.define("get", GET);
+        globals.define("set", SET);
+        globals.define("len", LEN);
+        globals.define("pmap", PMAP);
+        globals.define("pfilter", PFILTER);
+        globals.define("preduce", PREDUCE);
+    }
+
+    private static final LoxCallable LIST = LoxCallable.of(0, (interpreter, args) -> new LoxList());
+
+    private static final LoxCallable PUSH = LoxCallable.of(2, (interpreter, args) -> {
+        list(args.get(0)).push(args.get(1));
+        return null;
+    });
+
+    /** Reads a list, or a {@link LoxMap}, see {@link Maps}. */
+    private static final LoxCallable GET = LoxCallable.of(2, (interpreter, args) -> {
+        if (args.get(0) instanceof LoxMap) return ((LoxMap) args.get(0)).get(Maps.key(args.get(1)));
+        LoxList list = listOrMap(args.get(0));
+        return list.get(index(list, args.get(1)));
+    });
+
+    private static final LoxCallable SET = LoxCallable.of(3, (interpreter, args) -> {
+        if (args.get(0) instanceof LoxMap) {
+            ((LoxMap) args.get(0)).set(Maps.key(args.get(1)), args.get(2));
+            return null;
+        }
+        LoxList list = listOrMap(args.get(0));
+        list.set(index(list, args.get(1)), args.get(2));
+        return null;
+    });
+
+    /** Counts the elements of a list, or the keys of a {@link LoxMap}. */
+    private static final LoxCallable LEN = LoxCallable.of(1, (interpreter, args) -> {
+        if (args.get(0) instanceof LoxMap) return (double) ((LoxMap) args.get(0)).size();
+        return (double) listOrMap(args.get(0)).size();
+    });
+
+    private static final LoxCallable PMAP = LoxCallable.of(2, (interpreter, args) -> {
+        LoxList list = list(args.get(0));
+        LoxCallable fn = callback(args.get(1), 1);
+        Object[] results = new Object[list.size()];
+        forEachChunk(list, inParallel(list, fn, interpreter), interpreter, (chunk, from, to) -> {
+            for (int i = from; i < to; i++) {
+                results[i] = fn.call(chunk, Arrays.asList(list.get(i)));
+            }
+        });
+        return LoxList.of(results, results.length);
+    });
+
+    private static final LoxCallable PFILTER = LoxCallable.of(2, (interpreter, args) -> {
+        LoxList list = list(args.get(0));
+        LoxCallable fn = callback(args.get(1), 1);
+        boolean[] kept = new boolean[list.size()];
+        forEachChunk(list, inParallel(list, fn, interpreter), interpreter, (chunk, from, to) -> {
+            for (int i = from; i < to; i++) {
+                kept[i] = Interpreter.isTruthy(fn.call(chunk, Arrays.asList(list.get(i))));
+            }
+        });
+
+        LoxList filtered = new LoxList();
+        for (int i = 0; i < kept.length; i++) {
+            if (kept[i]) filtered.push(list.get(i));
+        }
+        return filtered;
+    });
+
+    private static final LoxCallable PREDUCE = LoxCallable.of(3, (interpreter, args) -> {
+        LoxList list = list(args.get(0));
+        LoxCallable fn = callback(args.get(1), 2);
+        Object accumulated = args.get(2);
+        for (int i = 0; i < list.size(); i++) {
+            accumulated = fn.call(interpreter, Arrays.asList(accumulated, list.get(i)));
+        }
+        return accumulated;
+    });
+
+    private interface Chunk {
+        void run(Interpreter interpreter, int from, int to);
+    }
+
+    /** Whether fn is pure and the list has more than one chunk, so it can run on the pool. */
+    private static boolean inParallel(LoxList list, LoxCallable fn, Interpreter interpreter) {
+        return list.size() > CHUNK && isPure(fn, interpreter);
+    }
+
+    /** Runs chunks of CHUNK elements, on the pool if parallel, on the calling interpreter one after another if not. */
+    private static void forEachChunk(LoxList list, boolean parallel, Interpreter interpreter, Chunk chunk) {
+        int size = list.size();
+        if (!parallel) {
+            for (int from = 0; from < size; from += CHUNK) {
+                chunk.run(interpreter, from, Math.min(from + CHUNK, size));
+            }
+            return;
+        }
+
+        // A pure function assigns nothing outside of itself, so the scopes it reads need no sharing.
+        ForkJoinPool.commonPool().invoke(new Split(interpreter, chunk, 0, (size + CHUNK - 1) / CHUNK, size));
+    }
+
+    /** Splits chunks [first, last) in halves until one is left to run. */
+    private static final class Split extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Interpreter parent;
+        private final Chunk chunk;
+        private final int first;
+        private final int last;
+        private final int size;
+
+        Split(Interpreter parent, Chunk chunk, int first, int last, int size) {
+            this.parent = parent;
+            this.chunk = chunk;
+            this.first = first;
+            this.last = last;
+            this.size = size;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first == 1) {
+                chunk.run(parent.fork(), first * CHUNK, Math.min((first + 1) * CHUNK, size));
+                return;
+            }
+            int middle = (first + last) >>> 1;
+            invokeAll(new Split(parent, chunk, first, middle, size), new Split(parent, chunk, middle, last, size));
+        }
+    }
+
+    private static boolean isPure(LoxCallable fn, Interpreter interpreter) {
+        if (fn instanceof MemoFunction) return ((MemoFunction) fn).isPure();
+        return fn instanceof LoxFunction && Purity.isPure((LoxFunction) fn, interpreter.globals);
+    }
+
+    private static LoxList list(Object value) {
+        if (!(value instanceof LoxList)) throw new RuntimeError("Expected a list.");
+        return (LoxList) value;
+    }
+
+    private static LoxList listOrMap(Object value) {
+        if (!(value instanceof LoxList)) throw new RuntimeError("Expected a list or a map.");
+        return (LoxList) value;
+    }
+
+    private static int index(LoxList list, Object index) {
+        if (!(index instanceof Double) || (double) index != Math.floor((double) index)) {
+            throw new RuntimeError("List index must be an integer.");
+        }
+        double i = (double) index;
+        if (i < 0 || i >= list.size()) {
+            throw new RuntimeError("List index " + Interpreter.stringify(index) + " is out of range.");
+        }
+        return (int) i;
+    }
+
+    private static LoxCallable callback(Object value, int arity) {
+        if (!(value instanceof LoxCallable) || ((LoxCallable) value).arity() != arity) {
+            throw new RuntimeError("Expected a function of " + arity + (arity == 1 ? " parameter." : " parameters."));
+        }
+        return (LoxCallable) value;
+    }
+}
@@ -1,8 +1,25 @@
 package info.ladislav.jlox.parser;
 
 import java.util.List;
+import java.util.function.BiFunction;
 
 public interface LoxCallable {
     int arity();
     Object call(Interpreter interpreter, List<Object> args);
-}
\ No newline at end of file
+
+    /** A native function, which reports errors by throwing a {@link RuntimeError} without a token. */
+    static LoxCallable of(int arity, BiFunction<Interpreter, List<Object>, Object> body) {
+        return new LoxCallable() {
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return body.apply(interpreter, args);
+            }
+
+            @Override
+            public int arity() {
+                return arity;
+            }
+        };
+    }
+}
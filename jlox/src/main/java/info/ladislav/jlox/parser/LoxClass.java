@@ -41,6 +41,14 @@ public class LoxClass implements LoxCallable {
         return instance;
     }
 
+    /** Makes the variables the methods close over safe to use from other threads. */
+    void share() {
+        for (LoxFunction method : methods.values()) {
+            method.share();
+        }
+        if (superclass != null) superclass.share();
+    }
+
     LoxFunction findMethod(String name){
 
         if(methods.containsKey(name)){
@@ -1,13 +1,12 @@
 package info.ladislav.jlox.parser;
 
 import java.util.List;
-import java.util.Optional;
 
 public class LoxFunction implements LoxCallable {
     final String name;
-    private final Expr.Function declaration;
-    private final Environment closure;
-    private final boolean isInitializer;
+    final Expr.Function declaration;
+    final Environment closure;
+    final boolean isInitializer;
 
     public LoxFunction(String name, Expr.Function declaration, Environment closure, boolean isInitializer) {
         this.name = name;
@@ -23,10 +22,21 @@ public class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> args) {
+        Interpreter.checkInterrupted();
+        if (interpreter.profile != null) {
+            interpreter.profile.called(declaration, args);
+        }
+
+        NumericFunction numeric = isInitializer ? null : NumericFunction.of(declaration, name);
+        if (numeric != null) {
+            Object value = numeric.call(interpreter, args);
+            if (value != NumericFunction.UNSUPPORTED) return value;
+        }
+
         Environment environment = new Environment(closure);
 
         for(int i = 0; i < declaration.parameters.size(); i++){
-            environment.define(declaration.parameters.get(i).lexeme, Optional.of(args.get(i)));
+            environment.define(declaration.parameters.get(i).lexeme, args.get(i));
         }
 
         try{
@@ -45,9 +55,14 @@ public class LoxFunction implements LoxCallable {
         return null;
     }
 
+    /** Makes the variables the function closes over safe to use from other threads, see {@link Environment#share()}. */
+    void share() {
+        closure.share();
+    }
+
     LoxFunction bind(LoxInstance instance) {
         Environment environment = new Environment(closure);
-        environment.define("this", Optional.of(instance));
+        environment.define("this", instance);
         return new LoxFunction(name, declaration, environment, isInitializer);
     }
 
@@ -1,13 +1,19 @@
 package info.ladislav.jlox.parser;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import info.ladislav.jlox.lexer.Token;
 
 public class LoxInstance {
-    private LoxClass clazz;
-    private final Map<String, Object> fields = new HashMap<>();
+    /** What a field holding nil maps to, as the map takes no nulls. */
+    private static final Object NIL = new Object();
+
+    final LoxClass clazz;
+    /** Concurrent, as an instance can reach other threads without its creator knowing, see {@link Concurrency}. */
+    private final Map<String, Object> fields = new ConcurrentHashMap<>();
+    /** Whether another thread can reach the instance, so values stored in it have to be shared. */
+    private volatile boolean shared = false;
     
     LoxInstance(LoxClass clazz){
         this.clazz = clazz;
@@ -20,8 +26,9 @@ public class LoxInstance {
 
     public Object get(Token name){
         
-        if(fields.containsKey(name.lexeme)){
-            return fields.get(name.lexeme);
+        Object value = fields.get(name.lexeme);
+        if(value != null){
+            return value == NIL ? null : value;
         }
 
         LoxFunction method = clazz.findMethod(name.lexeme);
@@ -34,6 +41,18 @@ public class LoxInstance {
     }
 
     void set(Token name, Object value){
-        fields.put(name.lexeme, value);
+        if (shared) Environment.share(value);
+        fields.put(name.lexeme, value == null ? NIL : value);
+    }
+
+    /** Shares the scopes the methods and the values of the fields can reach, see {@link Environment#share(Object)}. */
+    void share() {
+        if (shared) return;
+        // Set first, so fields holding the instance itself stop here.
+        shared = true;
+        clazz.share();
+        for (Object value : fields.values()) {
+            Environment.share(value);
+        }
     }
-}
\ No newline at end of file
+}
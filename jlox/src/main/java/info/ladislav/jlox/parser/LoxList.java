@@ -0,0 +1,134 @@
+package info.ladislav.jlox.parser;
+
+import java.util.Arrays;
+
+/**
+ * A growable list, which list() creates. A list that only ever held numbers
+ * keeps them in a double[]; the first value of another type moves them all to
+ * an Object[] for good.
+ *
+ * A list can be read and changed from several threads: every access holds
+ * the list's lock, so no push or set is lost and no thread sees the elements
+ * half moved to the Object[]. Once the list is shared, see
+ * {@link Environment#share(Object)}, so are the elements it holds and gets.
+ */
+final class LoxList {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    /** The elements while they are all numbers, null after that. */
+    private double[] numbers;
+    /** The elements once one was not a number, null before that. */
+    private Object[] values;
+    private int size;
+    /** Whether another thread can reach the list, so elements stored in it have to be shared. */
+    private volatile boolean shared = false;
+
+    LoxList() {
+        numbers = new double[INITIAL_CAPACITY];
+    }
+
+    /** A list of the first size of the values given, specialized if they are all numbers. */
+    static LoxList of(Object[] items, int size) {
+        LoxList list = new LoxList();
+        list.numbers = null;
+        list.values = items;
+        list.size = size;
+
+        for (int i = 0; i < size; i++) {
+            if (!(items[i] instanceof Double)) return list;
+        }
+        double[] numbers = new double[Math.max(size, INITIAL_CAPACITY)];
+        for (int i = 0; i < size; i++) {
+            numbers[i] = (double) items[i];
+        }
+        list.numbers = numbers;
+        list.values = null;
+        return list;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /** Whether the elements are kept as primitives. */
+    synchronized boolean isNumeric() {
+        return values == null;
+    }
+
+    synchronized Object get(int index) {
+        return values == null ? (Object) numbers[index] : values[index];
+    }
+
+    void set(int index, Object value) {
+        if (shared) Environment.share(value);
+        synchronized (this) {
+            if (values == null) {
+                if (value instanceof Double) {
+                    numbers[index] = (double) value;
+                    return;
+                }
+                box();
+            }
+            values[index] = value;
+        }
+    }
+
+    void push(Object value) {
+        if (shared) Environment.share(value);
+        synchronized (this) {
+            if (values == null && !(value instanceof Double)) box();
+
+            if (values == null) {
+                if (size == numbers.length) numbers = Arrays.copyOf(numbers, size * 2);
+                numbers[size++] = (double) value;
+            } else {
+                if (size == values.length) values = Arrays.copyOf(values, Math.max(size * 2, INITIAL_CAPACITY));
+                values[size++] = value;
+            }
+        }
+    }
+
+    /** Shares the scopes the elements can reach, see {@link Environment#share(Object)}. */
+    void share() {
+        Object[] elements;
+        synchronized (this) {
+            if (shared) return;
+            // Set first, so a list holding itself stops here.
+            shared = true;
+            if (values == null) return;
+            elements = Arrays.copyOf(values, size);
+        }
+        for (Object element : elements) {
+            Environment.share(element);
+        }
+    }
+
+    private void box() {
+        Object[] boxed = new Object[numbers.length];
+        for (int i = 0; i < size; i++) {
+            boxed[i] = numbers[i];
+        }
+        values = boxed;
+        numbers = null;
+    }
+
+    @Override
+    public String toString() {
+        // Copied first, so printing elements that are lists never holds two locks.
+        Object[] elements;
+        synchronized (this) {
+            elements = new Object[size];
+            for (int i = 0; i < size; i++) {
+                elements[i] = get(i);
+            }
+        }
+
+        StringBuilder text = new StringBuilder("[");
+        for (int i = 0; i < elements.length; i++) {
+            if (i > 0) text.append(", ");
+            text.append(elements[i] == this ? "[...]" : Interpreter.stringify(elements[i]));
+        }
+        return text.append(']').toString();
+    }
+}
@@ -0,0 +1,188 @@
+package info.ladislav.jlox.parser;
+
+/**
+ * A hash map, which map() creates, keyed by strings, numbers, booleans and
+ * instances, the latter by identity.
+ *
+ * The table is open addressed with linear probing: the hash of every key sits
+ * in an int[] next to the key and value arrays, so a probe compares ints and
+ * only calls equals on a matching hash. Removing shifts the following keys of
+ * the run back instead of leaving tombstones, so lookups never grow slower
+ * after removals. The table doubles at half full.
+ *
+ * Like a {@link LoxList}, a map can be used from several threads: every
+ * access holds the map's lock, so no thread sees a table half grown or half
+ * shifted by a removal. Once the map is shared, see
+ * {@link Environment#share(Object)}, so are the keys and values it holds and
+ * gets.
+ */
+final class LoxMap {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Spread hashes of the keys, valid where keys is not null. */
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private Object[] keys = new Object[INITIAL_CAPACITY];
+    private Object[] values = new Object[INITIAL_CAPACITY];
+    private int size;
+    /** Whether another thread can reach the map, so keys and values stored in it have to be shared. */
+    private volatile boolean shared = false;
+
+    /** Whether a value can be a key. */
+    static boolean isKey(Object value) {
+        return value instanceof String || value instanceof Double || value instanceof Boolean
+            || value instanceof LoxInstance;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean has(Object key) {
+        return slot(key, hash(key)) >= 0;
+    }
+
+    /** The value of a key, nil if the map has none. */
+    synchronized Object get(Object key) {
+        int slot = slot(key, hash(key));
+        return slot >= 0 ? values[slot] : null;
+    }
+
+    void set(Object key, Object value) {
+        if (shared) {
+            Environment.share(key);
+            Environment.share(value);
+        }
+        synchronized (this) {
+            int hash = hash(key);
+            int slot = slot(key, hash);
+            if (slot >= 0) {
+                values[slot] = value;
+                return;
+            }
+
+            if (2 * (size + 1) > keys.length) {
+                grow();
+            }
+            slot = hash & (keys.length - 1);
+            while (keys[slot] != null) {
+                slot = (slot + 1) & (keys.length - 1);
+            }
+            hashes[slot] = hash;
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+        }
+    }
+
+    /** Removes a key, returning whether the map had it. */
+    synchronized boolean remove(Object key) {
+        int slot = slot(key, hash(key));
+        if (slot < 0) {
+            return false;
+        }
+
+        int mask = keys.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; keys[next] != null; next = (next + 1) & mask) {
+            // A key moves into the hole unless its home slot lies cyclically in (hole, next].
+            int home = hashes[next] & mask;
+            boolean stays = hole < next ? hole < home && home <= next : hole < home || home <= next;
+            if (!stays) {
+                hashes[hole] = hashes[next];
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+        keys[hole] = null;
+        values[hole] = null;
+        size--;
+        return true;
+    }
+
+    /** The keys in table order, which is not the order they were added in. */
+    synchronized LoxList keys() {
+        Object[] result = new Object[size];
+        int count = 0;
+        for (Object key : keys) {
+            if (key != null) result[count++] = key;
+        }
+        return LoxList.of(result, count);
+    }
+
+    /** Shares the scopes the keys and values can reach, see {@link Environment#share(Object)}. */
+    void share() {
+        Object[] entries;
+        synchronized (this) {
+            if (shared) return;
+            // Set first, so a map holding itself stops here.
+            shared = true;
+            entries = entries();
+        }
+        for (Object entry : entries) {
+            Environment.share(entry);
+        }
+    }
+
+    /** Every key followed by its value, copied so they can be used without holding the lock. */
+    private synchronized Object[] entries() {
+        Object[] entries = new Object[2 * size];
+        int count = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null) continue;
+            entries[count++] = keys[i];
+            entries[count++] = values[i];
+        }
+        return entries;
+    }
+
+    private int slot(Object key, int hash) {
+        int mask = keys.length - 1;
+        for (int slot = hash & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && keys[slot].equals(key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void grow() {
+        int[] oldHashes = hashes;
+        Object[] oldKeys = keys;
+        Object[] oldValues = values;
+        hashes = new int[oldKeys.length * 2];
+        keys = new Object[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) continue;
+            int slot = oldHashes[i] & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = oldHashes[i];
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    @Override
+    public String toString() {
+        // Copied first, so printing values that are maps or lists never holds two locks.
+        Object[] entries = entries();
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i < entries.length; i += 2) {
+            if (i > 0) text.append(", ");
+            text.append(Interpreter.stringify(entries[i])).append(": ")
+                .append(entries[i + 1] == this ? "{...}" : Interpreter.stringify(entries[i + 1]));
+        }
+        return text.append('}').toString();
+    }
+}
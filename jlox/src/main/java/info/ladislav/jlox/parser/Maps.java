@@ -0,0 +1,43 @@
+package info.ladislav.jlox.parser;
+
+/**
+ * The natives of {@link LoxMap}s: map() creates an empty map, get(map, key)
+ * returns the value of a key or nil and set(map, key, value) adds or replaces
+ * one and len(map) counts the keys, see {@link Lists}; has(map, key) tells
+ * whether a key is there, remove(map, key) removes it and returns whether it
+ * was there and size(map) counts the keys like len. keys(map) returns the
+ * keys as a list, which a loop can go through with get while the map changes.
+ */
+final class Maps {
+
+    private Maps() {
+    }
+
+    static void define(Environment globals) {
+        globals.define("map", MAP);
+        globals.define("has", HAS);
+        globals.define("remove", REMOVE);
+        globals.define("size", SIZE);
+        globals.define("keys", KEYS);
+    }
+
+    private static final LoxCallable MAP = LoxCallable.of(0, (interpreter, args) -> new LoxMap());
+
+    private static final LoxCallable HAS = LoxCallable.of(2, (interpreter, args) -> map(args.get(0)).has(key(args.get(1))));
+
+    private static final LoxCallable REMOVE = LoxCallable.of(2, (interpreter, args) -> map(args.get(0)).remove(key(args.get(1))));
+
+    private static final LoxCallable SIZE = LoxCallable.of(1, (interpreter, args) -> (double) map(args.get(0)).size());
+
+    private static final LoxCallable KEYS = LoxCallable.of(1, (interpreter, args) -> map(args.get(0)).keys());
+
+    private static LoxMap map(Object value) {
+        if (!(value instanceof LoxMap)) throw new RuntimeError("Expected a map.");
+        return (LoxMap) value;
+    }
+
+    static Object key(Object key) {
+        if (!LoxMap.isKey(key)) throw new RuntimeError("Map keys must be strings, numbers, booleans or instances.");
+        return key;
+    }
+}
@@ -0,0 +1,122 @@
+package info.ladislav.jlox.parser;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pure function that remembers what it returned, which memo(fn) creates.
+ *
+ * Arguments are the key when they are all numbers, strings, booleans or nil;
+ * other calls, and calls that fail, go to the function every time. The least
+ * recently used results are dropped beyond {@link #CAPACITY}. For a recursive
+ * function to benefit, its name has to be bound to the memo, as in
+ * {@code fib = memo(fib);}, so its calls of itself go through it.
+ *
+ * The function is pure as long as the globals it calls hold what they did when
+ * it was analyzed. Once one of the globals that held a function is assigned, see
+ * {@link Environment#rebinds()}, the memo drops its results and analyzes the
+ * function again, calling it without remembering anything if it is no longer
+ * pure.
+ */
+final class MemoFunction implements LoxCallable {
+
+    static final int CAPACITY = 10_000;
+
+    final LoxFunction function;
+    private final Environment globals;
+    private final Map<List<Object>, Object> results = new LinkedHashMap<List<Object>, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    private long hits = 0;
+    private long misses = 0;
+    /** The rebinds of the globals at the last analysis, and what it found, guarded by results. */
+    private int checkedAt;
+    private boolean pure = true;
+
+    private MemoFunction(LoxFunction function, Environment globals) {
+        this.function = function;
+        this.globals = globals;
+        this.checkedAt = globals.rebinds();
+    }
+
+    /** The memo of a function, a runtime error without a token for anything but a pure function. */
+    static MemoFunction of(Object callee, Environment globals) {
+        if (callee instanceof MemoFunction) return (MemoFunction) callee;
+        if (!(callee instanceof LoxFunction) || !Purity.isPure((LoxFunction) callee, globals)) {
+            throw new RuntimeError("Only pure functions can be memoized.");
+        }
+        return new MemoFunction((LoxFunction) callee, globals);
+    }
+
+    @Override
+    public int arity() {
+        return function.arity();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> args) {
+        int rebinds = globals.rebinds();
+        if (!isPure(rebinds)) return function.call(interpreter, args);
+        for (Object arg : args) {
+            if (arg != null && !(arg instanceof Double) && !(arg instanceof String) && !(arg instanceof Boolean)) {
+                return function.call(interpreter, args);
+            }
+        }
+
+        // The interpreter builds a new list for every call, so it can be the key.
+        synchronized (results) {
+            if (results.containsKey(args)) {
+                hits++;
+                return results.get(args);
+            }
+            misses++;
+        }
+
+        Object result = function.call(interpreter, args);
+        synchronized (results) {
+            // Not if a global was rebound meanwhile, which may have changed the result.
+            if (checkedAt == rebinds) results.put(args, result);
+        }
+        return result;
+    }
+
+    /** Whether the function is still pure, analyzing it again if globals were rebound since. */
+    boolean isPure() {
+        return isPure(globals.rebinds());
+    }
+
+    private boolean isPure(int rebinds) {
+        synchronized (results) {
+            if (checkedAt != rebinds) {
+                results.clear();
+                pure = Purity.isPure(function, globals);
+                checkedAt = rebinds;
+            }
+            return pure;
+        }
+    }
+
+    long hits() {
+        synchronized (results) {
+            return hits;
+        }
+    }
+
+    long misses() {
+        synchronized (results) {
+            return misses;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (results) {
+            return "<memo " + function + ", " + hits + " hits, " + misses + " misses>";
+        }
+    }
+}
@@ -0,0 +1,492 @@
+package info.ladislav.jlox.parser;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import info.ladislav.jlox.lexer.Token;
+import info.ladislav.jlox.lexer.TokenType;
+
+/**
+ * A function whose parameters and locals can only ever hold numbers, given
+ * numbers as arguments, run on a double[] frame instead of environments of
+ * boxed values.
+ *
+ * The body may declare and assign locals, do arithmetic and comparisons,
+ * branch, loop, return numbers and call itself through its global name.
+ * Every local is found through the depth the resolver gave it, counting the
+ * scopes of the function and its blocks, so a read of anything outside the
+ * function, a print, a nested function or an object rules it out. Locals are
+ * only ever assigned numbers and only read where every path to the read
+ * assigned them, by their initializer or otherwise, so each one is a number
+ * wherever it is read and keeps a slot of the frame.
+ *
+ * A call with an argument that is not a number, and a body that finds its
+ * name bound to another function by the time it calls itself, take the
+ * ordinary path instead. The body has no effects until then, so running it
+ * again from the start cannot be told apart.
+ */
+final class NumericFunction {
+
+    /** Returned by {@link #call(Interpreter, List)} when the ordinary path has to run. */
+    static final Object UNSUPPORTED = new Object();
+
+    /** Marks a declaration that was analyzed and is not numeric. */
+    private static final NumericFunction NONE = new NumericFunction(null, 0);
+
+    private static final int NEXT = 0;
+    private static final int RETURNED = 1;
+    private static final int RETURNED_NIL = 2;
+
+    private interface Num {
+        double eval(Interpreter interpreter, double[] frame);
+    }
+
+    private interface Cond {
+        boolean test(Interpreter interpreter, double[] frame);
+    }
+
+    private interface Step {
+        /** NEXT, or RETURNED with the value in frame[0], or RETURNED_NIL. */
+        int run(Interpreter interpreter, double[] frame);
+    }
+
+    /** Thrown where the body calls itself but its name is bound to something else. */
+    private static final class Fallback extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Fallback() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Fallback FALLBACK = new Fallback();
+
+    private final Step body;
+    /** Slot 0 holds the returned number, the parameters follow. */
+    private final int frameSize;
+
+    private NumericFunction(Step body, int frameSize) {
+        this.body = body;
+        this.frameSize = frameSize;
+    }
+
+    /** The numeric form of a function declared under a name, or null for the ordinary path. */
+    static NumericFunction of(Expr.Function declaration, String name) {
+        NumericFunction numeric = declaration.numeric;
+        if (numeric == null) {
+            numeric = new Compiler(declaration, name).compile();
+            declaration.numeric = numeric;
+        }
+        return numeric == NONE ? null : numeric;
+    }
+
+    /** Makes calls of a function take the ordinary path without analyzing it, as it gets more than numbers. */
+    static void skip(Expr.Function declaration) {
+        if (declaration.numeric == null) {
+            declaration.numeric = NONE;
+        }
+    }
+
+    /** The returned value, or {@link #UNSUPPORTED} if the function has to run the ordinary way. */
+    Object call(Interpreter interpreter, List<Object> args) {
+        double[] frame = new double[frameSize];
+        for (int i = 0; i < args.size(); i++) {
+            Object arg = args.get(i);
+            if (!(arg instanceof Double)) return UNSUPPORTED;
+            frame[i + 1] = (double) arg;
+        }
+
+        try {
+            return body.run(interpreter, frame) == RETURNED ? (Object) frame[0] : null;
+        } catch (Fallback e) {
+            return UNSUPPORTED;
+        }
+    }
+
+    /** Builds the closures of a numeric body, or gives up with null on anything else. */
+    private static final class Compiler {
+
+        private final Expr.Function declaration;
+        private final String name;
+        /** Slots of the locals in the scopes of the function, innermost last. */
+        private final List<Map<String, Integer>> scopes = new ArrayList<>();
+        private int slots = 1;
+        /** Slots of locals that some path to the code compiled next has not assigned yet. */
+        private BitSet unassigned = new BitSet();
+        private boolean callsSelf = false;
+        private boolean returnsNil = false;
+        /** The global name calls of itself go through. */
+        private Token self;
+        /** The whole body, for calls of itself, which are built before it is. */
+        private Step body;
+
+        Compiler(Expr.Function declaration, String name) {
+            this.declaration = declaration;
+            this.name = name;
+        }
+
+        NumericFunction compile() {
+            Map<String, Integer> parameters = new HashMap<>();
+            for (Token parameter : declaration.parameters) {
+                parameters.put(parameter.lexeme, slots++);
+            }
+            scopes.add(parameters);
+
+            self = name == null ? null : new Token(TokenType.IDENTIFIER, name, null, 0);
+            body = block(declaration.body);
+            if (body == null) return NONE;
+            // A call of itself has to return a number.
+            if (callsSelf && (returnsNil || !returns(declaration.body))) return NONE;
+
+            return new NumericFunction(body, slots);
+        }
+
+        private Step block(List<Stmt> statements) {
+            List<Step> steps = new ArrayList<>();
+            for (Stmt statement : statements) {
+                Step step = stmt(statement);
+                if (step == null) return null;
+                steps.add(step);
+            }
+
+            Step[] all = steps.toArray(new Step[0]);
+            return (interpreter, frame) -> {
+                for (Step step : all) {
+                    int result = step.run(interpreter, frame);
+                    if (result != NEXT) return result;
+                }
+                return NEXT;
+            };
+        }
+
+        private Step stmt(Stmt stmt) {
+            if (stmt instanceof Stmt.Expression) {
+                Expr expression = ((Stmt.Expression) stmt).expression;
+                BitSet start = (BitSet) unassigned.clone();
+                Num num = num(expression);
+                if (num != null) {
+                    return (interpreter, frame) -> {
+                        num.eval(interpreter, frame);
+                        return NEXT;
+                    };
+                }
+                unassigned = start;
+                Cond cond = cond(expression);
+                if (cond == null) return null;
+                return (interpreter, frame) -> {
+                    cond.test(interpreter, frame);
+                    return NEXT;
+                };
+            } else if (stmt instanceof Stmt.Var) {
+                Stmt.Var var = (Stmt.Var) stmt;
+                if (var.initializer == null) {
+                    int slot = slots++;
+                    scopes.get(scopes.size() - 1).put(var.name.lexeme, slot);
+                    unassigned.set(slot);
+                    return (interpreter, frame) -> NEXT;
+                }
+
+                Num initializer = num(var.initializer);
+                if (initializer == null) return null;
+
+                int slot = slots++;
+                scopes.get(scopes.size() - 1).put(var.name.lexeme, slot);
+                unassigned.clear(slot);
+                return (interpreter, frame) -> {
+                    frame[slot] = initializer.eval(interpreter, frame);
+                    return NEXT;
+                };
+            } else if (stmt instanceof Stmt.Block) {
+                scopes.add(new HashMap<>());
+                Step block = block(((Stmt.Block) stmt).statements);
+                scopes.remove(scopes.size() - 1);
+                return block;
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If branch = (Stmt.If) stmt;
+                Cond condition = truth(branch.condition);
+                if (condition == null) return null;
+                BitSet before = (BitSet) unassigned.clone();
+                Step thenBranch = stmt(branch.thenBranch);
+                if (thenBranch == null) return null;
+                if (branch.elseBranch == null) {
+                    unassigned.or(before);
+                    return (interpreter, frame) ->
+                        condition.test(interpreter, frame) ? thenBranch.run(interpreter, frame) : NEXT;
+                }
+
+                BitSet afterThen = unassigned;
+                unassigned = before;
+                Step elseBranch = stmt(branch.elseBranch);
+                if (elseBranch == null) return null;
+                unassigned.or(afterThen);
+                return (interpreter, frame) -> condition.test(interpreter, frame)
+                    ? thenBranch.run(interpreter, frame)
+                    : elseBranch.run(interpreter, frame);
+            } else if (stmt instanceof Stmt.While) {
+                Stmt.While loop = (Stmt.While) stmt;
+                Cond condition = truth(loop.condition);
+                if (condition == null) return null;
+                // The body may not run at all.
+                BitSet before = (BitSet) unassigned.clone();
+                Step body = stmt(loop.body);
+                if (body == null) return null;
+                unassigned.or(before);
+                return (interpreter, frame) -> {
+                    while (condition.test(interpreter, frame)) {
+                        Interpreter.checkInterrupted();
+                        int result = body.run(interpreter, frame);
+                        if (result != NEXT) return result;
+                    }
+                    return NEXT;
+                };
+            } else if (stmt instanceof Stmt.Return) {
+                Expr value = ((Stmt.Return) stmt).value;
+                if (value == null) {
+                    returnsNil = true;
+                    return (interpreter, frame) -> RETURNED_NIL;
+                }
+
+                Num num = num(value);
+                if (num == null) return null;
+                return (interpreter, frame) -> {
+                    frame[0] = num.eval(interpreter, frame);
+                    return RETURNED;
+                };
+            }
+            return null;
+        }
+
+        /** An expression that always evaluates to a number, or null. */
+        private Num num(Expr expr) {
+            if (expr instanceof Expr.Grouping) {
+                return num(((Expr.Grouping) expr).expression);
+            } else if (expr instanceof Expr.Literal) {
+                Object value = ((Expr.Literal) expr).value;
+                if (!(value instanceof Double)) return null;
+                double number = (double) value;
+                return (interpreter, frame) -> number;
+            } else if (expr instanceof Expr.Variable) {
+                int slot = slot(expr, ((Expr.Variable) expr).name);
+                if (slot < 0 || unassigned.get(slot)) return null;
+                return (interpreter, frame) -> frame[slot];
+            } else if (expr instanceof Expr.Assign) {
+                Expr.Assign assign = (Expr.Assign) expr;
+                int slot = slot(assign, assign.name);
+                Num value = slot < 0 ? null : num(assign.value);
+                if (value == null) return null;
+                unassigned.clear(slot);
+                return (interpreter, frame) -> frame[slot] = value.eval(interpreter, frame);
+            } else if (expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary) expr;
+                Num right = unary.operator.type == TokenType.MINUS ? num(unary.right) : null;
+                if (right == null) return null;
+                return (interpreter, frame) -> -right.eval(interpreter, frame);
+            } else if (expr instanceof Expr.Binary) {
+                return arithmetic((Expr.Binary) expr);
+            } else if (expr instanceof Expr.Ternary) {
+                Expr.Ternary ternary = (Expr.Ternary) expr;
+                // Like choosesTrueBranch: a number chooses the true branch when it is above 0.
+                BitSet start = (BitSet) unassigned.clone();
+                Cond condition = cond(ternary.condition);
+                if (condition == null) {
+                    unassigned = start;
+                    Num number = num(ternary.condition);
+                    condition = number == null ? null : (interpreter, frame) -> number.eval(interpreter, frame) > 0;
+                }
+                if (condition == null) return null;
+                BitSet before = (BitSet) unassigned.clone();
+                Num ifTrue = num(ternary.if_true);
+                if (ifTrue == null) return null;
+                BitSet afterTrue = unassigned;
+                unassigned = before;
+                Num ifFalse = num(ternary.if_false);
+                if (ifFalse == null) return null;
+                unassigned.or(afterTrue);
+
+                Cond chooses = condition;
+                return (interpreter, frame) -> chooses.test(interpreter, frame)
+                    ? ifTrue.eval(interpreter, frame)
+                    : ifFalse.eval(interpreter, frame);
+            } else if (expr instanceof Expr.Call) {
+                return callOfSelf((Expr.Call) expr);
+            }
+            return null;
+        }
+
+        private Num arithmetic(Expr.Binary binary) {
+            TokenType operator = binary.operator.type;
+            if (operator != TokenType.PLUS && operator != TokenType.MINUS
+                    && operator != TokenType.STAR && operator != TokenType.SLASH) {
+                return null;
+            }
+            Num left = num(binary.left);
+            Num right = left == null ? null : num(binary.right);
+            if (right == null) return null;
+
+            switch (operator) {
+                case PLUS:
+                    return (interpreter, frame) -> left.eval(interpreter, frame) + right.eval(interpreter, frame);
+                case MINUS:
+                    return (interpreter, frame) -> left.eval(interpreter, frame) - right.eval(interpreter, frame);
+                case STAR:
+                    return (interpreter, frame) -> left.eval(interpreter, frame) * right.eval(interpreter, frame);
+                default:
+                    Token token = binary.operator;
+                    return (interpreter, frame) -> {
+                        double dividend = left.eval(interpreter, frame);
+                        double divisor = right.eval(interpreter, frame);
+                        if (divisor == 0) {
+                            throw new RuntimeError(token, "Division by zero.");
+                        }
+                        return dividend / divisor;
+                    };
+            }
+        }
+
+        /** f(...) inside f, where f is the global the function was declared as. */
+        private Num callOfSelf(Expr.Call call) {
+            if (name == null || !(call.callee instanceof Expr.Variable)
+                    || call.callee.depth != Expr.UNRESOLVED
+                    || !((Expr.Variable) call.callee).name.lexeme.equals(name)
+                    || call.arguments.size() != declaration.parameters.size()) {
+                return null;
+            }
+
+            Num[] args = new Num[call.arguments.size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = num(call.arguments.get(i));
+                if (args[i] == null) return null;
+            }
+
+            callsSelf = true;
+            return (interpreter, frame) -> callSelf(interpreter, frame, args);
+        }
+
+        private double callSelf(Interpreter interpreter, double[] caller, Num[] args) {
+            // The callee first, as the interpreter evaluates it before the arguments.
+            Object callee = interpreter.globals.get(self);
+            if (!(callee instanceof LoxFunction) || ((LoxFunction) callee).declaration != declaration
+                    || ((LoxFunction) callee).isInitializer) {
+                throw FALLBACK;
+            }
+            Interpreter.checkInterrupted();
+
+            double[] frame = new double[slots];
+            for (int i = 0; i < args.length; i++) {
+                frame[i + 1] = args[i].eval(interpreter, caller);
+            }
+            body.run(interpreter, frame);
+            return frame[0];
+        }
+
+        /** An expression that always evaluates to a boolean, or null. */
+        private Cond cond(Expr expr) {
+            if (expr instanceof Expr.Grouping) {
+                return cond(((Expr.Grouping) expr).expression);
+            } else if (expr instanceof Expr.Literal) {
+                Object value = ((Expr.Literal) expr).value;
+                if (!(value instanceof Boolean)) return null;
+                boolean bool = (boolean) value;
+                return (interpreter, frame) -> bool;
+            } else if (expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary) expr;
+                if (unary.operator.type != TokenType.BANG) return null;
+                Cond right = truth(unary.right);
+                if (right == null) return null;
+                return (interpreter, frame) -> !right.test(interpreter, frame);
+            } else if (expr instanceof Expr.Logical) {
+                Expr.Logical logical = (Expr.Logical) expr;
+                Cond left = cond(logical.left);
+                if (left == null) return null;
+                // The right operand may not run.
+                BitSet before = (BitSet) unassigned.clone();
+                Cond right = cond(logical.right);
+                if (right == null) return null;
+                unassigned = before;
+                if (logical.operator.type == TokenType.OR) {
+                    return (interpreter, frame) -> left.test(interpreter, frame) || right.test(interpreter, frame);
+                }
+                return (interpreter, frame) -> left.test(interpreter, frame) && right.test(interpreter, frame);
+            } else if (expr instanceof Expr.Binary) {
+                return comparison((Expr.Binary) expr);
+            }
+            return null;
+        }
+
+        private Cond comparison(Expr.Binary binary) {
+            TokenType operator = binary.operator.type;
+            if (operator != TokenType.LESS && operator != TokenType.LESS_EQUAL
+                    && operator != TokenType.GREATER && operator != TokenType.GREATER_EQUAL
+                    && operator != TokenType.EQUAL_EQUAL && operator != TokenType.BANG_EQUAL) {
+                return null;
+            }
+            Num left = num(binary.left);
+            Num right = left == null ? null : num(binary.right);
+            if (right == null) return null;
+
+            switch (operator) {
+                case LESS:
+                    return (interpreter, frame) -> left.eval(interpreter, frame) < right.eval(interpreter, frame);
+                case LESS_EQUAL:
+                    return (interpreter, frame) -> left.eval(interpreter, frame) <= right.eval(interpreter, frame);
+                case GREATER:
+                    return (interpreter, frame) -> left.eval(interpreter, frame) > right.eval(interpreter, frame);
+                case GREATER_EQUAL:
+                    return (interpreter, frame) -> left.eval(interpreter, frame) >= right.eval(interpreter, frame);
+                // Like Double.equals, which isEqual uses: NaN equals itself and 0 differs from -0.
+                case EQUAL_EQUAL:
+                    return (interpreter, frame) -> Double.doubleToLongBits(left.eval(interpreter, frame))
+                        == Double.doubleToLongBits(right.eval(interpreter, frame));
+                default:
+                    return (interpreter, frame) -> Double.doubleToLongBits(left.eval(interpreter, frame))
+                        != Double.doubleToLongBits(right.eval(interpreter, frame));
+            }
+        }
+
+        /** The truthiness of a condition of an if or a while: booleans, and numbers, which are always true. */
+        private Cond truth(Expr expr) {
+            BitSet start = (BitSet) unassigned.clone();
+            Cond cond = cond(expr);
+            if (cond != null) return cond;
+
+            unassigned = start;
+            Num num = num(expr);
+            if (num == null) return null;
+            return (interpreter, frame) -> {
+                num.eval(interpreter, frame);
+                return true;
+            };
+        }
+
+        /** The slot of a local of the function, or -1 for anything declared outside of it. */
+        private int slot(Expr expr, Token name) {
+            int scope = scopes.size() - 1 - expr.depth;
+            if (expr.depth == Expr.UNRESOLVED || scope < 0) return -1;
+            Integer slot = scopes.get(scope).get(name.lexeme);
+            return slot == null ? -1 : slot;
+        }
+
+        /** Whether running the statements always ends in a return. */
+        private static boolean returns(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                if (returns(statement)) return true;
+            }
+            return false;
+        }
+
+        private static boolean returns(Stmt stmt) {
+            if (stmt instanceof Stmt.Return) {
+                return true;
+            } else if (stmt instanceof Stmt.Block) {
+                return returns(((Stmt.Block) stmt).statements);
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If branch = (Stmt.If) stmt;
+                return branch.elseBranch != null && returns(branch.thenBranch) && returns(branch.elseBranch);
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package info.ladislav.jlox.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import info.ladislav.jlox.lexer.TokenType;
+
+/**
+ * Simplifies a resolved program before it runs:
+ *
+ * - operators, groupings, ternaries and logical operators over literals are
+ *   evaluated once, by the interpreter itself so the results are exactly the
+ *   ones it would compute; an operation that fails, e.g. a division by zero,
+ *   is left in place to fail at run time,
+ * - reads of a top level variable declared once with a literal and never
+ *   assigned become that literal, if they come after the declaration,
+ * - if statements with a literal condition are replaced by the branch taken,
+ *   and while loops with a false literal condition are dropped,
+ * - calls of small top level functions are replaced by their bodies, see
+ *   {@link #inline(Expr, List)},
+ * - for loops counting a local by a constant step become {@link CountedLoop}s,
+ * - increments, property chains, branches on comparisons and returns of
+ *   operators become the {@link Fused} nodes the interpreter runs in one step.
+ *
+ * Changed nodes are rebuilt, since nodes are immutable; the depths of rebuilt
+ * assignments are registered in the interpreter again. Lazy function bodies
+ * are left as they are.
+ */
+public class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    /** Largest function body, in nodes, that is copied into its callers. */
+    static final int MAX_INLINED_SIZE = 24;
+
+    private final Interpreter interpreter;
+    private final Set<String> assignedGlobals;
+    private final Set<Expr> maybeUninitialized;
+    /** Assignments in bodies resolved later are not known yet, so nothing is constant. */
+    private final boolean propagate;
+
+    /** Top level variables that hold their literal value from their declaration on. */
+    private final Map<String, Object> constants = new HashMap<>();
+    /** Top level functions whose calls can be replaced by their bodies, from their declaration on. */
+    private final Map<String, Expr.Function> inlinable = new HashMap<>();
+    /** Arguments of the call being inlined, by parameter name. */
+    private Map<String, Expr> arguments = null;
+
+    public Optimizer(Interpreter interpreter, Resolver resolver) {
+        this.interpreter = interpreter;
+        this.assignedGlobals = resolver.assignedGlobals();
+        this.maybeUninitialized = resolver.maybeUninitialized();
+        this.propagate = !resolver.deferred();
+    }
+
+    /** Optimizes a whole program, top level declarations included, resolved by the resolver given. */
+    public List<Stmt> optimize(List<Stmt> statements) {
+        // A name declared twice, or as a function or class, is not a constant.
+        Map<String, Integer> declarations = new HashMap<>();
+        for (Stmt statement : statements) {
+            String name = null;
+            if (statement instanceof Stmt.Var) name = ((Stmt.Var) statement).name.lexeme;
+            if (statement instanceof Stmt.Function) name = ((Stmt.Function) statement).name.lexeme;
+            if (statement instanceof Stmt.Class) name = ((Stmt.Class) statement).name.lexeme;
+            if (name != null) declarations.merge(name, 1, Integer::sum);
+        }
+
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            Stmt result = stmt(statement);
+            if (result == null) continue;
+            optimized.add(result);
+
+            if (propagate && result instanceof Stmt.Var) {
+                Stmt.Var var = (Stmt.Var) result;
+                String name = var.name.lexeme;
+                if (var.initializer instanceof Expr.Literal && declarations.get(name) == 1
+                        && !assignedGlobals.contains(name)) {
+                    constants.put(name, ((Expr.Literal) var.initializer).value);
+                }
+            }
+
+            if (propagate && result instanceof Stmt.Function) {
+                Stmt.Function function = (Stmt.Function) result;
+                String name = function.name.lexeme;
+                if (declarations.get(name) == 1 && !assignedGlobals.contains(name)
+                        && returnValue(function.function) != null) {
+                    inlinable.put(name, function.function);
+                }
+            }
+        }
+        return optimized;
+    }
+
+    private Stmt stmt(Stmt stmt) {
+        return stmt == null ? null : Fused.fuse(stmt.accept(this));
+    }
+
+    /** A statement where one is required, even if it was optimized away. */
+    private Stmt required(Stmt stmt) {
+        Stmt result = stmt(stmt);
+        return result != null ? result : new Stmt.Block(new ArrayList<>());
+    }
+
+    private Expr expr(Expr expr) {
+        return expr == null ? null : Fused.fuse(expr.accept(this), interpreter);
+    }
+
+    private List<Stmt> stmts(List<Stmt> statements) {
+        if (statements instanceof LazyBlock) return statements;
+
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (Stmt statement : statements) {
+            Stmt result = stmt(statement);
+            changed |= result != statement;
+            if (result != null) optimized.add(result);
+        }
+        return changed ? optimized : statements;
+    }
+
+    /** The value of an expression over literals, or the expression itself if evaluating it fails. */
+    private Expr fold(Expr expr) {
+        try {
+            return new Expr.Literal(expr.accept(interpreter));
+        } catch (RuntimeException e) {
+            // E.g. a division by zero: keep it, so it fails when and if it runs.
+            return expr;
+        }
+    }
+
+    /**
+     * The body of a call of an inlinable function with arguments that can be
+     * moved, or null.
+     *
+     * The function is a top level one, declared once and never assigned, so
+     * from its declaration on the name always means this function. Its body
+     * is a single return of an expression without calls, assignments or
+     * functions: it has no effects, cannot recurse, captures nothing but its
+     * parameters and reads globals through their names wherever it is copied.
+     * Because of that, reading an argument later, more than once or not at
+     * all makes no difference as long as reading it cannot fail either, so
+     * arguments must be literals or initialized locals.
+     */
+    private Expr inline(Expr callee, List<Expr> args) {
+        if (!(callee instanceof Expr.Variable) || interpreter.depth(callee) != null) return null;
+
+        Expr.Function function = inlinable.get(((Expr.Variable) callee).name.lexeme);
+        if (function == null || function.parameters.size() != args.size()) return null;
+
+        Map<String, Expr> bound = new HashMap<>();
+        for (int i = 0; i < args.size(); i++) {
+            Expr argument = args.get(i);
+            boolean local = (argument instanceof Expr.Variable || argument instanceof Expr.This)
+                && interpreter.depth(argument) != null && !maybeUninitialized.contains(argument);
+            if (!isLiteral(argument) && !local) return null;
+            bound.put(function.parameters.get(i).lexeme, argument);
+        }
+
+        Map<String, Expr> enclosing = arguments;
+        arguments = bound;
+        try {
+            return expr(returnValue(function));
+        } finally {
+            arguments = enclosing;
+        }
+    }
+
+    /** The returned expression of a function that can be inlined, null if it cannot. */
+    private static Expr returnValue(Expr.Function function) {
+        List<Stmt> body = function.body;
+        if (body instanceof LazyBlock || body.size() != 1 || !(body.get(0) instanceof Stmt.Return)) {
+            return null;
+        }
+        Expr value = ((Stmt.Return) body.get(0)).value;
+        if (value == null) {
+            value = new Expr.Literal(null);
+        }
+        return size(value) <= MAX_INLINED_SIZE ? value : null;
+    }
+
+    /** Nodes in an expression without effects, MAX_INLINED_SIZE + 1 if it may have some. */
+    private static int size(Expr expr) {
+        if (expr instanceof Expr.Literal || expr instanceof Expr.Variable) {
+            return 1;
+        } else if (expr instanceof Expr.Binary) {
+            return 1 + size(((Expr.Binary) expr).left) + size(((Expr.Binary) expr).right);
+        } else if (expr instanceof Expr.Logical) {
+            return 1 + size(((Expr.Logical) expr).left) + size(((Expr.Logical) expr).right);
+        } else if (expr instanceof Expr.Unary) {
+            return 1 + size(((Expr.Unary) expr).right);
+        } else if (expr instanceof Expr.Grouping) {
+            return size(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Get) {
+            return 1 + size(((Expr.Get) expr).object);
+        } else if (expr instanceof Expr.Ternary) {
+            Expr.Ternary ternary = (Expr.Ternary) expr;
+            return 1 + size(ternary.condition) + size(ternary.if_true) + size(ternary.if_false);
+        }
+        // Calls, assignments, property sets and functions.
+        return MAX_INLINED_SIZE + 1;
+    }
+
+    private static boolean isLiteral(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object value(Expr expr) {
+        return ((Expr.Literal) expr).value;
+    }
+
+    // Expressions
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = expr(expr.value);
+        if (value == expr.value) return expr;
+
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        Integer depth = interpreter.depth(expr);
+        if (depth != null) interpreter.resolve(assign, depth);
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = expr(expr.left);
+        Expr right = expr(expr.right);
+        Expr.Binary binary = left == expr.left && right == expr.right
+            ? expr : new Expr.Binary(left, expr.operator, right);
+
+        return isLiteral(left) && isLiteral(right) ? fold(binary) : binary;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = expr(expr.callee);
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        boolean changed = callee != expr.callee;
+        for (Expr argument : expr.arguments) {
+            Expr result = expr(argument);
+            changed |= result != argument;
+            arguments.add(result);
+        }
+
+        Expr inlined = inline(callee, arguments);
+        if (inlined != null) return inlined;
+
+        return changed ? new Expr.Call(callee, expr.paren, arguments) : expr;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = expr(expr.object);
+        return object == expr.object ? expr : new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr condition = expr(expr.condition);
+        if (isLiteral(condition)) {
+            return expr(Interpreter.choosesTrueBranch(value(condition)) ? expr.if_true : expr.if_false);
+        }
+
+        Expr ifTrue = expr(expr.if_true);
+        Expr ifFalse = expr(expr.if_false);
+        if (condition == expr.condition && ifTrue == expr.if_true && ifFalse == expr.if_false) return expr;
+        return new Expr.Ternary(condition, ifTrue, ifFalse);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        // Parentheses only matter to the parser.
+        return expr(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = expr(expr.left);
+        if (isLiteral(left)) {
+            // The left operand decides, as in Interpreter.visitLogicalExpr.
+            boolean truthy = Interpreter.isTruthy(value(left));
+            boolean shortCircuits = expr.operator.type == TokenType.OR ? truthy : !truthy;
+            return shortCircuits ? left : expr(expr.right);
+        }
+
+        Expr right = expr(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = expr(expr.object);
+        Expr value = expr(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitFunctionExpr(Expr.Function expr) {
+        List<Stmt> body = stmts(expr.body);
+        return body == expr.body ? expr : new Expr.Function(expr.parameters, body);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = expr(expr.right);
+        Expr.Unary unary = right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+        return isLiteral(right) ? fold(unary) : unary;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        Integer depth = interpreter.depth(expr);
+        if (arguments != null && depth != null && depth == 0) {
+            // A parameter of the function being inlined.
+            return arguments.get(expr.name.lexeme);
+        }
+        if (depth == null && constants.containsKey(expr.name.lexeme)) {
+            return new Expr.Literal(constants.get(expr.name.lexeme));
+        }
+        return expr;
+    }
+
+    // Statements
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = stmts(stmt.statements);
+        CountedLoop loop = CountedLoop.of(statements, interpreter);
+        if (loop != null) {
+            statements = Arrays.asList(statements.get(0), loop);
+        }
+        return statements == stmt.statements ? stmt : new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        // The superclass stays a variable, even if it names a constant: it fails when it runs.
+        List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+        boolean changed = false;
+        for (Stmt.Function method : stmt.methods) {
+            Stmt.Function result = (Stmt.Function) stmt(method);
+            changed |= result != method;
+            methods.add(result);
+        }
+        return changed ? new Stmt.Class(stmt.name, stmt.superclass, methods) : stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = expr(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        Expr.Function function = (Expr.Function) expr(stmt.function);
+        return function == stmt.function ? stmt : new Stmt.Function(stmt.name, function);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = expr(stmt.condition);
+        if (isLiteral(condition)) {
+            return Interpreter.isTruthy(value(condition)) ? stmt(stmt.thenBranch) : stmt(stmt.elseBranch);
+        }
+
+        Stmt thenBranch = required(stmt.thenBranch);
+        Stmt elseBranch = stmt(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = expr(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        Expr value = expr(stmt.value);
+        return value == stmt.value ? stmt : new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = expr(stmt.initializer);
+        return initializer == stmt.initializer ? stmt : new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = expr(stmt.condition);
+        if (isLiteral(condition) && !Interpreter.isTruthy(value(condition))) {
+            return null;
+        }
+
+        Stmt body = required(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+}
@@ -0,0 +1,143 @@
+package info.ladislav.jlox.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import info.ladislav.jlox.Diagnostics;
+import info.ladislav.jlox.ErrorReporter;
+import info.ladislav.jlox.JLox;
+import info.ladislav.jlox.lexer.TokenStream;
+import info.ladislav.jlox.lexer.TokenType;
+
+/**
+ * Parses the top level declarations of a token stream on several cores and
+ * returns exactly the statements and errors of a sequential {@link Parser}.
+ *
+ * 1. One linear pass over the token types finds the places where a top level
+ *    declaration may end: a ';' or '}' outside of any parens and braces that
+ *    is followed by a keyword starting a declaration.
+ * 2. Runs of declarations of at least grain tokens are parsed in parallel,
+ *    each as if it was a whole program.
+ * 3. A chunk that parsed without errors ended where the sequential parser
+ *    would have ended, since nothing that follows a ';' or '}' could continue
+ *    a declaration with such a keyword. From the first chunk with an error
+ *    on, the rest is parsed sequentially, so errors and error recovery stay
+ *    the same.
+ */
+public class ParallelParser {
+
+    static final int DEFAULT_GRAIN = 1 << 14;
+
+    private final TokenStream tokens;
+    private final ForkJoinPool pool;
+    private final int grain;
+    private final ErrorReporter reporter;
+
+    /** Token index from which the last parse() went on sequentially, -1 if it did not. */
+    int sequentialFrom = -1;
+
+    private Parser.FunctionBodies functionBodies = Parser.FunctionBodies.EAGER;
+
+    public ParallelParser(TokenStream tokens) {
+        this(tokens, ForkJoinPool.commonPool(), DEFAULT_GRAIN, JLox.reporter);
+    }
+
+    public void setFunctionBodies(Parser.FunctionBodies functionBodies) {
+        this.functionBodies = functionBodies;
+    }
+
+    ParallelParser(TokenStream tokens, ForkJoinPool pool, int grain, ErrorReporter reporter) {
+        this.tokens = tokens;
+        this.pool = pool;
+        this.grain = grain;
+        this.reporter = reporter;
+    }
+
+    public List<Stmt> parse() {
+        List<Integer> boundaries = boundaries();
+
+        List<ForkJoinTask<List<Stmt>>> chunks = new ArrayList<>();
+        List<Diagnostics> errors = new ArrayList<>();
+        for (int i = 0; i + 1 < boundaries.size(); i++) {
+            int from = boundaries.get(i);
+            int to = boundaries.get(i + 1);
+            Diagnostics diagnostics = new Diagnostics();
+            errors.add(diagnostics);
+            chunks.add(pool.submit(() -> parser(from, to, diagnostics).parse()));
+        }
+
+        List<Stmt> statements = new ArrayList<>();
+        sequentialFrom = -1;
+        for (int i = 0; i < chunks.size(); i++) {
+            List<Stmt> chunk = chunks.get(i).join();
+            if (chunk == null || errors.get(i).hasErrors()) {
+                // Cancel the remaining chunks and carry on sequentially from here.
+                for (int j = i + 1; j < chunks.size(); j++) {
+                    chunks.get(j).cancel(false);
+                }
+                sequentialFrom = boundaries.get(i);
+                List<Stmt> rest = parser(sequentialFrom, tokens.size(), reporter).parse();
+                if (rest == null) return null;
+
+                statements.addAll(rest);
+                return statements;
+            }
+            statements.addAll(chunk);
+        }
+        return statements;
+    }
+
+    private Parser parser(int from, int to, ErrorReporter reporter) {
+        Parser parser = new Parser(tokens, from, to, reporter);
+        parser.setFunctionBodies(functionBodies);
+        return parser;
+    }
+
+    /** Chunk starts, at least grain tokens apart, followed by the end of the stream. */
+    private List<Integer> boundaries() {
+        List<Integer> boundaries = new ArrayList<>();
+        boundaries.add(0);
+
+        int eof = tokens.size() - 1;
+        int depth = 0;
+        int chunkStart = 0;
+        for (int i = 0; i < eof; i++) {
+            TokenType type = tokens.type(i);
+            if (type == TokenType.LEFT_PAREN || type == TokenType.LEFT_BRACE) {
+                depth++;
+            } else if (type == TokenType.RIGHT_PAREN || type == TokenType.RIGHT_BRACE) {
+                depth--;
+            }
+
+            boolean ends = type == TokenType.SEMICOLON || type == TokenType.RIGHT_BRACE;
+            if (ends && depth == 0 && i + 1 - chunkStart >= grain && startsDeclaration(i + 1)) {
+                chunkStart = i + 1;
+                boundaries.add(chunkStart);
+            }
+        }
+
+        // The last chunk takes the EOF token with it, so it sees the real end of input.
+        boundaries.add(tokens.size());
+        return boundaries;
+    }
+
+    /** Tokens that cannot continue the declaration before them, see Parser.synchronize(). */
+    private boolean startsDeclaration(int index) {
+        switch (tokens.type(index)) {
+            case CLASS:
+            case VAR:
+            case FOR:
+            case IF:
+            case WHILE:
+            case PRINT:
+            case RETURN:
+                return true;
+            case FUN:
+                return tokens.type(index + 1) == TokenType.IDENTIFIER;
+            default:
+                return false;
+        }
+    }
+}
@@ -2,10 +2,13 @@ package info.ladislav.jlox.parser;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
+import info.ladislav.jlox.ErrorReporter;
 import info.ladislav.jlox.JLox;
 import info.ladislav.jlox.lexer.Token;
+import info.ladislav.jlox.lexer.TokenStream;
 import info.ladislav.jlox.lexer.TokenType;
 
 //TODO implement break; statement !
@@ -69,21 +72,80 @@ import info.ladislav.jlox.lexer.TokenType;
 
 public class Parser {  
 
-    private final List<Token> tokens;                    
-    private int current = 0;                             
+    /** When function bodies are parsed, see {@link LazyBlock}. */
+    public enum FunctionBodies {
+      /** Parsed with the rest of the script. */
+      EAGER,
+      /** Only skipped to the matching brace; parsed and resolved on the first call. */
+      LAZY,
+      /** Parsed with the rest of the script, so syntax errors show up front, but resolved on the first call. */
+      VALIDATED
+    }
+
+    private final Iterator<Token> tokens;
+    /** Random access input: tokens come from stream[cursor, end) instead of the iterator. */
+    private final TokenStream stream;
+    private int cursor;
+    private final int end;
+    private final ErrorReporter reporter;
+    private FunctionBodies functionBodies = FunctionBodies.EAGER;
+    /** Lookahead window: most recently consumed, current and next token. */
+    private Token previous;
+    private Token current;
+    private Token next;
     private static class ParseError extends RuntimeException {}
 
-    public Parser(List<Token> tokens) {                         
-      this.tokens = tokens;                              
-    }                 
+    public Parser(List<Token> tokens) {
+      this(tokens.iterator());
+    }
+
+    /** Tokens of a compact stream are materialised only while they pass through the lookahead window. */
+    public Parser(TokenStream tokens) {
+      this(tokens, JLox.reporter);
+    }
+
+    public Parser(TokenStream tokens, ErrorReporter reporter) {
+      this(tokens, 0, tokens.size(), reporter);
+    }
+
+    /** Parses tokens[from, to) as a whole program. */
+    Parser(TokenStream tokens, int from, int to, ErrorReporter reporter) {
+      this(null, tokens, from, to, reporter);
+    }
+
+    /**
+     * Parses tokens as they are produced, e.g. straight from a {@link info.ladislav.jlox.lexer.Scanner},
+     * keeping only three tokens of lookahead.
+     */
+    public Parser(Iterator<Token> tokens) {
+      this(tokens, JLox.reporter);
+    }
+
+    public Parser(Iterator<Token> tokens, ErrorReporter reporter) {
+      this(tokens, null, 0, 0, reporter);
+    }
+
+    private Parser(Iterator<Token> tokens, TokenStream stream, int from, int to, ErrorReporter reporter) {
+      this.tokens = tokens;
+      this.stream = stream;
+      this.cursor = from;
+      this.end = to;
+      this.reporter = reporter;
+      this.current = pull(null);
+      this.next = pull(current);
+    }
+
+    public void setFunctionBodies(FunctionBodies functionBodies) {
+      this.functionBodies = functionBodies;
+    }
     
     public List<Stmt> parse() {                
 
         try{
           List<Stmt> statements = new ArrayList<>();
 
-          while(!isAtEnd()){
-            statements.add(declaration());
+          while(hasNextDeclaration()){
+            statements.add(nextDeclaration());
           }
   
           return statements;
@@ -93,6 +155,19 @@ public class Parser {
       
     }  
 
+    /** True until all top level declarations have been parsed. */
+    public boolean hasNextDeclaration() {
+      return !isAtEnd();
+    }
+
+    /**
+     * Parses one top level declaration, so its statement can be used before the
+     * rest of the input has even been scanned. Returns null if it had a syntax error.
+     */
+    public Stmt nextDeclaration() {
+      return declaration();
+    }
+
     /** AST */
 
     private Stmt declaration(){
@@ -165,12 +240,90 @@ public class Parser {
       }
 
       consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
-      consume(TokenType.LEFT_BRACE, "Expect '{' before " + kind + " body.");
-      List<Stmt> body = block();
+      Token brace = consume(TokenType.LEFT_BRACE, "Expect '{' before " + kind + " body.");
+
+      List<Stmt> body;
+      switch (functionBodies) {
+        case LAZY:
+          body = skipBlock(brace);
+          break;
+        case VALIDATED:
+          body = new LazyBlock(block(), brace, reporter);
+          break;
+        default:
+          body = block();
+          break;
+      }
       
       return new Expr.Function(params, body);
     }
 
+    /** Skips to the brace that closes the block, leaving the body to a {@link LazyBlock}. */
+    private List<Stmt> skipBlock(Token brace){
+      FunctionBodies mode = functionBodies;
+
+      if(stream != null){
+        // Both tokens of lookahead are in the stream, current at cursor - 2.
+        if(isAtEnd() || next.type == TokenType.EOF){
+          return block();
+        }
+
+        int from = cursor - 2;
+        int close = matchingBrace(from);
+        if(close < 0){
+          return block();
+        }
+
+        cursor = close;
+        current = pull(previous);
+        next = pull(current);
+        consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
+
+        TokenStream tokens = stream;
+        return new LazyBlock(errors -> {
+          Parser parser = new Parser(tokens, from, close, errors);
+          parser.setFunctionBodies(mode);
+          return parser;
+        }, brace, reporter);
+      }
+
+      List<Token> body = new ArrayList<>();
+      int depth = 0;
+      while(!isAtEnd() && (depth > 0 || !check(TokenType.RIGHT_BRACE))){
+        if(check(TokenType.LEFT_BRACE)) depth++;
+        if(check(TokenType.RIGHT_BRACE)) depth--;
+        body.add(advance());
+      }
+      consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
+
+      return new LazyBlock(errors -> {
+        Parser parser = new Parser(body.iterator(), errors);
+        parser.setFunctionBodies(mode);
+        return parser;
+      }, brace, reporter);
+    }
+
+    /** Index of the '}' closing the block whose first token is at from, -1 if there is none. */
+    private int matchingBrace(int from){
+      int depth = 0;
+      for(int i = from; i < end; i++){
+        switch(stream.type(i)){
+          case LEFT_BRACE:
+            depth++;
+            break;
+          case RIGHT_BRACE:
+            if(depth == 0) return i;
+            depth--;
+            break;
+          case EOF:
+            return -1;
+          default:
+            break;
+        }
+      }
+      return -1;
+    }
+
     private Stmt varDeclaration(){
 
       Token name = consume(TokenType.IDENTIFIER, "Variable name expected.");
@@ -323,162 +476,120 @@ public class Parser {
     }
 
 
-    private Expr expression(){
-      return comma();
+    /*
+     * Expressions are parsed by precedence climbing: one loop looks the binding
+     * power of the operator after an operand up in INFIX by token type ordinal,
+     * instead of descending through a method per precedence level for every
+     * operand. The trees are the same as those of the grammar above.
+     */
+
+    private static final int NONE = 0;
+    private static final int COMMA = 1;
+    private static final int ASSIGNMENT = 2;
+    private static final int TERNARY = 3;
+    private static final int OR = 4;
+    private static final int AND = 5;
+    private static final int EQUALITY = 6;
+    private static final int COMPARISON = 7;
+    private static final int ADDITION = 8;
+    private static final int MULTIPLICATION = 9;
+    private static final int UNARY = 10;
+    private static final int CALL = 11;
+
+    /** Binding power of each token type used as an infix or postfix operator, NONE otherwise. */
+    private static final int[] INFIX = new int[TokenType.values().length];
+
+    static {
+      infix(COMMA, TokenType.COMMA);
+      infix(ASSIGNMENT, TokenType.EQUAL);
+      infix(TERNARY, TokenType.QUESTION_MARK);
+      infix(OR, TokenType.OR);
+      infix(AND, TokenType.AND);
+      infix(EQUALITY, TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL);
+      infix(COMPARISON, TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS, TokenType.LESS_EQUAL);
+      infix(ADDITION, TokenType.MINUS, TokenType.PLUS);
+      infix(MULTIPLICATION, TokenType.SLASH, TokenType.STAR);
+      infix(CALL, TokenType.LEFT_PAREN, TokenType.DOT);
     }
 
-    private Expr comma(){
-       Expr expr = assignment();
-
-       while(match(TokenType.COMMA)){
-        Token operator = previous();
-        Expr right = assignment();
-        expr = new Expr.Binary(expr, operator, right);
-       } 
-
-      return expr;
+    private static void infix(int precedence, TokenType... types) {
+      for (TokenType type : types) {
+        INFIX[type.ordinal()] = precedence;
+      }
     }
 
+    private Expr expression(){
+      return expression(COMMA);
+    }
 
-    private Expr assignment(){
-      Expr expr = ternary();
-
-      if(match(TokenType.EQUAL)){
-
-        Token equals = previous();
-        Expr value = assignment();
+    /** Parses an expression whose operators all bind at least as tightly as minPrecedence. */
+    private Expr expression(int minPrecedence){
+      Expr expr = prefix();
 
-        if(expr instanceof Expr.Variable){
-          Token name = ((Expr.Variable) expr).name;
-          return new Expr.Assign(name, value);
-        }else if (expr instanceof Expr.Get ){
-          Expr.Get get = (Expr.Get) expr;
-          return new Expr.Set(get.object,get.name, value);
+      while(true){
+        int precedence = INFIX[peek().type.ordinal()];
+        if(precedence == NONE || precedence < minPrecedence){
+          return expr;
         }
 
-        error(equals, "Invalid assignment target.");
+        expr = infix(expr, advance(), precedence);
       }
-
-      return expr;
     }
 
-    private Expr ternary(){
+    private Expr infix(Expr left, Token operator, int precedence){
+      switch(operator.type){
+        case EQUAL:
+          return assignment(left, operator);
 
-      Expr expr = or();
+        case QUESTION_MARK:
+          return ternary(left);
 
-      if(match(TokenType.QUESTION_MARK)){
-        Expr if_true = assignment();
+        case AND:
+          // "and" nests to the right: a and b and c is a and (b and c).
+          return new Expr.Logical(left, operator, expression(AND));
 
-        if(!match(TokenType.COLON)){
-          throw error(peek(), "Expected colon.");  
-        } 
+        case OR:
+          return new Expr.Logical(left, operator, expression(OR + 1));
 
-        Expr if_false = assignment();
-        return new Expr.Ternary(expr, if_true, if_false);
+        case LEFT_PAREN:
+          return finishCall(left);
 
-      }
+        case DOT:
+          Token name = consume(TokenType.IDENTIFIER, "Expect property name after '.'.");
+          return new Expr.Get(left, name);
 
-      return expr;
+        default:
+          // Comma and the arithmetic operators are left associative.
+          return new Expr.Binary(left, operator, expression(precedence + 1));
+      }
     }
 
+    private Expr assignment(Expr target, Token equals){
+      Expr value = expression(ASSIGNMENT);
 
-    private Expr or(){
-      Expr expr = and();
-
-      while(match(TokenType.OR)){
-        Token operator = previous();
-        Expr right = and();
-        expr = new Expr.Logical(expr, operator, right);
+      if(target instanceof Expr.Variable){
+        Token name = ((Expr.Variable) target).name;
+        return new Expr.Assign(name, value);
+      }else if (target instanceof Expr.Get ){
+        Expr.Get get = (Expr.Get) target;
+        return new Expr.Set(get.object,get.name, value);
       }
-      return expr;
-    }
 
-    private Expr and(){
-      Expr expr = equality();
-      
-      while(match(TokenType.AND)){
-        Token operator = previous();
-        Expr right = and();
-        expr = new Expr.Logical(expr, operator, right);
-      }
-      return expr;
+      error(equals, "Invalid assignment target.");
+      return target;
     }
 
-    private Expr equality(){
-        Expr expr = comparison();
+    private Expr ternary(Expr condition){
+      Expr if_true = expression(ASSIGNMENT);
 
-        while(match(TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL) ){
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-    
-    private Expr comparison(){
-        Expr expr = addition();
-
-        while (match(TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS, TokenType.LESS_EQUAL)) {
-            Token operator = previous();                           
-            Expr right = addition();                               
-            expr = new Expr.Binary(expr, operator, right);         
-        }                                                        
+      if(!match(TokenType.COLON)){
+        throw error(peek(), "Expected colon.");
+      }
 
-        return expr;                                             
+      Expr if_false = expression(ASSIGNMENT);
+      return new Expr.Ternary(condition, if_true, if_false);
     }
 
-    private Expr addition() {                         
-        Expr expr = multiplication();
-    
-        while (match(TokenType.MINUS, TokenType.PLUS)) {                    
-          Token operator = previous();                  
-          Expr right = multiplication();                
-          expr = new Expr.Binary(expr, operator, right);
-        }                                               
-    
-        return expr;                                    
-      }                                                 
-    
-      private Expr multiplication() {                   
-        Expr expr = unary();                            
-    
-        while (match(TokenType.SLASH, TokenType.STAR)) {                    
-          Token operator = previous();                  
-          Expr right = unary();                         
-          expr = new Expr.Binary(expr, operator, right);
-        }                                               
-    
-        return expr;                                    
-      }         
-      
-      private Expr unary() {                     
-        if (match(TokenType.BANG, TokenType.MINUS)) {                
-          Token operator = previous();           
-          Expr right = unary();                  
-          return new Expr.Unary(operator, right);
-        }
-    
-        return call();                        
-      }       
-      
-      private Expr call() {
-        Expr expr = primary();
-
-        while(true){
-          if(match(TokenType.LEFT_PAREN)){
-            expr = finishCall(expr);
-          }else if (match(TokenType.DOT)){
-            Token name = consume(TokenType.IDENTIFIER, "Expect property name after '.'.");
-            expr = new Expr.Get(expr, name);
-          }else{
-            break;
-          }
-        }
-
-        return expr;
-      }
-
       private Expr finishCall(Expr callee){
         List <Expr> args = new ArrayList<>();
         if(!check(TokenType.RIGHT_PAREN)){
@@ -488,7 +599,7 @@ public class Parser {
               error(peek(), "Cannot have more than 255 arguments.");
             }
 
-            args.add(expression());
+            args.add(expression(ASSIGNMENT));
           } while(match(TokenType.COMMA));
 
         }
@@ -499,55 +610,63 @@ public class Parser {
 
       }
 
-      private Expr primary() {                                 
-        if (match(TokenType.FALSE)) return new Expr.Literal(false);      
-        if (match(TokenType.TRUE)) return new Expr.Literal(true);        
-        if (match(TokenType.NIL)) return new Expr.Literal(null);
-    
-        if (match(TokenType.NUMBER, TokenType.STRING)) {                           
-          return new Expr.Literal(previous().literal);         
-        }                                                      
-        
-        if(match(TokenType.SUPER)){
-          Token keyword = previous();
-          consume(TokenType.DOT, "Expect '.' after 'super'");
-          Token method = consume(TokenType.IDENTIFIER, "Expect superclass method name.");
-          return new Expr.Super(keyword, method);
-        }
-
-        if(match(TokenType.THIS)) {
-          return new Expr.This(previous());
+      /** Literals, names, groupings, lambdas and the prefix operators. */
+      private Expr prefix() {
+        Token token = peek();
+        switch (token.type) {
+          case FALSE: advance(); return new Expr.Literal(false);
+          case TRUE: advance(); return new Expr.Literal(true);
+          case NIL: advance(); return new Expr.Literal(null);
+
+          case NUMBER:
+          case STRING:
+            advance();
+            return new Expr.Literal(token.literal);
+
+          case SUPER:
+            advance();
+            consume(TokenType.DOT, "Expect '.' after 'super'");
+            Token method = consume(TokenType.IDENTIFIER, "Expect superclass method name.");
+            return new Expr.Super(token, method);
+
+          case THIS:
+            advance();
+            return new Expr.This(token);
+
+          case IDENTIFIER:
+            advance();
+            return new Expr.Variable(token);
+
+          case LEFT_PAREN:
+            advance();
+            Expr expr = expression();
+            consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
+            return new Expr.Grouping(expr);
+
+          case FUN:
+            advance();
+            return functionBody("function");
+
+          case BANG:
+          case MINUS:
+            advance();
+            return new Expr.Unary(token, expression(UNARY));
+
+          default:
+            throw error(token, "Expect expression.");
         }
-
-        if(match(TokenType.IDENTIFIER)){
-          return new Expr.Variable(previous());
-        }
-
-        if (match(TokenType.LEFT_PAREN)) {                               
-          Expr expr = comma();                            
-          consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
-          return new Expr.Grouping(expr);                      
-        }           
-        
-        if (match(TokenType.FUN)){
-          return functionBody("function");
-        } 
-
-        throw error(peek(), "Expect expression.");  
-      }  
+      }
 
       /** HELPER METHODS */
 
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {           
-          if (check(type)) {                     
-            advance();                           
-            return true;                         
-          }                                      
+    private boolean match(TokenType type) {
+        if (check(type)) {
+          advance();
+          return true;
         }
-    
-        return false;                            
-      }                     
+
+        return false;
+      }
 
       private boolean check(TokenType type) {
         if (isAtEnd()) return false;         
@@ -559,32 +678,48 @@ public class Parser {
           return false;
         }
 
-        if(tokens.get(current + 1).type == TokenType.EOF){
+        if(next.type == TokenType.EOF){
           return false;
         }
 
-        return tokens.get(current + 1).type == tokenType;
+        return next.type == tokenType;
 
       }
 
-      private Token advance() {   
-        if (!isAtEnd()) current++;
-        return previous();        
-      } 
+      private Token advance() {
+        if (!isAtEnd()) {
+          previous = current;
+          current = next;
+          next = pull(current);
+        }
+        return previous();
+      }
+
+      /** Reads the token following {@code last}, EOF repeats once the input is exhausted. */
+      private Token pull(Token last) {
+        if (last != null && last.type == TokenType.EOF) return last;
+        if (stream != null) {
+          if (cursor < end) return stream.get(cursor++);
+        } else if (tokens.hasNext()) {
+          return tokens.next();
+        }
 
-      private boolean isAtEnd() {      
-        return peek().type == TokenType.EOF;     
+        return new Token(TokenType.EOF, "", null, last == null ? 1 : last.line);
       }
-    
+
+      private boolean isAtEnd() {
+        return peek().type == TokenType.EOF;
+      }
+
       /** Returns token yet to consume */
-      private Token peek() {           
-        return tokens.get(current);    
-      }                                
-    
+      private Token peek() {
+        return current;
+      }
+
       /** Returns most recently consumed token */
-      private Token previous() {       
-        return tokens.get(current - 1);
-      }               
+      private Token previous() {
+        return previous;
+      }
 
       private Token consume(TokenType type, String message) {
         if (check(type)) return advance();
@@ -593,7 +728,7 @@ public class Parser {
       }                    
       
       private ParseError error(Token token, String message) {
-        JLox.error(token, message);                           
+        reporter.error(token, message);                         
         return new ParseError();                             
       }                    
 
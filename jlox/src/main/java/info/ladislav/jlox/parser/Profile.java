@@ -0,0 +1,374 @@
+package info.ladislav.jlox.parser;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What earlier runs of a script observed, so a run starts out specialized
+ * instead of learning it all again.
+ *
+ * A profile records function calls, whether every call passed only numbers,
+ * the function each call site reached and loop iterations. Sites are the
+ * functions, calls and loops of the program in the order of a walk of the
+ * tree, which is the same on every run of the same source; the insides of
+ * function bodies parsed lazily are left out. Counts accumulate over runs.
+ *
+ * Before a run, a hot function that only ever got numbers is compiled to its
+ * {@link NumericFunction} and one that got anything else skips the numeric
+ * path from its first call on. Entries are named and written by
+ * {@link CacheEntries}; an entry that does not match the program is ignored.
+ */
+public class Profile {
+
+    /** Bump on any change to the format or to what counts as a site. */
+    static final int VERSION = 1;
+    private static final int MAGIC = 0x4c4f5850; // "LOXP"
+
+    /** Calls after which a function is compiled before the run. */
+    static final int HOT_CALLS = 100;
+
+    /** The call site target of calls that reached more than one callee, or no function. */
+    private static final Expr.Function MEGAMORPHIC = new Expr.Function(null, null);
+
+    private final CacheEntries entries;
+    private final Set<Expr.Function> boxedCalls = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<Expr.Call, Expr.Function> targets = new IdentityHashMap<>();
+
+    public Profile(Path directory) {
+        this.entries = new CacheEntries(directory, ".profile");
+    }
+
+    /**
+     * Applies the profile stored for this source to the resolved program and
+     * records the run in the interpreter from now on.
+     */
+    public void load(byte[] source, Charset charset, List<Stmt> program, Interpreter interpreter) {
+        interpreter.profile = this;
+
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(entry(source, charset));
+        } catch (IOException e) {
+            return;
+        }
+
+        Sites sites = new Sites(program);
+        try {
+            new Reader(bytes, sites).apply(this);
+        } catch (RuntimeException e) {
+            // Truncated, corrupt or of another version: start over.
+            return;
+        }
+
+        for (Expr.Function function : sites.functions()) {
+            if (boxedCalls.contains(function)) {
+                NumericFunction.skip(function);
+            } else if (function.profile >= HOT_CALLS) {
+                NumericFunction.of(function, sites.names.get(function));
+            }
+        }
+    }
+
+    /** Writes what this and earlier runs observed. Failing to write is not an error. */
+    public void store(byte[] source, Charset charset, List<Stmt> program) {
+        try {
+            byte[] bytes = write(new Sites(program));
+            entries.write(entry(source, charset), bytes, bytes.length);
+        } catch (IOException | RuntimeException e) {
+            // Read only or full disk: the next run starts cold.
+        }
+    }
+
+    Path entry(byte[] source, Charset charset) {
+        return entries.entry(source, charset);
+    }
+
+    /** A call of a function, from the function. */
+    synchronized void called(Expr.Function function, List<Object> args) {
+        function.profile = saturated(function.profile, 1);
+        if (!boxedCalls.contains(function)) {
+            for (Object arg : args) {
+                if (!(arg instanceof Double)) {
+                    boxedCalls.add(function);
+                    break;
+                }
+            }
+        }
+    }
+
+    /** A call at a site, of whatever the callee turned out to be. */
+    synchronized void calledAt(Expr.Call call, Object callee) {
+        call.profile = saturated(call.profile, 1);
+        target(call, callee instanceof LoxFunction ? ((LoxFunction) callee).declaration : MEGAMORPHIC);
+    }
+
+    synchronized void iterated(Stmt.While loop) {
+        loop.profile = saturated(loop.profile, 1);
+    }
+
+    private void target(Expr.Call call, Expr.Function function) {
+        Expr.Function target = targets.get(call);
+        if (target == null) {
+            targets.put(call, function);
+        } else if (target != function) {
+            targets.put(call, MEGAMORPHIC);
+        }
+    }
+
+    private static int saturated(int count, int more) {
+        long sum = (long) count + more;
+        return sum > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) sum;
+    }
+
+    /**
+     * The format: magic, version, the number of sites, then for every site
+     * with anything recorded its index, its kind and its counts as varints.
+     * A function has its calls and 1 if it got more than numbers, a call its
+     * calls and 0 for no target, 1 for several, or the index of its only
+     * target plus 2, a loop its iterations.
+     */
+    private synchronized byte[] write(Sites sites) {
+        Writer writer = new Writer();
+        writer.writeInt(MAGIC);
+        writer.writeInt(VERSION);
+        writer.varint(sites.all.size());
+
+        for (int site = 0; site < sites.all.size(); site++) {
+            Object node = sites.all.get(site);
+            if (node instanceof Expr.Function) {
+                Expr.Function function = (Expr.Function) node;
+                if (function.profile == 0 && !boxedCalls.contains(function)) continue;
+                writer.varint(site);
+                writer.varint(Sites.FUNCTION);
+                writer.varint(function.profile);
+                writer.varint(boxedCalls.contains(function) ? 1 : 0);
+            } else if (node instanceof Expr.Call) {
+                Expr.Call call = (Expr.Call) node;
+                if (call.profile == 0) continue;
+                writer.varint(site);
+                writer.varint(Sites.CALL);
+                writer.varint(call.profile);
+                Expr.Function target = targets.get(call);
+                Integer index = target == null || target == MEGAMORPHIC ? null : sites.index.get(target);
+                writer.varint(target == null ? 0 : index == null ? 1 : index + 2);
+            } else {
+                Stmt.While loop = (Stmt.While) node;
+                if (loop.profile == 0) continue;
+                writer.varint(site);
+                writer.varint(Sites.LOOP);
+                writer.varint(loop.profile);
+            }
+        }
+        return Arrays.copyOf(writer.bytes, writer.size);
+    }
+
+    private static final class Writer {
+
+        byte[] bytes = new byte[1 << 10];
+        int size = 0;
+
+        void writeInt(int value) {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                write(value >>> shift);
+            }
+        }
+
+        void varint(int value) {
+            while ((value & ~0x7f) != 0) {
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        private void write(int b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[size++] = (byte) b;
+        }
+    }
+
+    private static final class Reader {
+
+        private final byte[] bytes;
+        private final Sites sites;
+        private int position = 0;
+
+        Reader(byte[] bytes, Sites sites) {
+            this.bytes = bytes;
+            this.sites = sites;
+        }
+
+        /** Adds the stored counts to the program's, after checking all of them fit it. */
+        void apply(Profile profile) {
+            if (readInt() != MAGIC || readInt() != VERSION || varint() != sites.all.size()) {
+                throw new IllegalArgumentException("Profile of another program");
+            }
+
+            List<Runnable> updates = new ArrayList<>();
+            while (position < bytes.length) {
+                Object node = sites.all.get(varint());
+                int kind = varint();
+                int count = varint();
+                if (kind == Sites.FUNCTION && node instanceof Expr.Function) {
+                    Expr.Function function = (Expr.Function) node;
+                    boolean boxed = varint() == 1;
+                    updates.add(() -> {
+                        function.profile = saturated(function.profile, count);
+                        if (boxed) profile.boxedCalls.add(function);
+                    });
+                } else if (kind == Sites.CALL && node instanceof Expr.Call) {
+                    Expr.Call call = (Expr.Call) node;
+                    int target = varint();
+                    Expr.Function function = target == 0 ? null
+                        : target == 1 ? MEGAMORPHIC : (Expr.Function) sites.all.get(target - 2);
+                    updates.add(() -> {
+                        call.profile = saturated(call.profile, count);
+                        if (function != null) profile.target(call, function);
+                    });
+                } else if (kind == Sites.LOOP && node instanceof Stmt.While) {
+                    Stmt.While loop = (Stmt.While) node;
+                    updates.add(() -> loop.profile = saturated(loop.profile, count));
+                } else {
+                    throw new IllegalArgumentException("Profile of another program");
+                }
+            }
+
+            synchronized (profile) {
+                updates.forEach(Runnable::run);
+            }
+        }
+
+        private int readInt() {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = (value << 8) | (bytes[position++] & 0xff);
+            }
+            return value;
+        }
+
+        private int varint() {
+            int value = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = bytes[position++];
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) return value;
+            }
+        }
+    }
+
+    /** The functions, calls and loops of a program in the order of a walk of its tree. */
+    private static final class Sites {
+
+        static final int FUNCTION = 0, CALL = 1, LOOP = 2;
+
+        final List<Object> all = new ArrayList<>();
+        final Map<Object, Integer> index = new IdentityHashMap<>();
+        /** Names of declared functions and methods, for their numeric forms. */
+        final Map<Expr.Function, String> names = new IdentityHashMap<>();
+
+        Sites(List<Stmt> program) {
+            stmts(program);
+        }
+
+        List<Expr.Function> functions() {
+            List<Expr.Function> functions = new ArrayList<>();
+            for (Object node : all) {
+                if (node instanceof Expr.Function) functions.add((Expr.Function) node);
+            }
+            return functions;
+        }
+
+        private void site(Object node) {
+            index.put(node, all.size());
+            all.add(node);
+        }
+
+        private void stmts(List<Stmt> statements) {
+            // Lazy bodies are no sites: parsing them here would defeat --lazy, and
+            // whether a run parsed them would change the sites.
+            if (statements instanceof LazyBlock) return;
+            for (Stmt statement : statements) {
+                stmt(statement);
+            }
+        }
+
+        private void stmt(Stmt stmt) {
+            if (stmt instanceof Stmt.Block) {
+                stmts(((Stmt.Block) stmt).statements);
+            } else if (stmt instanceof Stmt.Class) {
+                for (Stmt.Function method : ((Stmt.Class) stmt).methods) {
+                    stmt(method);
+                }
+            } else if (stmt instanceof Stmt.Expression) {
+                expr(((Stmt.Expression) stmt).expression);
+            } else if (stmt instanceof Stmt.Function) {
+                Stmt.Function function = (Stmt.Function) stmt;
+                names.put(function.function, function.name.lexeme);
+                expr(function.function);
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If branch = (Stmt.If) stmt;
+                expr(branch.condition);
+                stmt(branch.thenBranch);
+                stmt(branch.elseBranch);
+            } else if (stmt instanceof Stmt.Print) {
+                expr(((Stmt.Print) stmt).expression);
+            } else if (stmt instanceof Stmt.Return) {
+                expr(((Stmt.Return) stmt).value);
+            } else if (stmt instanceof Stmt.Var) {
+                expr(((Stmt.Var) stmt).initializer);
+            } else if (stmt instanceof Stmt.While) {
+                Stmt.While loop = (Stmt.While) stmt;
+                site(loop);
+                expr(loop.condition);
+                stmt(loop.body);
+            }
+        }
+
+        private void expr(Expr expr) {
+            if (expr instanceof Expr.Assign) {
+                expr(((Expr.Assign) expr).value);
+            } else if (expr instanceof Expr.Binary) {
+                expr(((Expr.Binary) expr).left);
+                expr(((Expr.Binary) expr).right);
+            } else if (expr instanceof Expr.Call) {
+                Expr.Call call = (Expr.Call) expr;
+                site(call);
+                expr(call.callee);
+                for (Expr argument : call.arguments) {
+                    expr(argument);
+                }
+            } else if (expr instanceof Expr.Get) {
+                expr(((Expr.Get) expr).object);
+            } else if (expr instanceof Expr.Ternary) {
+                Expr.Ternary ternary = (Expr.Ternary) expr;
+                expr(ternary.condition);
+                expr(ternary.if_true);
+                expr(ternary.if_false);
+            } else if (expr instanceof Expr.Grouping) {
+                expr(((Expr.Grouping) expr).expression);
+            } else if (expr instanceof Expr.Logical) {
+                expr(((Expr.Logical) expr).left);
+                expr(((Expr.Logical) expr).right);
+            } else if (expr instanceof Expr.Set) {
+                expr(((Expr.Set) expr).object);
+                expr(((Expr.Set) expr).value);
+            } else if (expr instanceof Expr.Function) {
+                site(expr);
+                stmts(((Expr.Function) expr).body);
+            } else if (expr instanceof Expr.Unary) {
+                expr(((Expr.Unary) expr).right);
+            }
+        }
+    }
+}
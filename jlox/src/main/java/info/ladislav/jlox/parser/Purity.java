@@ -0,0 +1,191 @@
+package info.ladislav.jlox.parser;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides whether a function is pure: it prints nothing, sets no fields,
+ * assigns no variables from outside of it and calls only pure functions, so
+ * calling it again with the same arguments returns the same value.
+ *
+ * The analysis is conservative. Besides the above, a pure function reads no
+ * variable from outside of it, since that could change between calls, except
+ * for globals it calls that hold pure functions or their {@link MemoFunction}s
+ * at the time of the analysis. It creates no instances or functions and reads
+ * no properties, so what it returns is never shared mutable state.
+ */
+final class Purity implements Expr.Visitor<Boolean>, Stmt.Visitor<Boolean> {
+
+    private final Environment globals;
+    /** Functions being analyzed, which calls of them assume to be pure. */
+    private final Set<Expr.Function> assumed;
+    /** Scopes of the function open at the node analyzed, the function's own one included. */
+    private int scopes = 1;
+
+    private Purity(Environment globals, Set<Expr.Function> assumed) {
+        this.globals = globals;
+        this.assumed = assumed;
+    }
+
+    static boolean isPure(LoxFunction function, Environment globals) {
+        return isPure(function, globals, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    private static boolean isPure(LoxFunction function, Environment globals, Set<Expr.Function> assumed) {
+        if (function.isInitializer) return false;
+        if (!assumed.add(function.declaration)) return true;
+        return new Purity(globals, assumed).all(function.declaration.body);
+    }
+
+    private boolean all(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (!statement.accept(this)) return false;
+        }
+        return true;
+    }
+
+    private boolean pure(Expr expr) {
+        return expr == null || expr.accept(this);
+    }
+
+    private boolean pure(Stmt stmt) {
+        return stmt == null || stmt.accept(this);
+    }
+
+    /** Whether a variable is a parameter or a local of the function. */
+    private boolean isLocal(Expr expr) {
+        return expr.depth != Expr.UNRESOLVED && expr.depth < scopes;
+    }
+
+    @Override
+    public Boolean visitAssignExpr(Expr.Assign expr) {
+        return isLocal(expr) && pure(expr.value);
+    }
+
+    @Override
+    public Boolean visitBinaryExpr(Expr.Binary expr) {
+        return pure(expr.left) && pure(expr.right);
+    }
+
+    @Override
+    public Boolean visitCallExpr(Expr.Call expr) {
+        for (Expr argument : expr.arguments) {
+            if (!pure(argument)) return false;
+        }
+        if (!(expr.callee instanceof Expr.Variable) || expr.callee.depth != Expr.UNRESOLVED) return false;
+
+        Object callee;
+        try {
+            callee = globals.get(((Expr.Variable) expr.callee).name);
+        } catch (RuntimeError e) {
+            return false;
+        }
+        if (callee instanceof MemoFunction) return isPure(((MemoFunction) callee).function, globals, assumed);
+        return callee instanceof LoxFunction && isPure((LoxFunction) callee, globals, assumed);
+    }
+
+    @Override
+    public Boolean visitGetExpr(Expr.Get expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitTernaryExpr(Expr.Ternary expr) {
+        return pure(expr.condition) && pure(expr.if_true) && pure(expr.if_false);
+    }
+
+    @Override
+    public Boolean visitGroupingExpr(Expr.Grouping expr) {
+        return pure(expr.expression);
+    }
+
+    @Override
+    public Boolean visitLiteralExpr(Expr.Literal expr) {
+        return true;
+    }
+
+    @Override
+    public Boolean visitLogicalExpr(Expr.Logical expr) {
+        return pure(expr.left) && pure(expr.right);
+    }
+
+    @Override
+    public Boolean visitSetExpr(Expr.Set expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitSuperExpr(Expr.Super expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitThisExpr(Expr.This expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitFunctionExpr(Expr.Function expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitUnaryExpr(Expr.Unary expr) {
+        return pure(expr.right);
+    }
+
+    @Override
+    public Boolean visitVariableExpr(Expr.Variable expr) {
+        return isLocal(expr);
+    }
+
+    @Override
+    public Boolean visitBlockStmt(Stmt.Block stmt) {
+        scopes++;
+        boolean pure = all(stmt.statements);
+        scopes--;
+        return pure;
+    }
+
+    @Override
+    public Boolean visitClassStmt(Stmt.Class stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitExpressionStmt(Stmt.Expression stmt) {
+        return pure(stmt.expression);
+    }
+
+    @Override
+    public Boolean visitFunctionStmt(Stmt.Function stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitIfStmt(Stmt.If stmt) {
+        return pure(stmt.condition) && pure(stmt.thenBranch) && pure(stmt.elseBranch);
+    }
+
+    @Override
+    public Boolean visitPrintStmt(Stmt.Print stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitReturnStmt(Stmt.Return stmt) {
+        return pure(stmt.value);
+    }
+
+    @Override
+    public Boolean visitVarStmt(Stmt.Var stmt) {
+        return pure(stmt.initializer);
+    }
+
+    @Override
+    public Boolean visitWhileStmt(Stmt.While stmt) {
+        return pure(stmt.condition) && pure(stmt.body);
+    }
+}
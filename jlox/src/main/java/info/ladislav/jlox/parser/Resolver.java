@@ -1,10 +1,13 @@
 package info.ladislav.jlox.parser;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.function.ObjIntConsumer;
 
+import info.ladislav.jlox.ErrorReporter;
 import info.ladislav.jlox.JLox;
 import info.ladislav.jlox.lexer.Token;
 import info.ladislav.jlox.parser.Expr.Assign;
@@ -34,13 +37,61 @@ import info.ladislav.jlox.parser.Stmt.While;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
-    private final Interpreter interpreter;
+    /** Receives the depth of every local variable, normally {@link Interpreter#resolve(Expr, int)}. */
+    private final ObjIntConsumer<Expr> locals;
+    private final ErrorReporter reporter;
     private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    /** Names in each scope declared without an initializer. */
+    private final Stack<java.util.Set<String>> uninitialized = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
 
+    /** Names of globals assigned anywhere, shared with copies, see {@link Optimizer}. */
+    private java.util.Set<String> assignedGlobals = new HashSet<>();
+    /** Reads of locals that were declared without an initializer, which may fail. */
+    private java.util.Set<Expr> maybeUninitialized = new HashSet<>();
+    /** Whether some body was left to resolve later, so assignedGlobals may be incomplete. */
+    private boolean deferred = false;
+
     public Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+        this(interpreter, JLox.reporter);
+    }
+
+    public Resolver(Interpreter interpreter, ErrorReporter reporter) {
+        this(interpreter::resolve, reporter);
+    }
+
+    Resolver(ObjIntConsumer<Expr> locals, ErrorReporter reporter) {
+        this.locals = locals;
+        this.reporter = reporter;
+    }
+
+    /**
+     * Copies the state of another resolver in the middle of its work, so a
+     * {@link LazyBlock} can be resolved later exactly as it would have been now.
+     */
+    Resolver(Resolver other, ErrorReporter reporter) {
+        this(other.locals, reporter);
+        for (int i = 0; i < other.scopes.size(); i++) {
+            scopes.push(new HashMap<>(other.scopes.get(i)));
+            uninitialized.push(new HashSet<>(other.uninitialized.get(i)));
+        }
+        currentFunction = other.currentFunction;
+        currentClass = other.currentClass;
+        assignedGlobals = other.assignedGlobals;
+        maybeUninitialized = other.maybeUninitialized;
+    }
+
+    java.util.Set<String> assignedGlobals() {
+        return assignedGlobals;
+    }
+
+    java.util.Set<Expr> maybeUninitialized() {
+        return maybeUninitialized;
+    }
+
+    boolean deferred() {
+        return deferred;
     }
 
     private enum FunctionType {
@@ -62,6 +113,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     private void beginScope() {
         scopes.push(new HashMap<String, Boolean>());
+        uninitialized.push(new HashSet<>());
     }
 
     public void resolve(List<Stmt> statements) {
@@ -70,12 +122,23 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         }
     }
 
-    private void resolve(Stmt statement) {
+    public void resolve(Stmt statement) {
         statement.accept(this);
     }
 
+    /** A lazy body keeps a copy of the current scopes and is resolved on its first call. */
+    private void resolveBody(List<Stmt> body) {
+        if (body instanceof LazyBlock) {
+            deferred = true;
+            ((LazyBlock) body).defer(new Resolver(this, reporter));
+        } else {
+            resolve(body);
+        }
+    }
+
     private void endScope() {
         scopes.pop();
+        uninitialized.pop();
     }
 
     // Variable declaration resolution
@@ -85,6 +148,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         declare(stmt.name);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
+        } else if (!scopes.isEmpty()) {
+            uninitialized.peek().add(stmt.name.lexeme);
         }
 
         define(stmt.name);
@@ -98,7 +163,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         Map<String, Boolean> scope = scopes.peek();
         if (scope.containsKey(name.lexeme)) {
-            JLox.error(name, "Variable with this name already declared in this scope.");
+            reporter.error(name, "Variable with this name already declared in this scope.");
         }
         scope.put(name.lexeme, false);
     }
@@ -119,29 +184,36 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitVariableExpr(Expr.Variable expr) {
 
         if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            JLox.error(expr.name, "Cannot read local variable in its own initializer.");
+            reporter.error(expr.name, "Cannot read local variable in its own initializer.");
         }
 
         resolveLocal(expr, expr.name);
         return null;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    /** False if the name is not declared in any scope and so is a global. */
+    private boolean resolveLocal(Expr expr, Token name) {
 
         for (int i = scopes.size() - 1; i >= 0; i--) {
 
             if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+                locals.accept(expr, scopes.size() - 1 - i);
+                if (uninitialized.get(i).contains(name.lexeme)) {
+                    maybeUninitialized.add(expr);
+                }
+                return true;
             }
         }
+        return false;
     }
 
     // Assignment expressions
     @Override
     public Void visitAssignExpr(Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        if (!resolveLocal(expr, expr.name)) {
+            assignedGlobals.add(expr.name.lexeme);
+        }
         return null;
     }
 
@@ -164,7 +236,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             declare(p);
             define(p);
         }
-        resolve(stmt.function.body);
+        resolveBody(stmt.function.body);
         endScope();
 
         currentFunction = enclosingFunction;
@@ -198,12 +270,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitReturnStmt(Return stmt) {
 
         if (currentFunction == FunctionType.NONE) {
-            JLox.error(stmt.keyword, "Cannot return from top-level code.");
+            reporter.error(stmt.keyword, "Cannot return from top-level code.");
         }
 
         if (stmt.value != null) {
             if (currentFunction == FunctionType.INITIALIZER) {
-                JLox.error(stmt.keyword, "Cannot return a value from an initializer");
+                reporter.error(stmt.keyword, "Cannot return a value from an initializer");
             }
             resolve(stmt.value);
         }
@@ -260,13 +332,19 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionExpr(info.ladislav.jlox.parser.Expr.Function expr) {
+        // A lambda can return, even at the top level or in an initializer.
+        FunctionType enclosingFunction = currentFunction;
+        currentFunction = FunctionType.FUNCTION;
+
         beginScope();
         for (Token p : expr.parameters) {
             declare(p);
             define(p);
         }
-        resolve(expr.body);
+        resolveBody(expr.body);
         endScope();
+
+        currentFunction = enclosingFunction;
         return null;
     }
 
@@ -285,7 +363,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         define(stmt.name);
 
         if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-            JLox.error(stmt.superclass.name, "A class connot inherit from itself.");
+            reporter.error(stmt.superclass.name, "A class connot inherit from itself.");
         }
 
         if (stmt.superclass != null) {
@@ -334,7 +412,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitThisExpr(This expr) {
         if (currentClass == ClassType.NONE) {
-            JLox.error(expr.keyword, "Cannot use 'this' outside of a class");
+            reporter.error(expr.keyword, "Cannot use 'this' outside of a class");
             return null;
         }
 
@@ -346,9 +424,9 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitSuperExpr(Super expr) {
         
         if(currentClass == ClassType.NONE){
-            JLox.error(expr.keyword, "Cannot use 'super' outside of a class.");
+            reporter.error(expr.keyword, "Cannot use 'super' outside of a class.");
         } else if (currentClass != ClassType.SUBCLASS) {
-            JLox.error(expr.keyword, "Cannot use 'super' in a class with no superclass.");
+            reporter.error(expr.keyword, "Cannot use 'super' in a class with no superclass.");
         }
 
         resolveLocal(expr, expr.keyword);
@@ -1,13 +1,23 @@
-
 package info.ladislav.jlox.parser;
 
 import info.ladislav.jlox.lexer.Token;
 
 public class RuntimeError extends RuntimeException {
     public final Token token;
+    private final String message;
 
     RuntimeError(Token token, String message) {
       super("RuntimeError: " + message);
       this.token = token;
+      this.message = message;
+    }
+
+    /** An error of a native function, which the call of it gives a token, see {@link #at(Token)}. */
+    RuntimeError(String message) {
+      this(null, message);
+    }
+
+    RuntimeError at(Token token) {
+      return new RuntimeError(token, message);
     }
-  }
\ No newline at end of file
+  }
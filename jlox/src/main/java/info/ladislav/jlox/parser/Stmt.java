@@ -4,6 +4,7 @@ import java.util.List;
 
 import info.ladislav.jlox.lexer.Token;
 
+// Generated by tool/GenerateAst.java, edit the generator instead.
 
 public abstract class Stmt {
   interface Visitor<R> {
@@ -16,9 +17,48 @@ public abstract class Stmt {
     R visitReturnStmt(Return stmt);
     R visitVarStmt(Var stmt);
     R visitWhileStmt(While stmt);
+
+    /** Defaults to the node it extends, see {@link Fused.CompareBranch}. */
+    default R visitCompareBranchStmt(Fused.CompareBranch stmt) {
+      return visitIfStmt(stmt);
+    }
+
+    /** Defaults to the node it extends, see {@link Fused.ReturnBinary}. */
+    default R visitReturnBinaryStmt(Fused.ReturnBinary stmt) {
+      return visitReturnStmt(stmt);
+    }
+
+    /** Defaults to the node it extends, see {@link CountedLoop}. */
+    default R visitCountedLoopStmt(CountedLoop stmt) {
+      return visitWhileStmt(stmt);
+    }
+  }
+
+  static final int BLOCK = 0;
+  static final int CLASS = 1;
+  static final int EXPRESSION = 2;
+  static final int FUNCTION = 3;
+  static final int IF = 4;
+  static final int PRINT = 5;
+  static final int RETURN = 6;
+  static final int VAR = 7;
+  static final int WHILE = 8;
+  static final int COMPARE_BRANCH = 9;
+  static final int RETURN_BINARY = 10;
+  static final int COUNTED_LOOP = 11;
+
+  /** Which of the classes below this node is, for a switch instead of accept. */
+  final int kind;
+
+  /** Free for a profiler to count executions in. */
+  int profile;
+
+  private Stmt(int kind) {
+    this.kind = kind;
   }
   static class Block extends Stmt {
     Block(List<Stmt> statements) {
+      super(BLOCK);
       this.statements = statements;
     }
 
@@ -31,6 +71,7 @@ public abstract class Stmt {
   }
   static class Class extends Stmt {
     Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
+      super(CLASS);
       this.name = name;
       this.superclass = superclass;
       this.methods = methods;
@@ -47,6 +88,7 @@ public abstract class Stmt {
   }
   static class Expression extends Stmt {
     Expression(Expr expression) {
+      super(EXPRESSION);
       this.expression = expression;
     }
 
@@ -59,6 +101,7 @@ public abstract class Stmt {
   }
   static class Function extends Stmt {
     Function(Token name, Expr.Function function) {
+      super(FUNCTION);
       this.name = name;
       this.function = function;
     }
@@ -73,6 +116,12 @@ public abstract class Stmt {
   }
   static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+      this(IF, condition, thenBranch, elseBranch);
+    }
+
+    /** For the derived nodes, with a kind of their own. */
+    If(int kind, Expr condition, Stmt thenBranch, Stmt elseBranch) {
+      super(kind);
       this.condition = condition;
       this.thenBranch = thenBranch;
       this.elseBranch = elseBranch;
@@ -89,6 +138,7 @@ public abstract class Stmt {
   }
   static class Print extends Stmt {
     Print(Expr expression) {
+      super(PRINT);
       this.expression = expression;
     }
 
@@ -101,6 +151,12 @@ public abstract class Stmt {
   }
   static class Return extends Stmt {
     Return(Token keyword, Expr value) {
+      this(RETURN, keyword, value);
+    }
+
+    /** For the derived nodes, with a kind of their own. */
+    Return(int kind, Token keyword, Expr value) {
+      super(kind);
       this.keyword = keyword;
       this.value = value;
     }
@@ -115,6 +171,7 @@ public abstract class Stmt {
   }
   static class Var extends Stmt {
     Var(Token name, Expr initializer) {
+      super(VAR);
       this.name = name;
       this.initializer = initializer;
     }
@@ -129,6 +186,12 @@ public abstract class Stmt {
   }
   static class While extends Stmt {
     While(Expr condition, Stmt body) {
+      this(WHILE, condition, body);
+    }
+
+    /** For the derived nodes, with a kind of their own. */
+    While(int kind, Expr condition, Stmt body) {
+      super(kind);
       this.condition = condition;
       this.body = body;
     }
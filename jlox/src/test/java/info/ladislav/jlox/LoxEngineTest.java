@@ -0,0 +1,109 @@
+package info.ladislav.jlox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+public class LoxEngineTest extends TestCase {
+
+    private final LoxEngine engine = new LoxEngine();
+
+    public void testEvaluatesWithItsOwnGlobalsAndOutput() {
+        LoxEngine.Script script = engine.compile("var count = start; count = count + 1; print greeting + \" \" + \"world\";");
+        assertFalse(script.hasErrors());
+
+        List<String> first = new ArrayList<>();
+        List<String> second = new ArrayList<>();
+        LoxEngine.Result a = script.eval(Map.of("start", 1.0, "greeting", "hello"), first::add);
+        LoxEngine.Result b = script.eval(Map.of("start", 10.0, "greeting", "bye"), second::add);
+
+        assertEquals(List.of("hello world"), first);
+        assertEquals(List.of("bye world"), second);
+        assertEquals(2.0, a.global("count"));
+        assertEquals(11.0, b.global("count"));
+        assertNull(a.error());
+    }
+
+    public void testCollectsCompileErrors() {
+        LoxEngine.Script script = engine.compile("print ;\nreturn 1;");
+        assertTrue(script.hasErrors());
+        assertEquals("[line 1] Error at ';': Expect expression.", script.diagnostics().all().get(0).toString());
+        try {
+            script.eval(line -> {});
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testReturnsRuntimeErrors() {
+        List<String> output = new ArrayList<>();
+        LoxEngine.Result result = engine.compile("print 1;\nprint -\"a\";\nprint 2;").eval(output::add);
+
+        assertEquals(List.of("1"), output);
+        assertEquals("Operand must be a number.", result.error().getMessage().replace("RuntimeError: ", ""));
+        assertEquals(2, result.error().token.line);
+    }
+
+    public void testRunsOneScriptOnSeveralThreads() throws InterruptedException {
+        LoxEngine.Script script = engine.compile(
+            "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }\n" +
+            "var total = 0;\n" +
+            "for (var i = 0; i < 20; i = i + 1) total = total + fib(n);\n" +
+            "print total;");
+
+        int threads = 4;
+        CountDownLatch start = new CountDownLatch(1);
+        List<String> outputs = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> running = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            double n = 10 + t;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                script.eval(Map.of("n", n), line -> outputs.add(n + ": " + line));
+            });
+            thread.start();
+            running.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : running) thread.join();
+
+        Collections.sort(outputs);
+        assertEquals(List.of("10.0: 1100", "11.0: 1780", "12.0: 2880", "13.0: 4660"), outputs);
+    }
+
+    public void testSharesCompiledScripts() {
+        String source = "class Counter { init() { this.n = 0; } add() { this.n = this.n + 1; return this; } }\n" +
+            "var counter = Counter().add().add();\n" +
+            "print counter.n;";
+        LoxEngine.Script script = engine.compile(source);
+        assertSame(script, engine.compile(source));
+        assertNotSame(script, engine.compile(source + "\n"));
+
+        // Instances are created per evaluation, the class declaration is shared.
+        List<String> output = new ArrayList<>();
+        LoxEngine.Result a = script.eval(output::add);
+        LoxEngine.Result b = engine.compile(source).eval(output::add);
+        assertEquals(List.of("2", "2"), output);
+        assertNotSame(a.global("counter"), b.global("counter"));
+    }
+
+    public void testDropsLeastRecentlyUsedScripts() {
+        LoxEngine small = new LoxEngine(2);
+        LoxEngine.Script a = small.compile("print 1;");
+        LoxEngine.Script b = small.compile("print 2;");
+        assertSame(a, small.compile("print 1;"));
+        small.compile("print 3;");
+
+        assertEquals(2, small.cached());
+        assertSame(a, small.compile("print 1;"));
+        assertNotSame(b, small.compile("print 2;"));
+    }
+}
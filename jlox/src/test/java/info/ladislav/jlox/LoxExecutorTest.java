@@ -0,0 +1,109 @@
+package info.ladislav.jlox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class LoxExecutorTest extends TestCase {
+
+    private LoxExecutor executor;
+
+    @Override
+    protected void tearDown() {
+        if (executor != null) executor.close();
+    }
+
+    public void testReturnsResults() throws Exception {
+        executor = new LoxExecutor(new LoxEngine(), 2);
+        List<String> output = Collections.synchronizedList(new ArrayList<>());
+        Future<LoxEngine.Result> result = executor.submit("var x = 6 * 7; print x;", output::add);
+
+        assertEquals(42.0, result.get(10, TimeUnit.SECONDS).global("x"));
+        assertEquals(List.of("42"), output);
+    }
+
+    public void testStopsScriptsThatRunOutOfTime() throws Exception {
+        executor = new LoxExecutor(new LoxEngine(), 1);
+        // Numeric and ordinary loops, and recursion that takes ages, numeric and ordinary.
+        String[] endless = {
+            "fun spin(n) { while (true) n = n + 1; return n; } print spin(0);",
+            "var s = \"\"; while (true) s = \"a\";",
+            "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); } print fib(100);",
+            "fun tree(n) { if (n < 2) return \"leaf\"; tree(n - 1); return tree(n - 2); } print tree(100);",
+        };
+        for (String source : endless) {
+            Future<LoxEngine.Result> spin = executor.submit(source, Collections.emptyMap(), line -> {}, 50, TimeUnit.MILLISECONDS);
+            try {
+                spin.get(10, TimeUnit.SECONDS);
+                fail(source);
+            } catch (CancellationException expected) {
+            }
+        }
+
+        // The only permit is free again once the interrupted script has stopped.
+        assertEquals(3.0, executor.submit("var x = 1 + 2;", line -> {}).get(10, TimeUnit.SECONDS).global("x"));
+    }
+
+    public void testCancelsScripts() throws Exception {
+        executor = new LoxExecutor(new LoxEngine(), 1);
+        Future<LoxEngine.Result> spin = executor.submit("while (true) {}", line -> {});
+        Future<LoxEngine.Result> waiting = executor.submit("print 1;", line -> {});
+        Thread.sleep(20);
+
+        assertTrue(spin.cancel(true));
+        assertNull(waiting.get(10, TimeUnit.SECONDS).error());
+    }
+
+    public void testCancelsWaitingScriptsOnClose() throws Exception {
+        executor = new LoxExecutor(new LoxEngine(), 1);
+        Future<LoxEngine.Result> spin = executor.submit("while (true) {}", line -> {});
+        Future<LoxEngine.Result> waiting = executor.submit("print 1;", line -> {});
+        Thread.sleep(20);
+        executor.close();
+
+        // The running one is interrupted, the one waiting for the only thread never starts.
+        assertNotNull(spin.get(10, TimeUnit.SECONDS).error());
+        try {
+            waiting.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (CancellationException expected) {
+        }
+    }
+
+    public void testBoundsConcurrency() throws Exception {
+        executor = new LoxExecutor(new LoxEngine(), 2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger most = new AtomicInteger();
+        List<Future<LoxEngine.Result>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit("print \"start\"; var i = 0; while (i < 20000) i = i + 1; print \"end\";", line -> {
+                if (line.equals("start")) {
+                    most.accumulateAndGet(running.incrementAndGet(), Math::max);
+                } else {
+                    running.decrementAndGet();
+                }
+            }));
+        }
+        for (Future<LoxEngine.Result> result : results) {
+            assertNull(result.get(10, TimeUnit.SECONDS).error());
+        }
+        assertTrue(most.get() <= 2);
+    }
+
+    public void testFailsScriptsWithCompileErrors() throws Exception {
+        executor = new LoxExecutor(new LoxEngine(), 1);
+        try {
+            executor.submit("print ;", line -> {}).get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package info.ladislav.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+
+import info.ladislav.jlox.lexer.Scanner;
+import info.ladislav.jlox.lexer.Token;
+import info.ladislav.jlox.parser.Interpreter;
+import junit.framework.TestCase;
+
+public class PipelineTest extends TestCase {
+
+    private PrintStream originalOut;
+    private ByteArrayOutputStream out;
+
+    @Override
+    protected void setUp() {
+        JLox.hadError = false;
+        JLox.hadRuntimeError = false;
+        originalOut = System.out;
+        out = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(out, true));
+    }
+
+    @Override
+    protected void tearDown() {
+        System.setOut(originalOut);
+        JLox.hadError = false;
+    }
+
+    public void testRunsScript() {
+        Diagnostics errors = new Diagnostics();
+        new Pipeline(reporter -> new Scanner(new StringReader(
+                "var a = 1;\nprint a + 2;\nif (a < 2) print \"small\"; else print \"large\";\n"), reporter))
+            .run(new Interpreter(), errors);
+
+        assertFalse(errors.hasErrors());
+        assertEquals("3\nsmall\n", output());
+    }
+
+    public void testStopsAtSyntaxErrorButReportsTheRest() {
+        Diagnostics errors = new Diagnostics();
+        new Pipeline(reporter -> new Scanner(new StringReader(
+                "print 1;\nprint 2 +;\nprint 3;\nvar = 4;\n@\n"), reporter))
+            .run(new Interpreter(), errors);
+
+        assertEquals("1\n", output());
+        assertEquals(3, errors.all().size());
+        assertEquals("[line 2] Error at ';': Expect expression.", errors.all().get(0).toString());
+        assertEquals("[line 4] Error at '=': Variable name expected.", errors.all().get(1).toString());
+        assertEquals("[line 5] Error: Unexpected character", errors.all().get(2).toString());
+    }
+
+    /** The first statement runs while the scanner is still stuck in the middle of the file. */
+    public void testExecutesBeforeEndOfInput() throws Exception {
+        StringBuilder script = new StringBuilder("print \"first\";\n");
+        for (int i = 0; i < 2000; i++) {
+            script.append("var v = ").append(i).append(";\n");
+        }
+        script.append("print \"last\";\n");
+
+        CountDownLatch resume = new CountDownLatch(1);
+        Diagnostics errors = new Diagnostics();
+        Thread run = new Thread(() -> new Pipeline(reporter -> {
+            Iterator<Token> tokens = new Scanner(new StringReader(script.toString()), reporter);
+            return new Iterator<Token>() {
+                private int count = 0;
+
+                @Override
+                public boolean hasNext() {
+                    // Stall half way through, until the test has seen the first output.
+                    if (++count == 5000) {
+                        try {
+                            resume.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return tokens.hasNext();
+                }
+
+                @Override
+                public Token next() {
+                    return tokens.next();
+                }
+            };
+        }).run(new Interpreter(), errors));
+        run.start();
+
+        for (int i = 0; i < 500 && !output().contains("first"); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("first\n", output());
+
+        resume.countDown();
+        run.join(5000);
+
+        assertFalse(run.isAlive());
+        assertFalse(errors.hasErrors());
+        assertEquals("first\nlast\n", output());
+    }
+
+    private String output() {
+        return out.toString().replace("\r\n", "\n");
+    }
+}
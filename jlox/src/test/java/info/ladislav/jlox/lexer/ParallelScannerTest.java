@@ -0,0 +1,119 @@
+package info.ladislav.jlox.lexer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import info.ladislav.jlox.Diagnostics;
+import junit.framework.TestCase;
+
+/**
+ * The parallel scanner has to agree with the sequential one token for token,
+ * which is checked on randomly generated sources cut into tiny chunks.
+ */
+public class ParallelScannerTest
+    extends TestCase
+{
+    private static final String[] FRAGMENTS = {
+        "var", "fun", "while", "print", "x", "_tmp1", "and", "orchid",
+        "0", "42", "3.25", "7.", "(", ")", "{", "}", ";", ",", ".", "-", "+", "/", "*",
+        "!=", "==", "<=", ">", "=", "!", "?", ":",
+        "\"str\"", "\"two\nlines\"", "\"has // slashes\"", "\"has /* star\"", "\"\"",
+        "// line comment \" with quote\n", "// /* not a block\n", "//\n",
+        "/* block */", "/* multi\nline\n \" quote */", "/* // inner */", "/**/", "/***/", "/* * / */",
+        " ", "  ", "\t", "\r\n", "\n", "\n\n", "        ",
+        "caf\u00e9", "#"
+    };
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @Override
+    protected void tearDown()
+    {
+        pool.shutdown();
+    }
+
+    public void testRandomSources()
+    {
+        Random random = new Random(20201019L);
+
+        for (int round = 0; round < 300; round++) {
+            StringBuilder source = new StringBuilder();
+            int fragments = random.nextInt(400);
+            for (int i = 0; i < fragments; i++) {
+                source.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+
+            // Sometimes end inside an unterminated string or comment.
+            switch (random.nextInt(8)) {
+                case 0: source.append("\"never closed\nstill open"); break;
+                case 1: source.append("/* never closed\n"); break;
+                case 2: source.append("// no newline at the end"); break;
+            }
+
+            assertSameAsSequential(source.toString(), 1 + random.nextInt(64));
+        }
+    }
+
+    public void testLargeChunks()
+    {
+        assertSameAsSequential(ScannerBenchmark.generate(1 << 20), 64 * 1024);
+    }
+
+    public void testNamesInternedFromSeveralThreads() throws Exception
+    {
+        // Chunk parsers materialize identifiers of one stream at once.
+        int count = 20_000;
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append("name").append(i).append(' ');
+        }
+        byte[] source = text.toString().getBytes(StandardCharsets.US_ASCII);
+        int[] starts = new int[count + 1];
+        for (int i = 0, at = 0; i < count; i++) {
+            starts[i] = at;
+            at = text.indexOf(" ", at) + 1;
+        }
+        starts[count] = source.length;
+
+        NameTable names = new NameTable();
+        String[][] interned = new String[4][count];
+        List<Future<?>> threads = new ArrayList<>();
+        for (int t = 0; t < interned.length; t++) {
+            int thread = t;
+            threads.add(pool.submit(() -> {
+                for (int n = 0; n < count; n++) {
+                    int i = thread % 2 == 0 ? n : count - 1 - n;
+                    interned[thread][i] = names.intern(source, starts[i], starts[i + 1] - 1);
+                }
+            }));
+        }
+        for (Future<?> thread : threads) thread.get();
+
+        for (int i = 0; i < count; i++) {
+            assertEquals("name" + i, interned[0][i]);
+            for (int t = 1; t < interned.length; t++) {
+                assertSame(interned[0][i], interned[t][i]);
+            }
+        }
+    }
+
+    private void assertSameAsSequential(String source, int chunkSize)
+    {
+        byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+
+        Diagnostics sequentialErrors = new Diagnostics();
+        List<Token> expected = new ByteScanner(bytes, 0, bytes.length, 1, StandardCharsets.UTF_8, sequentialErrors)
+            .scanTokens();
+
+        Diagnostics parallelErrors = new Diagnostics();
+        List<Token> actual = new ParallelScanner(bytes, StandardCharsets.UTF_8, chunkSize, pool, parallelErrors)
+            .scanTokens();
+
+        ScannerTest.assertSameTokens(expected, actual);
+        assertEquals(sequentialErrors.all().toString(), parallelErrors.all().toString());
+    }
+}
@@ -0,0 +1,70 @@
+package info.ladislav.jlox.lexer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Scanner throughput in MB/s, {@link Scanner} against {@link ByteScanner}.
+ *
+ * Not a unit test, run it after {@code mvn test-compile} with
+ * {@code java -cp target/classes:target/test-classes info.ladislav.jlox.lexer.ScannerBenchmark [megabytes]}
+ */
+public class ScannerBenchmark {
+
+    public static void main(String[] args) {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        String source = generate(megabytes * 1024 * 1024);
+        byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+
+        System.out.println("Scanning " + bytes.length / (1024 * 1024) + " MB");
+
+        for (int round = 0; round < 10; round++) {
+            long start = System.nanoTime();
+            int expected = count(new Scanner(source));
+            double scanner = megabytesPerSecond(bytes.length, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            int actual = count(new ByteScanner(bytes));
+            double byteScanner = megabytesPerSecond(bytes.length, System.nanoTime() - start);
+
+            if (expected != actual) {
+                throw new AssertionError("Token counts differ: " + expected + " vs " + actual);
+            }
+
+            System.out.printf("round %d: Scanner %8.1f MB/s   ByteScanner %8.1f MB/s   (%d tokens)%n",
+                    round, scanner, byteScanner, actual);
+        }
+    }
+
+    /** Tokens are consumed as they are produced, so the timing is not dominated by a huge token list. */
+    private static int count(Iterator<Token> tokens) {
+        int count = 0;
+        while (tokens.hasNext()) {
+            if (tokens.next().lexeme != null) count++;
+        }
+        return count;
+    }
+
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    /** Generated-looking code: deep indentation, comments, many short identifiers and numbers. */
+    public static String generate(int size) {
+        StringBuilder source = new StringBuilder(size + 1024);
+        int n = 0;
+        while (source.length() < size) {
+            source.append("// helper number ").append(n).append('\n');
+            source.append("fun helper").append(n).append("(a, b) {\n");
+            source.append("        /* scaled\n           sum */\n");
+            source.append("        var result = a * ").append(n % 97).append(".25 + b / 3;\n");
+            source.append("        if (result >= 1000 and a != nil) {\n");
+            source.append("                print \"large result \" + result;\n");
+            source.append("        }\n");
+            source.append("        return result;\n");
+            source.append("}\n\n");
+            n++;
+        }
+        return source.toString();
+    }
+}
@@ -0,0 +1,139 @@
+package info.ladislav.jlox.lexer;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import info.ladislav.jlox.Diagnostics;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the streaming scanner.
+ */
+public class ScannerTest
+    extends TestCase
+{
+    private static final String SOURCE =
+        "/* block\ncomment */ var a = \"multi\nline\"; // trailing\n"
+        + "fun add(a, b) { return a + b >= 10.25 ? a : b; }\n"
+        + "print add(1, 2) != nil and !false;\n";
+
+    public void testScanTokens()
+    {
+        List<Token> tokens = new Scanner(SOURCE).scanTokens();
+
+        assertEquals(TokenType.VAR, tokens.get(0).type);
+        assertEquals(2, tokens.get(0).line);
+        assertEquals("multi\nline", tokens.get(3).literal);
+        assertEquals(3, tokens.get(3).line);
+        assertEquals(10.25, tokens.get(18).literal);
+
+        Token eof = tokens.get(tokens.size() - 1);
+        assertEquals(TokenType.EOF, eof.type);
+        assertEquals(6, eof.line);
+    }
+
+    /** Lexemes and lookahead have to survive window refills at any position. */
+    public void testOneCharacterReads()
+    {
+        Reader trickle = new StringReader(SOURCE) {
+            @Override
+            public int read(char[] buffer, int offset, int length) throws java.io.IOException {
+                return super.read(buffer, offset, Math.min(length, 1));
+            }
+        };
+
+        assertSameTokens(new Scanner(SOURCE).scanTokens(), new Scanner(trickle).scanTokens());
+    }
+
+    public void testLexemeLongerThanWindow()
+    {
+        StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            longString.append((char) ('a' + i % 26));
+        }
+
+        List<Token> tokens = new Scanner("print \"" + longString + "\";").scanTokens();
+
+        assertEquals(longString.toString(), tokens.get(1).literal);
+        assertEquals(TokenType.SEMICOLON, tokens.get(2).type);
+    }
+
+    public void testByteBufferSource() throws java.io.IOException
+    {
+        String source = SOURCE + "print \"caf\u00e9 \ud83d\ude00\";\n";
+        ByteBuffer bytes = ByteBuffer.allocateDirect(source.length() * 4);
+        bytes.put(source.getBytes(StandardCharsets.UTF_8)).flip();
+
+        assertSameTokens(new Scanner(source).scanTokens(),
+                new Scanner(bytes, StandardCharsets.UTF_8).scanTokens());
+
+        // Surrogate pairs must survive being read one char at a time.
+        Reader reader = new ByteBufferReader(bytes, StandardCharsets.UTF_8);
+        StringBuilder decoded = new StringBuilder();
+        char[] one = new char[1];
+        while (reader.read(one, 0, 1) > 0) {
+            decoded.append(one[0]);
+        }
+        assertEquals(source, decoded.toString());
+    }
+
+    public void testByteScannerMatchesScanner()
+    {
+        String source = SOURCE + ScannerBenchmark.generate(4096)
+            + "var big = 123456789012345678901234.5; var small = 0.000000000000000000000001;\n"
+            + "var keywords = and_ or1 classy fun_ whiles returned;\n"
+            + "print \"caf\u00e9\";  \t\r\n\n        // last\n/* unterminated";
+
+        assertSameScan(source);
+    }
+
+    /** Both report an unexpected character once, whether it takes one byte, several or a surrogate pair. */
+    public void testByteScannerReportsErrorsLikeScanner()
+    {
+        assertSameScan("var caf\u00e9 = 1;\nprint @ # \u00e9\u00e8;\n"
+            + "var \ud83d\ude00 = \u0663;\nprint \"\u00e9\ud83d\ude00\" + \"unterminated\n\u00e9");
+        assertSameScan("/* \u00e9 never closed\n\ud83d\ude00");
+    }
+
+    private static void assertSameScan(String source)
+    {
+        Diagnostics expected = new Diagnostics();
+        Diagnostics actual = new Diagnostics();
+        assertSameTokens(new Scanner(new StringReader(source), expected).scanTokens(),
+                new ByteScanner(source.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8, actual).scanTokens());
+
+        assertEquals(expected.all().toString(), actual.all().toString());
+    }
+
+    public void testTokenStreamMatchesScanner()
+    {
+        String source = SOURCE + "var pi = 3.14159; print \"caf\u00e9\" + pi;";
+        TokenStream stream = new ByteScanner(source.getBytes(StandardCharsets.UTF_8)).scanTokenStream();
+
+        List<Token> expected = new Scanner(source).scanTokens();
+        assertEquals(expected.size(), stream.size());
+        assertEquals(TokenType.EOF, stream.type(stream.size() - 1));
+
+        List<Token> materialised = new java.util.ArrayList<>();
+        for (Token token : stream) {
+            materialised.add(token);
+        }
+        assertSameTokens(expected, materialised);
+    }
+
+    static void assertSameTokens(List<Token> expected, List<Token> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Token e = expected.get(i);
+            Token a = actual.get(i);
+            assertEquals("token " + i, e.type, a.type);
+            assertEquals("token " + i, e.lexeme, a.lexeme);
+            assertEquals("token " + i, e.literal, a.literal);
+            assertEquals("token " + i, e.line, a.line);
+        }
+    }
+}
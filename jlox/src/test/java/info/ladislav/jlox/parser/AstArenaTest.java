@@ -0,0 +1,140 @@
+package info.ladislav.jlox.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import info.ladislav.jlox.Diagnostics;
+import info.ladislav.jlox.lexer.Scanner;
+import info.ladislav.jlox.lexer.TokenType;
+import junit.framework.TestCase;
+
+public class AstArenaTest extends TestCase {
+
+    private static final String SCRIPT =
+        "var g = \"global\";\n" +
+        "fun outer(a) {\n" +
+        "  var local = a;\n" +
+        "  fun inner() { print local; print g; { var g = 1; fun deepest() { return g; } print deepest(); } }\n" +
+        "  inner();\n" +
+        "  return fun () { return local == nil ? \"none\" : local; };\n" +
+        "}\n" +
+        "print outer(\"local\")();\n" +
+        "var i = 0;\n" +
+        "while (i < 3) { if (i == 1) print \"one\"; else print i; i = i + 1; }\n" +
+        "class A { init() { this.x = 1; } get() { return this.x; } }\n" +
+        "class B < A { get() { return super.get() + 1; } }\n" +
+        "var b = B();\n" +
+        "b.x = 41;\n" +
+        "print b.get();\n" +
+        "print !true or false and -i;\n";
+
+    private PrintStream originalOut;
+    private ByteArrayOutputStream out;
+
+    @Override
+    protected void setUp() {
+        originalOut = System.out;
+        out = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(out, true));
+    }
+
+    @Override
+    protected void tearDown() {
+        System.setOut(originalOut);
+    }
+
+    /** Statements taken back out of the arena print and run like the parsed ones. */
+    public void testRunsLikeObjectTree() {
+        Diagnostics errors = new Diagnostics();
+        List<Stmt> parsed = new Parser(new Scanner(SCRIPT), errors).parse();
+        Interpreter interpreter = new Interpreter();
+        new Resolver(interpreter, errors).resolve(parsed);
+        interpreter.interpret(parsed);
+        String expected = output();
+        assertEquals("local\nglobal\n1\nlocal\n0\none\n2\n42\nfalse\n", expected);
+
+        AstArena arena = new AstArena();
+        int[] roots = arena.addAll(new Parser(new Scanner(SCRIPT), errors), errors);
+        assertFalse(errors.hasErrors());
+        assertEquals(parsed.size(), roots.length);
+
+        Interpreter arenaInterpreter = new Interpreter();
+        List<Stmt> inflated = new ArrayList<>();
+        for (int root : roots) {
+            Stmt statement = arena.statement(root, arenaInterpreter);
+            inflated.add(statement);
+            arenaInterpreter.interpret(statement);
+        }
+        assertEquals(expected, output());
+        assertEquals(new AstPrinter().print(parsed), new AstPrinter().print(inflated));
+    }
+
+    public void testWalksArraysDirectly() {
+        Diagnostics errors = new Diagnostics();
+        AstArena arena = new AstArena();
+        int[] roots = arena.addAll(new Parser(new Scanner("fun f(a) {\n  return a + 1;\n}\n"), errors), errors);
+
+        int function = roots[0];
+        assertEquals(AstArena.FUNCTION_STMT, arena.kind(function));
+        assertEquals("f", arena.lexeme(arena.token(function)));
+
+        int expression = arena.first(function);
+        assertEquals(AstArena.FUNCTION_EXPR, arena.kind(expression));
+        assertEquals(1, arena.listSize(arena.first(expression)));
+        assertEquals("a", arena.lexeme(arena.listItem(arena.first(expression), 0)));
+
+        int body = arena.second(expression);
+        assertEquals(1, arena.listSize(body));
+        int ret = arena.listItem(body, 0);
+        assertEquals(AstArena.RETURN, arena.kind(ret));
+        assertEquals(2, arena.line(arena.token(ret)));
+
+        int sum = arena.first(ret);
+        assertEquals(AstArena.BINARY, arena.kind(sum));
+        assertEquals(TokenType.PLUS, arena.tokenType(arena.token(sum)));
+        assertEquals(AstArena.VARIABLE, arena.kind(arena.first(sum)));
+        assertEquals("parameter at depth 0", 1, arena.first(arena.first(sum)));
+        assertEquals(1.0, arena.literal(arena.first(arena.second(sum))));
+    }
+
+    /** Bodies become objects on their first use, with the depths the resolver found. */
+    public void testInflatesBodiesOnFirstUse() {
+        Diagnostics errors = new Diagnostics();
+        AstArena arena = new AstArena();
+        int[] roots = arena.addAll(new Parser(new Scanner("fun f(a) { print a; }\n"), errors), errors);
+
+        Map<Expr, Integer> depths = new HashMap<>();
+        Interpreter interpreter = new Interpreter() {
+            @Override
+            void resolve(Expr expr, int depth) {
+                depths.put(expr, depth);
+                super.resolve(expr, depth);
+            }
+        };
+        Stmt.Function function = (Stmt.Function) arena.statement(roots[0], interpreter);
+        assertTrue(depths.isEmpty());
+
+        Expr printed = ((Stmt.Print) function.function.body.get(0)).expression;
+        assertEquals(Integer.valueOf(0), depths.get(printed));
+        assertSame(function.function.body.get(0), function.function.body.get(0));
+    }
+
+    public void testLeavesOutDeclarationsWithErrors() {
+        Diagnostics errors = new Diagnostics();
+        AstArena arena = new AstArena();
+        int[] roots = arena.addAll(new Parser(new Scanner("print 1;\nprint 2 +;\nprint 3;\n"), errors), errors);
+
+        assertEquals(2, roots.length);
+        assertEquals("[[line 2] Error at ';': Expect expression.]", errors.all().toString());
+    }
+
+    private String output() {
+        String output = out.toString().replace("\r\n", "\n");
+        out.reset();
+        return output;
+    }
+}
@@ -0,0 +1,131 @@
+package info.ladislav.jlox.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import info.ladislav.jlox.Diagnostics;
+import info.ladislav.jlox.lexer.ByteScanner;
+import junit.framework.TestCase;
+
+public class AstCacheTest extends TestCase {
+
+    private static final Charset UTF_8 = StandardCharsets.UTF_8;
+
+    private static final String SCRIPT =
+        "var g = \"gl\u00f6bal\";\n" +
+        "fun outer(a) {\n" +
+        "  var local = a;\n" +
+        "  fun inner() { print local; print g; { var g = 1.5; print g * 2; } }\n" +
+        "  inner();\n" +
+        "  return fun () { return local == nil ? \"none\" : local; };\n" +
+        "}\n" +
+        "print outer(\"local\")();\n" +
+        "var i = 0;\n" +
+        "while (i < 3) { if (i == 1) print \"one\"; else print i; i = i + 1; }\n" +
+        "class A { init() { this.x = 1; } get() { return this.x; } }\n" +
+        "class B < A { get() { return super.get() + 1; } }\n" +
+        "print B().get();\n" +
+        "print !true or false and -i;\n";
+
+    private PrintStream originalOut;
+    private ByteArrayOutputStream out;
+    private Path directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        originalOut = System.out;
+        out = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(out, true, UTF_8));
+        directory = Files.createTempDirectory("jlox-cache");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        System.setOut(originalOut);
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    /** A loaded tree prints and runs exactly like the tree that was stored. */
+    public void testLoadsWhatWasStored() {
+        byte[] source = SCRIPT.getBytes(UTF_8);
+        AstCache cache = new AstCache(directory);
+        assertNull(cache.load(source, UTF_8, new Interpreter()));
+
+        Interpreter interpreter = new Interpreter();
+        List<Stmt> statements = parseAndResolve(source, interpreter);
+        cache.store(source, UTF_8, statements, interpreter);
+        interpreter.interpret(statements);
+        String expected = output();
+        assertEquals("local\ngl\u00f6bal\n3\nlocal\n0\none\n2\n2\nfalse\n", expected);
+
+        Interpreter cachedInterpreter = new Interpreter();
+        List<Stmt> cached = new AstCache(directory).load(source, UTF_8, cachedInterpreter);
+        assertNotNull(cached);
+        assertEquals(new AstPrinter().print(statements), new AstPrinter().print(cached));
+
+        cachedInterpreter.interpret(cached);
+        assertEquals(expected, output());
+    }
+
+    public void testEditedSourceMisses() {
+        byte[] source = SCRIPT.getBytes(UTF_8);
+        AstCache cache = new AstCache(directory);
+        Interpreter interpreter = new Interpreter();
+        cache.store(source, UTF_8, parseAndResolve(source, interpreter), interpreter);
+
+        byte[] edited = (SCRIPT + "print 1;\n").getBytes(UTF_8);
+        assertNull(cache.load(edited, UTF_8, new Interpreter()));
+        assertNull(cache.load(source, StandardCharsets.ISO_8859_1, new Interpreter()));
+        assertNotNull(cache.load(source, UTF_8, new Interpreter()));
+    }
+
+    /** Truncated or foreign entries are misses, and storing again repairs them. */
+    public void testUnreadableEntryMisses() throws IOException {
+        byte[] source = SCRIPT.getBytes(UTF_8);
+        AstCache cache = new AstCache(directory);
+        Interpreter interpreter = new Interpreter();
+        List<Stmt> statements = parseAndResolve(source, interpreter);
+        cache.store(source, UTF_8, statements, interpreter);
+
+        Path entry = cache.entry(source, UTF_8);
+        byte[] stored = Files.readAllBytes(entry);
+        Files.write(entry, Arrays.copyOf(stored, stored.length / 2));
+        assertNull(cache.load(source, UTF_8, new Interpreter()));
+
+        byte[] otherVersion = stored.clone();
+        otherVersion[7]++;
+        Files.write(entry, otherVersion);
+        assertNull(cache.load(source, UTF_8, new Interpreter()));
+
+        cache.store(source, UTF_8, statements, interpreter);
+        assertNotNull(cache.load(source, UTF_8, new Interpreter()));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals("only the entry, no temporary files", 1, files.count());
+        }
+    }
+
+    private static List<Stmt> parseAndResolve(byte[] source, Interpreter interpreter) {
+        Diagnostics errors = new Diagnostics();
+        List<Stmt> statements = new Parser(new ByteScanner(source, UTF_8, errors), errors).parse();
+        new Resolver(interpreter, errors).resolve(statements);
+        assertFalse(errors.all().toString(), errors.hasErrors());
+        return statements;
+    }
+
+    private String output() {
+        String output = out.toString(UTF_8).replace("\r\n", "\n");
+        out.reset();
+        return output;
+    }
+}
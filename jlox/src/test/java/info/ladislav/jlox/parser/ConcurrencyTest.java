@@ -0,0 +1,108 @@
+package info.ladislav.jlox.parser;
+
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class ConcurrencyTest extends TestCase {
+
+    public void testAwaitsWhatTasksReturn() {
+        assertEquals(List.of("4950", "nil"), Scripts.lines(
+            "fun sum(from, to) { var t = 0; for (var i = from; i < to; i = i + 1) t = t + i; return t; }\n" +
+            "var tasks = nil;\n" +
+            "class Node { init(task, next) { this.task = task; this.next = next; } }\n" +
+            "for (var i = 0; i < 4; i = i + 1) {\n" +
+            "  var from = i * 25;\n" +
+            "  tasks = Node(spawn(fun () { return sum(from, from + 25); }), tasks);\n" +
+            "}\n" +
+            "var total = 0;\n" +
+            "while (tasks != nil) { total = total + await(tasks.task); tasks = tasks.next; }\n" +
+            "print total;\n" +
+            "print await(spawn(fun () {}));"));
+    }
+
+    public void testTasksAwaitEachOther() {
+        assertEquals(List.of("55"), Scripts.lines(
+            "fun fib(n) {\n" +
+            "  if (n < 2) return n;\n" +
+            "  var left = spawn(fun () { return fib(n - 1); });\n" +
+            "  return fib(n - 2) + await(left);\n" +
+            "}\n" +
+            "print fib(10);"));
+    }
+
+    public void testPassesValuesThroughChannels() {
+        assertEquals(List.of("5050", "true"), Scripts.lines(
+            "var numbers = channel(2);\n" +
+            "var results = channel(1);\n" +
+            "spawn(fun () {\n" +
+            "  var total = 0;\n" +
+            "  for (var n = receive(numbers); n != nil; n = receive(numbers)) total = total + n;\n" +
+            "  send(results, total);\n" +
+            "});\n" +
+            "for (var i = 1; i <= 100; i = i + 1) send(numbers, i);\n" +
+            "send(numbers, nil);\n" +
+            "print receive(results);\n" +
+            "print results != numbers;"));
+    }
+
+    public void testSharesCapturedVariables() {
+        assertEquals(List.of("3"), Scripts.lines(
+            "fun counter() { var n = 0; return fun () { n = n + 1; return n; }; }\n" +
+            "var next = counter();\n" +
+            "var first = spawn(next);\n" +
+            "await(first);\n" +
+            "var holder = channel(1);\n" +
+            "send(holder, next);\n" +
+            "await(spawn(fun () { receive(holder)(); }));\n" +
+            "print next();"));
+    }
+
+    public void testReportsErrorsOfTasksWhenAwaited() {
+        assertEquals(List.of("before", "RuntimeError: Operand must be a number.\n[line 1]"), Scripts.lines(
+            "var task = spawn(fun () { return -\"a\"; });\nprint \"before\";\nawait(task);"));
+        assertEquals(List.of("RuntimeError: Can only spawn functions without parameters.\n[line 1]"), Scripts.lines(
+            "spawn(fun (x) { return x; });"));
+        assertEquals(List.of("RuntimeError: Channel capacity must be a positive integer.\n[line 1]"), Scripts.lines(
+            "channel(0);"));
+    }
+
+    public void testInterruptingTheScriptStopsItsTasks() throws Exception {
+        Scripts scripts = new Scripts();
+        Interpreter interpreter = scripts.interpreter;
+        List<Stmt> statements = scripts.compile(
+            "var started = channel(1);\n" +
+            "var task = spawn(fun () { send(started, true); while (true) {} });\n" +
+            "receive(started);\n" +
+            "await(task);", true);
+
+        Thread script = new Thread(() -> interpreter.interpret(statements));
+        script.start();
+        while (interpreter.global("task") == null) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(20);
+        script.interrupt();
+        script.join(10_000);
+
+        assertEquals("RuntimeError: Interrupted.\n[line 4]\n", scripts.output());
+        // The endless loop of the task stops too, rather than running on in the pool.
+        ((Future<?>) interpreter.global("task")).get(10, TimeUnit.SECONDS);
+    }
+
+    public void testTasksStopWhenTheScriptEnds() throws Exception {
+        Scripts scripts = new Scripts();
+        assertEquals("done\n", scripts.run(
+            "var n = 0;\n" +
+            "var task = spawn(fun () { while (true) { n = n + 1; } });\n" +
+            "print \"done\";", true));
+
+        // The endless loop of the task stops with the script, rather than running on in the pool.
+        ((Future<?>) scripts.interpreter.global("task")).get(10, TimeUnit.SECONDS);
+        Object n = scripts.interpreter.global("n");
+        Thread.sleep(20);
+        assertEquals(n, scripts.interpreter.global("n"));
+    }
+}
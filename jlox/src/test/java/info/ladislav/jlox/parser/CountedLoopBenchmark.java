@@ -0,0 +1,70 @@
+package info.ladislav.jlox.parser;
+
+import java.util.List;
+
+import info.ladislav.jlox.Diagnostics;
+import info.ladislav.jlox.lexer.Scanner;
+
+/**
+ * Milliseconds for two nested numeric for loops, run as the while loops they
+ * desugar to and as the {@link CountedLoop}s the optimizer turns them into.
+ * The bodies give the optimizer nothing else to rewrite.
+ *
+ * Not a unit test, run it after {@code mvn test-compile} with
+ * {@code java -cp target/classes:target/test-classes info.ladislav.jlox.parser.CountedLoopBenchmark [iterations]}
+ */
+public class CountedLoopBenchmark {
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        String source =
+            "var sum = 0;\n" +
+            "for (var i = 0; i < " + n + "; i = i + 1) {\n" +
+            "  for (var j = 0; j < " + n + "; j = j + 1) {\n" +
+            "    sum = sum + j;\n" +
+            "  }\n" +
+            "}\n" +
+            "print sum;";
+
+        Interpreter whileInterpreter = new Interpreter(line -> {}, CountedLoopBenchmark::fail);
+        List<Stmt> whileLoops = compile(source, whileInterpreter, false);
+        Interpreter countedInterpreter = new Interpreter(line -> {}, CountedLoopBenchmark::fail);
+        List<Stmt> countedLoops = compile(source, countedInterpreter, true);
+        // A for loop desugars to a block of its initializer and the while loop.
+        if (!(((Stmt.Block) countedLoops.get(1)).statements.get(1) instanceof CountedLoop)) {
+            throw new AssertionError("The outer loop is not counted: " + new AstPrinter().print(countedLoops.get(1)));
+        }
+
+        System.out.println("Running " + n + " x " + n + " iterations");
+
+        for (int round = 0; round < 10; round++) {
+            long start = System.nanoTime();
+            whileInterpreter.interpret(whileLoops);
+            double whileMillis = (System.nanoTime() - start) / 1e6;
+
+            start = System.nanoTime();
+            countedInterpreter.interpret(countedLoops);
+            double countedMillis = (System.nanoTime() - start) / 1e6;
+
+            if (!whileInterpreter.global("sum").equals(countedInterpreter.global("sum"))) {
+                throw new AssertionError("Sums differ: " + whileInterpreter.global("sum") + " vs "
+                        + countedInterpreter.global("sum"));
+            }
+
+            System.out.printf("round %d: while %8.1f ms   counted %8.1f ms%n", round, whileMillis, countedMillis);
+        }
+    }
+
+    private static List<Stmt> compile(String source, Interpreter interpreter, boolean optimized) {
+        Diagnostics errors = new Diagnostics();
+        List<Stmt> statements = new Parser(new Scanner(source), errors).parse();
+        Resolver resolver = new Resolver(interpreter, errors);
+        resolver.resolve(statements);
+        if (errors.hasErrors()) throw new AssertionError(errors.all());
+        return optimized ? new Optimizer(interpreter, resolver).optimize(statements) : statements;
+    }
+
+    private static void fail(RuntimeError e) {
+        throw new AssertionError(e.getMessage());
+    }
+}
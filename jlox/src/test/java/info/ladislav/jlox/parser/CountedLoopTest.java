@@ -0,0 +1,67 @@
+package info.ladislav.jlox.parser;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class CountedLoopTest extends TestCase {
+
+    public void testRecognizesCountedLoops() {
+        assertTrue(isCounted("for (var i = 0; i < 10; i = i + 1) print i;"));
+        assertTrue(isCounted("var n = 3; for (var i = n; i >= 0; i = i - 0.5) { print i * 2; }"));
+        assertTrue(isCounted("for (var i = 0; i < 10; i = i + 1) { var i = 2; print i; }"));
+
+        CountedLoop loop = loop("for (var i = 0; i < 10; i = i + 1) { { print 1; } }");
+        assertFalse(loop.readsCounter);
+        assertEquals(3, loop.scopes);
+    }
+
+    public void testLeavesOtherLoopsAlone() {
+        assertFalse(isCounted("for (var i = 0; i < 10; i = i * 2) print i;"));
+        assertFalse(isCounted("for (var i = 0; i < 10; i = i + 1) { i = i + 1; }"));
+        assertFalse(isCounted("for (var i = 0; i < i + 10; i = i + 1) print 1;"));
+        assertFalse(isCounted("for (var i = 0; i < 10; i = i + 1) { fun f() { return i; } f(); }"));
+        assertFalse(isCounted("for (var i = 0; 10 > i; i = i + 1) print i;"));
+        assertFalse(isCounted("var i = 0; for (; i < 10; i = i + 1) print i;"));
+    }
+
+    public void testRunsLikeWhileLoop() {
+        String script =
+            "var total = 0;\n" +
+            "for (var i = 0; i < 4; i = i + 1) {\n" +
+            "  for (var j = i; j > 0; j = j - 1) total = total + j;\n" +
+            "}\n" +
+            "print total;\n" +
+            "for (var x = 0; x <= 1; x = x + 0.25) print x;\n" +
+            "var limit = 2;\n" +
+            "fun grow() { limit = limit + 1; return limit; }\n" +
+            "for (var k = 0; k < limit; k = k + 1) if (k < 4) grow();\n" +
+            "print limit;\n" +
+            "for (var s = \"a\"; s < 3; s = s + 1) print s;\n";
+
+        assertEquals("10\n0\n0.25\n0.5\n0.75\n1\n6\nRuntimeError: Operands must be numbers.\n[line 11]\n", new Scripts().run(script, false));
+        assertEquals(new Scripts().run(script, false), new Scripts().run(script, true));
+    }
+
+    public void testFailsOnLimitsThatAreNotNumbers() {
+        assertEquals("0\nRuntimeError: Operands must be numbers.\n[line 1]\n",
+            new Scripts().run("var n = 1; for (var i = 0; i < n; i = i + 1) { print i; n = \"x\"; }", true));
+    }
+
+    private boolean isCounted(String source) {
+        return loop(source) != null;
+    }
+
+    /** The first counted loop at the top level of the compiled source, or null. */
+    private CountedLoop loop(String source) {
+        for (Stmt statement : new Scripts().compile(source, true)) {
+            if (statement instanceof Stmt.Block) {
+                List<Stmt> block = ((Stmt.Block) statement).statements;
+                if (block.size() == 2 && block.get(1) instanceof CountedLoop) {
+                    return (CountedLoop) block.get(1);
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,259 @@
+package info.ladislav.jlox.parser;
+
+import java.util.List;
+
+import info.ladislav.jlox.lexer.Scanner;
+import info.ladislav.jlox.lexer.ScannerBenchmark;
+
+/**
+ * Visits per second when walking parsed trees through accept against a
+ * switch on {@code kind}, the way {@link Dispatch} runs them.
+ *
+ * Not a unit test, run it after {@code mvn test-compile} with
+ * {@code java -cp target/classes:target/test-classes info.ladislav.jlox.parser.DispatchBenchmark [megabytes]}
+ */
+public class DispatchBenchmark {
+
+    public static void main(String[] args) {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        List<Stmt> statements = new Parser(new Scanner(ScannerBenchmark.generate(megabytes * 1024 * 1024))).parse();
+
+        Walker visitor = new Walker(false);
+        Walker switched = new Walker(true);
+        System.out.println("Walking " + statements.size() + " statements");
+
+        for (int round = 0; round < 10; round++) {
+            long start = System.nanoTime();
+            visitor.walk(statements);
+            double accept = millionsPerSecond(visitor.visits, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            switched.walk(statements);
+            double kind = millionsPerSecond(switched.visits, System.nanoTime() - start);
+
+            if (visitor.visits != switched.visits) {
+                throw new AssertionError("Visit counts differ: " + visitor.visits + " vs " + switched.visits);
+            }
+
+            System.out.printf("round %d: accept %8.1f M/s   switch %8.1f M/s   (%d nodes)%n",
+                    round, accept, kind, switched.visits);
+        }
+    }
+
+    private static double millionsPerSecond(long visits, long nanos) {
+        return visits / 1e6 / (nanos / 1e9);
+    }
+
+    /** Visits every node once, dispatching on children either way. */
+    private static final class Walker implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+        private final boolean switched;
+        long visits;
+
+        Walker(boolean switched) {
+            this.switched = switched;
+        }
+
+        void walk(List<Stmt> statements) {
+            visits = 0;
+            stmts(statements);
+        }
+
+        private void stmts(List<? extends Stmt> statements) {
+            for (Stmt statement : statements) {
+                stmt(statement);
+            }
+        }
+
+        private void stmt(Stmt stmt) {
+            if (stmt == null) return;
+            visits++;
+            if (!switched) {
+                stmt.accept(this);
+                return;
+            }
+            switch (stmt.kind) {
+                case Stmt.BLOCK: visitBlockStmt((Stmt.Block) stmt); break;
+                case Stmt.CLASS: visitClassStmt((Stmt.Class) stmt); break;
+                case Stmt.EXPRESSION: visitExpressionStmt((Stmt.Expression) stmt); break;
+                case Stmt.FUNCTION: visitFunctionStmt((Stmt.Function) stmt); break;
+                case Stmt.IF: visitIfStmt((Stmt.If) stmt); break;
+                case Stmt.PRINT: visitPrintStmt((Stmt.Print) stmt); break;
+                case Stmt.RETURN: visitReturnStmt((Stmt.Return) stmt); break;
+                case Stmt.VAR: visitVarStmt((Stmt.Var) stmt); break;
+                default: visitWhileStmt((Stmt.While) stmt);
+            }
+        }
+
+        private void expr(Expr expr) {
+            if (expr == null) return;
+            visits++;
+            if (!switched) {
+                expr.accept(this);
+                return;
+            }
+            switch (expr.kind) {
+                case Expr.ASSIGN: visitAssignExpr((Expr.Assign) expr); break;
+                case Expr.BINARY: visitBinaryExpr((Expr.Binary) expr); break;
+                case Expr.CALL: visitCallExpr((Expr.Call) expr); break;
+                case Expr.GET: visitGetExpr((Expr.Get) expr); break;
+                case Expr.TERNARY: visitTernaryExpr((Expr.Ternary) expr); break;
+                case Expr.GROUPING: visitGroupingExpr((Expr.Grouping) expr); break;
+                case Expr.LITERAL: visitLiteralExpr((Expr.Literal) expr); break;
+                case Expr.LOGICAL: visitLogicalExpr((Expr.Logical) expr); break;
+                case Expr.SET: visitSetExpr((Expr.Set) expr); break;
+                case Expr.SUPER: visitSuperExpr((Expr.Super) expr); break;
+                case Expr.THIS: visitThisExpr((Expr.This) expr); break;
+                case Expr.FUNCTION: visitFunctionExpr((Expr.Function) expr); break;
+                case Expr.UNARY: visitUnaryExpr((Expr.Unary) expr); break;
+                default: visitVariableExpr((Expr.Variable) expr);
+            }
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expr(expr.left);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            expr(expr.callee);
+            for (Expr argument : expr.arguments) {
+                expr(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            expr(expr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            expr(expr.condition);
+            expr(expr.if_true);
+            expr(expr.if_false);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            expr(expr.left);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            expr(expr.object);
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionExpr(Expr.Function expr) {
+            stmts(expr.body);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            stmts(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            expr(stmt.superclass);
+            stmts(stmt.methods);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            expr(stmt.function);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            expr(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            expr(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            expr(stmt.condition);
+            stmt(stmt.body);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package info.ladislav.jlox.parser;
+
+import junit.framework.TestCase;
+
+public class FusedTest extends TestCase {
+
+    public void testFusesCommonShapes() {
+        Stmt.Block block = (Stmt.Block) new Scripts().compile("{ var x = 0; x = x - 2; }", true).get(0);
+        Expr.Assign assign = (Expr.Assign) ((Stmt.Expression) block.statements.get(1)).expression;
+        assertTrue(assign instanceof Fused.Increment);
+        assertEquals(-2.0, ((Fused.Increment) assign).delta);
+        assertEquals(Expr.INCREMENT, assign.kind);
+
+        Stmt.Print print = (Stmt.Print) new Scripts().compile("var a; print a.b.c.d;", true).get(1);
+        assertTrue(print.expression instanceof Fused.PropertyChain);
+        assertEquals(3, ((Fused.PropertyChain) print.expression).names.size());
+        assertEquals(Expr.PROPERTY_CHAIN, print.expression.kind);
+
+        assertTrue(new Scripts().compile("var a = 1; a = 3; if (a < 2) print a;", true).get(2) instanceof Fused.CompareBranch);
+        assertFalse(new Scripts().compile("var a = 1; if (a and a) print a;", true).get(1) instanceof Fused.CompareBranch);
+    }
+
+    public void testLeavesOtherAssignmentsAlone() {
+        Stmt.Block block = (Stmt.Block) new Scripts().compile("{ var x = 0; var y = 1; x = y + 1; }", true).get(0);
+        Expr assign = ((Stmt.Expression) block.statements.get(2)).expression;
+        assertFalse(assign instanceof Fused.Increment);
+
+        Stmt.Expression global = (Stmt.Expression) new Scripts().compile("var g = 0; g = g + 1;", true).get(1);
+        assertFalse(global.expression instanceof Fused.Increment);
+    }
+
+    public void testRunsLikeUnfusedNodes() {
+        String script =
+            "class Node {}\n" +
+            "var a = Node(); a.b = Node(); a.b.c = 3;\n" +
+            "print a.b.c;\n" +
+            "fun add(p, q) { return p + q; }\n" +
+            "print add(1, 2); print add(\"x\", \"y\");\n" +
+            "{\n" +
+            "  var i = 0; var s = \"s\";\n" +
+            "  while (i < 3) { i = i + 1; s = s + 1; }\n" +
+            "  if (i == 3) print s; else print \"no\";\n" +
+            "  if (i != 3) print \"no\";\n" +
+            "}\n" +
+            "print a.b.c.d;\n";
+
+        assertEquals("3\n3\nxy\ns111\nRuntimeError: Only instances have properties\n[line 12]\n", new Scripts().run(script, false));
+        assertEquals(new Scripts().run(script, false), new Scripts().run(script, true));
+    }
+
+    public void testFailsOnComparisonsOfOtherValues() {
+        assertEquals("RuntimeError: Operands must be numbers.\n[line 1]\n",
+            new Scripts().run("var a = \"x\"; if (a < 1) print a;", true));
+    }
+}
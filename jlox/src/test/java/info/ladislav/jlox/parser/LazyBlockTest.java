@@ -0,0 +1,92 @@
+package info.ladislav.jlox.parser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import info.ladislav.jlox.Diagnostics;
+import info.ladislav.jlox.lexer.ByteScanner;
+import info.ladislav.jlox.lexer.Scanner;
+import junit.framework.TestCase;
+
+public class LazyBlockTest extends TestCase {
+
+    private static final String SCRIPT =
+        "var g = \"global\";\n" +
+        "fun show() { print g; }\n" +
+        "fun outer(a) {\n" +
+        "  var local = a;\n" +
+        "  fun inner() { print local; print g; { var g = 1; fun deepest() { return g; } print deepest(); } }\n" +
+        "  inner();\n" +
+        "  var g = \"shadow\";\n" +
+        "  inner();\n" +
+        "  return fun () { return local; };\n" +
+        "}\n" +
+        "show();\n" +
+        "print outer(\"local\")();\n" +
+        "class A { init() { this.x = 1; } get() { return this.x; } }\n" +
+        "class B < A { get() { return super.get() + 1; } }\n" +
+        "print B().get();\n";
+
+    /** Bodies resolved on their first call see the scopes of their definition, as if resolved eagerly. */
+    public void testSameOutputAsEager() {
+        String eager = run(SCRIPT, Parser.FunctionBodies.EAGER, false);
+        assertEquals("global\nlocal\nglobal\n1\nlocal\nglobal\n1\nlocal\n2\n", eager);
+
+        assertEquals(eager, run(SCRIPT, Parser.FunctionBodies.LAZY, false));
+        assertEquals(eager, run(SCRIPT, Parser.FunctionBodies.LAZY, true));
+        assertEquals(eager, run(SCRIPT, Parser.FunctionBodies.VALIDATED, false));
+    }
+
+    public void testBodiesAreNotParsedUntilUsed() {
+        String source = "fun unused() { print 1 +; }\nfun used() { print 2; }\n";
+        for (boolean stream : new boolean[] { false, true }) {
+            Diagnostics errors = new Diagnostics();
+            List<Stmt> statements = parse(source, Parser.FunctionBodies.LAZY, stream, errors);
+
+            assertFalse(errors.hasErrors());
+            assertTrue(((Stmt.Function) statements.get(0)).function.body instanceof LazyBlock);
+            assertEquals("(fun used () (print 2.0))", new AstPrinter().print(statements.get(1)));
+        }
+    }
+
+    public void testValidatedReportsSyntaxErrorsUpFront() {
+        Diagnostics errors = new Diagnostics();
+        parse("fun unused() { print 1 +; }\n", Parser.FunctionBodies.VALIDATED, true, errors);
+
+        assertEquals("[[line 1] Error at ';': Expect expression.]", errors.all().toString());
+    }
+
+    public void testErrorsAreReportedOnFirstCall() {
+        Diagnostics errors = new Diagnostics();
+        List<Stmt> statements = parse("fun broken() {\n print 1 +;\n}\n", Parser.FunctionBodies.LAZY, true, errors);
+        Interpreter interpreter = new Interpreter();
+        new Resolver(interpreter, errors).resolve(statements);
+        interpreter.interpret(statements);
+        assertFalse(errors.hasErrors());
+
+        LoxFunction broken = new LoxFunction("broken", ((Stmt.Function) statements.get(0)).function, interpreter.globals, false);
+        try {
+            broken.call(interpreter, List.of());
+            fail("expected a runtime error");
+        } catch (RuntimeError e) {
+            assertEquals("RuntimeError: Function body has errors.", e.getMessage());
+        }
+        assertEquals("[[line 2] Error at ';': Expect expression.]", errors.all().toString());
+    }
+
+    private String run(String source, Parser.FunctionBodies mode, boolean stream) {
+        Scripts scripts = new Scripts();
+        Diagnostics errors = new Diagnostics();
+        scripts.interpreter.interpret(scripts.resolve(parse(source, mode, stream, errors), errors, false));
+        return scripts.output();
+    }
+
+    /** Lazy bodies keep token ranges of a TokenStream, or the tokens themselves for any other input. */
+    private static List<Stmt> parse(String source, Parser.FunctionBodies mode, boolean stream, Diagnostics errors) {
+        Parser parser = stream
+            ? new Parser(new ByteScanner(source.getBytes(StandardCharsets.UTF_8)).scanTokenStream(), errors)
+            : new Parser(new Scanner(source), errors);
+        parser.setFunctionBodies(mode);
+        return parser.parse();
+    }
+}
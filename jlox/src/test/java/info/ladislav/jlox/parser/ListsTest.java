@@ -0,0 +1,100 @@
+package info.ladislav.jlox.parser;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ListsTest extends TestCase {
+
+    public void testStoresNumbersUnboxedUntilSomethingElseArrives() {
+        LoxList list = new LoxList();
+        for (int i = 0; i < 20; i++) list.push((double) i);
+        assertTrue(list.isNumeric());
+        list.set(3, 7.5);
+        assertTrue(list.isNumeric());
+
+        list.push("a");
+        assertFalse(list.isNumeric());
+        assertEquals(21, list.size());
+        assertEquals(7.5, list.get(3));
+        assertEquals(19.0, list.get(19));
+        assertEquals("a", list.get(20));
+
+        assertTrue(LoxList.of(new Object[] { 1.0, 2.0 }, 2).isNumeric());
+        assertFalse(LoxList.of(new Object[] { 1.0, null }, 2).isNumeric());
+    }
+
+    public void testReadsAndWritesElements() {
+        assertEquals(List.of("3", "[1, two, nil]", "two", "[1, 2, nil]"), Scripts.lines(
+            "var l = list(); push(l, 1); push(l, \"two\"); push(l, nil);\n" +
+            "print len(l); print l; print get(l, 1); set(l, 1, 2); print l;"));
+        assertEquals(List.of("RuntimeError: List index 1 is out of range.\n[line 1]"), Scripts.lines(
+            "var l = list(); push(l, 1); get(l, 1);"));
+        assertEquals(List.of("RuntimeError: List index must be an integer.\n[line 1]"), Scripts.lines(
+            "var l = list(); push(l, 1); get(l, 0.5);"));
+        assertEquals(List.of("RuntimeError: Expected a list or a map.\n[line 1]"), Scripts.lines("len(1);"));
+    }
+
+    public void testMapsAndFiltersLongListsInParallel() {
+        // More than a few chunks, with a pure callback each.
+        assertEquals(List.of("2000", "2000", "500", "1999000", "[0, 2, 4]"), Scripts.lines(
+            "var l = list(); for (var i = 0; i < 2000; i = i + 1) push(l, i);\n" +
+            "var doubled = pmap(l, fun (x) { return x * 2; });\n" +
+            "fun below(x, limit) { return x < limit; }\n" +
+            "print get(doubled, 1000); print len(doubled); print len(pfilter(l, fun (x) { return below(x, 500); }));\n" +
+            "print preduce(l, fun (a, b) { return a + b; }, 0);\n" +
+            "var small = list(); for (var i = 0; i < 3; i = i + 1) push(small, i);\n" +
+            "print pmap(small, fun (x) { return x * 2; });"));
+    }
+
+    public void testRunsImpureCallbacksInOrder() {
+        assertEquals(List.of("0", "1", "2", "[a, b, c]", "abc"), Scripts.lines(
+            "var l = list(); push(l, \"a\"); push(l, \"b\"); push(l, \"c\");\n" +
+            "var i = 0;\n" +
+            "print pmap(l, fun (x) { print i; i = i + 1; return x; });\n" +
+            "print preduce(l, fun (a, b) { return a + b; }, \"\");"));
+    }
+
+    public void testReducesImpureCallbacksInOneFold() {
+        // More than one chunk, but counting calls makes the callback impure.
+        assertEquals(List.of("1010", "1000"), Scripts.lines(
+            "var l = list(); for (var i = 0; i < 1000; i = i + 1) push(l, 1);\n" +
+            "var calls = 0;\n" +
+            "print preduce(l, fun (a, b) { calls = calls + 1; return a + b; }, 10);\n" +
+            "print calls;"));
+    }
+
+    public void testReducesPureCallbacksInOneFold() {
+        // More than one chunk, with a pure callback that is not associative and an initial value that is no identity.
+        assertEquals(List.of("1000", "1010"), Scripts.lines(
+            "var l = list(); for (var i = 0; i < 1000; i = i + 1) push(l, 1);\n" +
+            "print preduce(l, fun (a, x) { return a + x * x; }, 0);\n" +
+            "print preduce(l, fun (a, b) { return a + b; }, 10);"));
+    }
+
+    public void testPushesFromSeveralTasks() {
+        // Both start at once, and the numbers are boxed for good while the other task keeps pushing.
+        assertEquals(List.of("100000", "true"), Scripts.lines(
+            "var l = list(); var go = channel(2);\n" +
+            "fun numbers() { receive(go); for (var i = 0; i < 50000; i = i + 1) push(l, i); }\n" +
+            "fun strings() { receive(go); for (var i = 0; i < 50000; i = i + 1) push(l, \"s\"); }\n" +
+            "var a = spawn(numbers); var b = spawn(strings);\n" +
+            "send(go, true); send(go, true); await(a); await(b);\n" +
+            "print len(l);\n" +
+            "var found = 0; for (var i = 0; i < len(l); i = i + 1) if (get(l, i) != nil) found = found + 1;\n" +
+            "print found == len(l);"));
+    }
+
+    public void testSharesElementsWithTheList() {
+        Scripts scripts = new Scripts();
+        scripts.run(
+            "fun counter() { var n = 0; return fun () { n = n + 1; return n; }; }\n" +
+            "var l = list(); push(l, counter());\n" +
+            "await(spawn(fun () { return get(l, 0)(); }));\n" +
+            "push(l, counter());", true);
+
+        LoxList l = (LoxList) scripts.interpreter.global("l");
+        assertTrue(((LoxFunction) l.get(0)).closure.isShared());
+        assertTrue(((LoxFunction) l.get(1)).closure.isShared());
+    }
+}
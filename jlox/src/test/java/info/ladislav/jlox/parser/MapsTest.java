@@ -0,0 +1,88 @@
+package info.ladislav.jlox.parser;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class MapsTest extends TestCase {
+
+    public void testBehavesLikeAHashMap() {
+        // Few distinct keys, so removals often shift runs of colliding keys back.
+        Random random = new Random(42);
+        LoxMap map = new LoxMap();
+        Map<Object, Object> expected = new HashMap<>();
+        for (int i = 0; i < 100_000; i++) {
+            Object key = random.nextBoolean() ? (Object) (double) random.nextInt(300) : "k" + random.nextInt(300);
+            switch (random.nextInt(3)) {
+                case 0:
+                    map.set(key, (double) i);
+                    expected.put(key, (double) i);
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key) != null, map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key));
+                    assertEquals(expected.containsKey(key), map.has(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        assertEquals(expected.size(), map.keys().size());
+    }
+
+    public void testCountsAndGroups() {
+        assertEquals(List.of("3", "2", "1", "nil", "true", "false", "2", "2", "2", "{1: one}"), Scripts.lines(
+            "var words = list();\n" +
+            "push(words, \"a\"); push(words, \"b\"); push(words, \"a\"); push(words, \"c\"); push(words, \"a\"); push(words, \"b\");\n" +
+            "var counts = map();\n" +
+            "for (var i = 0; i < len(words); i = i + 1) {\n" +
+            "  var w = get(words, i);\n" +
+            "  set(counts, w, has(counts, w) ? get(counts, w) + 1 : 1);\n" +
+            "}\n" +
+            "print get(counts, \"a\"); print get(counts, \"b\"); print get(counts, \"c\"); print get(counts, \"d\");\n" +
+            "print remove(counts, \"c\"); print remove(counts, \"c\"); print len(counts); print size(counts); print len(keys(counts));\n" +
+            "var m = map(); set(m, 1, \"one\"); print m;"));
+    }
+
+    public void testKeysByInstanceIdentity() {
+        assertEquals(List.of("first", "nil", "2"), Scripts.lines(
+            "class Point {}\n" +
+            "var a = Point(); var b = Point();\n" +
+            "var names = map(); set(names, a, \"first\");\n" +
+            "print get(names, a); print get(names, b);\n" +
+            "set(names, true, 1); print len(names);"));
+        assertEquals(List.of("RuntimeError: Map keys must be strings, numbers, booleans or instances.\n[line 1]"), Scripts.lines(
+            "set(map(), nil, 1);"));
+        assertEquals(List.of("RuntimeError: Expected a list or a map.\n[line 1]"), Scripts.lines(
+            "get(1, 1);"));
+        assertEquals(List.of("RuntimeError: Expected a map.\n[line 1]"), Scripts.lines(
+            "size(list());"));
+    }
+
+    public void testSetsFromSeveralTasks() {
+        // Both start at once, and the table grows many times while they add keys.
+        assertEquals(List.of("40000", "true"), Scripts.lines(
+            "var m = map(); var go = channel(2);\n" +
+            "fun whole() { receive(go); for (var i = 0; i < 20000; i = i + 1) set(m, i, i); }\n" +
+            "fun halves() { receive(go); for (var i = 0; i < 20000; i = i + 1) set(m, i + 0.5, i); }\n" +
+            "var a = spawn(whole); var b = spawn(halves);\n" +
+            "send(go, true); send(go, true); await(a); await(b);\n" +
+            "print len(m); print has(m, 19999) and has(m, 19999.5);"));
+    }
+
+    public void testSharesKeysAndValuesWithTheMap() {
+        Scripts scripts = new Scripts();
+        scripts.run(
+            "fun counter() { var n = 0; return fun () { n = n + 1; return n; }; }\n" +
+            "var m = map(); set(m, 0, counter());\n" +
+            "await(spawn(fun () { return get(m, 0)(); }));\n" +
+            "set(m, 1, counter());", true);
+
+        LoxMap m = (LoxMap) scripts.interpreter.global("m");
+        assertTrue(((LoxFunction) m.get(0.0)).closure.isShared());
+        assertTrue(((LoxFunction) m.get(1.0)).closure.isShared());
+    }
+}
@@ -0,0 +1,67 @@
+package info.ladislav.jlox.parser;
+
+import junit.framework.TestCase;
+
+public class MemoFunctionTest extends TestCase {
+
+    public void testRecognizesPureFunctions() {
+        assertTrue(isPure("fun f(n) { var t = 0; while (t < n) t = t + 1; return t; }", "f"));
+        assertTrue(isPure("fun f(s) { return s + \"!\"; } fun g(s) { return f(s) + f(s); }", "g"));
+        assertTrue(isPure("fun even(n) { if (n == 0) return true; return odd(n - 1); }\n"
+            + "fun odd(n) { if (n == 0) return false; return even(n - 1); }", "even"));
+    }
+
+    public void testRecognizesImpureFunctions() {
+        assertFalse(isPure("fun f(n) { print n; return n; }", "f"));
+        assertFalse(isPure("var count = 0; fun f(n) { count = count + 1; return n; }", "f"));
+        assertFalse(isPure("var limit = 0; fun f(n) { return n < limit; } limit = 2;", "f"));
+        assertFalse(isPure("fun f(o) { o.x = 1; return o; }", "f"));
+        assertFalse(isPure("fun f(o) { return o.x; }", "f"));
+        assertFalse(isPure("fun f(g) { return g(); }", "f"));
+        assertFalse(isPure("fun f() { return clock(); }", "f"));
+        assertFalse(isPure("fun log(n) { print n; } fun f(n) { log(n); return n; }", "f"));
+    }
+
+    public void testMemoizesRecursiveCalls() {
+        Scripts scripts = new Scripts();
+        assertEquals("832040\n", scripts.run(
+            "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }\n"
+            + "fib = memo(fib);\n"
+            + "print fib(30);", false));
+
+        MemoFunction fib = (MemoFunction) scripts.interpreter.globals.getAt(0, "fib");
+        assertEquals(31, fib.misses());
+        assertEquals(28, fib.hits());
+    }
+
+    public void testCallsFunctionForOtherArguments() {
+        assertEquals("1\n1\n", new Scripts().run(
+            "class A {} fun f(a) { return 1; } var m = memo(f); var a = A(); print m(a); print m(a);", false));
+    }
+
+    public void testForgetsResultsWhenACalleeIsRebound() {
+        assertEquals("1\n101\n101\n101\n", new Scripts().run(
+            "var count = 0;\n"
+            + "fun g(x) { return x; }\n"
+            + "fun h(x) { count = count + 1; return x + 100; }\n"
+            + "fun f(x) { return g(x); }\n"
+            + "var m = memo(f);\n"
+            + "print m(1);\n"
+            + "g = h;\n"
+            + "print m(1); print f(1); print count + 99;", false));
+    }
+
+    public void testRejectsImpureFunctions() {
+        assertEquals("RuntimeError: Only pure functions can be memoized.\n[line 2]\n",
+            new Scripts().run("fun f(n) { print n; }\nmemo(f);", false));
+        assertEquals("RuntimeError: Only pure functions can be memoized.\n[line 1]\n",
+            new Scripts().run("memo(1);", false));
+    }
+
+    private boolean isPure(String source, String name) {
+        Scripts scripts = new Scripts();
+        scripts.run(source, false);
+        Environment globals = scripts.interpreter.globals;
+        return Purity.isPure((LoxFunction) globals.getAt(0, name), globals);
+    }
+}
@@ -0,0 +1,60 @@
+package info.ladislav.jlox.parser;
+
+import junit.framework.TestCase;
+
+public class NumericFunctionTest extends TestCase {
+
+    public void testRecognizesNumericFunctions() {
+        assertTrue(isNumeric("fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }"));
+        assertTrue(isNumeric("fun sum(n) { var t = 0; for (var i = 0; i < n; i = i + 1) t = t + i; return t; }"));
+        assertTrue(isNumeric("fun sign(x) { return x > 0 ? 1 : (x == 0 or x != x) ? 0 : -1; }"));
+        assertTrue(isNumeric("fun nothing(x) { x = x * 2; }"));
+        // Declared without an initializer, but assigned on every path to a read.
+        assertTrue(isNumeric("fun f(n) { var m; m = n; return m; }"));
+        assertTrue(isNumeric("fun abs(n) { var m; if (n > 0) m = n; else m = -n; return m; }"));
+    }
+
+    public void testLeavesOtherFunctionsAlone() {
+        assertFalse(isNumeric("var g = 1; fun f(n) { return n + g; }"));
+        assertFalse(isNumeric("fun f(n) { print n; return n; }"));
+        assertFalse(isNumeric("fun f(n) { var s = \"s\"; return n; }"));
+        assertFalse(isNumeric("fun f(n) { var m; if (n > 0) m = n; return m; }"));
+        assertFalse(isNumeric("fun f(n) { var m; while (n > 0) { m = n; n = n - 1; } return m; }"));
+        assertFalse(isNumeric("fun f(n) { var m; return n > 0 or (m = n) > 0 ? 1 : m; }"));
+        assertFalse(isNumeric("fun f(n) { var m; m = m + n; return m; }"));
+        assertFalse(isNumeric("fun f(n) { fun g() { return n; } return n; }"));
+        assertFalse(isNumeric("fun f(n) { return clock() + n; }"));
+        // Calls of itself need a number back, and this one can get nil.
+        assertFalse(isNumeric("fun f(n) { if (n > 0) return f(n - 1); }"));
+    }
+
+    public void testRunsLikeBoxedFunctions() {
+        assertEquals("832040\n", new Scripts().run("fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); } print fib(30);", false));
+        assertEquals("nil\n-1\n0\n", new Scripts().run(
+            "fun nothing(x) { x = x * 2; } print nothing(1);\n" +
+            "fun sign(x) { return x > 0 ? 1 : (x == 0 or x != x) ? 0 : -1; } print sign(-3); print sign(0 / 1 - 0);", false));
+        assertEquals("2\n", new Scripts().run("fun abs(n) { var m; if (n > 0) m = n; else m = -n; return m; } print abs(-2);", false));
+        assertEquals("RuntimeError: Division by zero.\n[line 1]\n", new Scripts().run("fun f(x) { return 1 / x; } print f(0);", false));
+    }
+
+    public void testFallsBackToTheOrdinaryPath() {
+        assertEquals("ab\n", new Scripts().run("fun twice(x) { return x + x; } print twice(\"a\") == \"aa\" ? \"ab\" : \"no\";", false));
+        // g is the old f, whose calls of f now reach another function.
+        assertEquals("101\n", new Scripts().run(
+            "fun f(n) { if (n < 1) return 0; return f(n - 1) + 1; }\n" +
+            "var g = f;\n" +
+            "fun f(n) { return 100; }\n" +
+            "print g(3);", false));
+    }
+
+    /** Whether the first function of the compiled source is numeric. */
+    private boolean isNumeric(String source) {
+        for (Stmt statement : new Scripts().compile(source, false)) {
+            if (statement instanceof Stmt.Function) {
+                Stmt.Function function = (Stmt.Function) statement;
+                return NumericFunction.of(function.function, function.name.lexeme) != null;
+            }
+        }
+        throw new AssertionError("No function in " + source);
+    }
+}
@@ -0,0 +1,126 @@
+package info.ladislav.jlox.parser;
+
+import java.util.List;
+
+import info.ladislav.jlox.Diagnostics;
+import info.ladislav.jlox.lexer.Scanner;
+import junit.framework.TestCase;
+
+public class OptimizerTest extends TestCase {
+
+    private final Scripts scripts = new Scripts();
+
+    public void testFoldsOperatorsOverLiterals() {
+        assertEquals("(print 7.0)", optimize("print 1 + 2 * 3;"));
+        assertEquals("(print \"n = 2\")", optimize("print \"n = \" + (4 - 2);"));
+        assertEquals("(print false)", optimize("print !(1 < 2) == true;"));
+        assertEquals("(print \"b\")", optimize("print 0 ? \"a\" : \"b\";"));
+        assertEquals("(print 2.0)", optimize("print nil or 2 and 2;"));
+        assertEquals("(print (+ 1.0 x))", optimize("var x = clock(); print 1 + x;").split("\n")[1]);
+    }
+
+    /** Operations that fail are left to fail when they run, not when the script is compiled. */
+    public void testKeepsRuntimeErrors() {
+        assertEquals("(print (/ 1.0 0.0))", optimize("print 1 / 0;"));
+        assertEquals("(print (- \"a\"))", optimize("print -\"a\";"));
+        assertEquals("(if (< 1.0 \"b\") (print 1.0))", optimize("if (1 < \"b\") print 1;"));
+
+        assertEquals("", scripts.run("if (false) print 1 / 0;", true));
+        assertEquals("before\nRuntimeError: Division by zero.\n[line 1]\n",
+            scripts.run("print \"before\"; print 2 / (1 - 1); print \"after\";", true));
+    }
+
+    public void testPropagatesTopLevelConstants() {
+        String optimized = optimize(
+            "fun before() { return k; }\n" +
+            "var k = 2;\n" +
+            "var m = k * 3;\n" +
+            "var n = 1;\n" +
+            "fun after() { var k = 10; n = n + 1; return k + m + n; }\n");
+
+        assertEquals(
+            "(fun before () (return k))\n" +
+            "(var k 2.0)\n" +
+            "(var m 6.0)\n" +
+            "(var n 1.0)\n" +
+            "(fun after () (var k 10.0) (; (= n (+ n 1.0))) (return (+ (+ k 6.0) n)))",
+            optimized);
+    }
+
+    public void testDoesNotPropagateRedeclaredNames() {
+        assertEquals("(var a 1.0)\n(print a)\n(var a 2.0)", optimize("var a = 1; print a; var a = 2;"));
+        assertEquals("(var f 1.0)\n(fun f () (return nil))\n(print f)", optimize("var f = 1; fun f() { return nil; } print f;"));
+    }
+
+    public void testDropsDeadCode() {
+        assertEquals("(print 1.0)", optimize("if (true) print 1; else print 2;"));
+        assertEquals("(print 2.0)", optimize("if (nil) print 1; else print 2;"));
+        assertEquals("", optimize("if (1 > 2) print 1; while (false) print 3;"));
+        assertEquals("(while (< i 3.0) (block))", optimize("var i = clock(); while (i < 3) if (false) print i;").split("\n")[1]);
+        assertEquals("(fun f () (print 1.0))", optimize("fun f() { while (nil) {} if (2 > 1) print 1; }"));
+    }
+
+    public void testLeavesLazyBodiesAlone() {
+        Diagnostics errors = new Diagnostics();
+        Parser parser = new Parser(new Scanner("var k = 1; fun f() { return k + 1; } print k + 1;"), errors);
+        parser.setFunctionBodies(Parser.FunctionBodies.LAZY);
+        List<Stmt> optimized = scripts.resolve(parser.parse(), errors, true);
+        assertTrue(((Stmt.Function) optimized.get(1)).function.body instanceof LazyBlock);
+        assertEquals("(print (+ k 1.0))", new AstPrinter().print(optimized.get(2)));
+    }
+
+    public void testInlinesSmallFunctions() {
+        String optimized = optimize(
+            "fun square(x) { return x * x; }\n" +
+            "fun add(a, b) { return a + b; }\n" +
+            "print square(3) + add(1, 2);\n" +
+            "fun f(n) { var m = n; return add(m, square(add(1, 2))); }\n");
+
+        assertEquals(
+            "(fun square (x) (return (* x x)))\n" +
+            "(fun add (a b) (return (+ a b)))\n" +
+            "(print 12.0)\n" +
+            "(fun f (n) (var m n) (return (+ m 9.0)))",
+            optimized);
+    }
+
+    public void testDoesNotInlineWhenUnsafe() {
+        // Called before the declaration, reassigned, redeclared.
+        assertEquals("(fun g () (return (call f 1.0)))", optimize("fun g() { return f(1); } fun f(x) { return x; }").split("\n")[0]);
+        assertEquals("(print (call f 1.0))", optimize("fun f(x) { return x; } print f(1); f = clock;").split("\n")[1]);
+        assertEquals("(print (call f 1.0))", optimize("fun f(x) { return x; } print f(1); fun f(x) { return -x; }").split("\n")[1]);
+        // Effects, recursion, arity mismatch.
+        assertEquals("(print (call f 1.0))", optimize("fun f(x) { print x; return x; } print f(1);").split("\n")[1]);
+        assertEquals("(print (call f 1.0))", optimize("fun f(x) { return f(x - 1); } print f(1);").split("\n")[1]);
+        assertEquals("(print (call f 1.0 2.0))", optimize("fun f(x) { return x; } print f(1, 2);").split("\n")[1]);
+        // Arguments that might have effects or fail when read.
+        assertEquals("(print (call f (call clock)))", optimize("fun f(x) { return x; } print f(clock());").split("\n")[1]);
+        assertEquals("(print (call f y))", optimize("fun f(x) { return x; } var y = clock(); print f(y);").split("\n")[2]);
+        assertEquals("(fun g () (var y) (return (call f y)))", optimize("fun f(x) { return x; } fun g() { var y; return f(y); }").split("\n")[1]);
+    }
+
+    public void testRunsLikeUnoptimized() {
+        String script =
+            "var limit = 2 * 5;\n" +
+            "var greeting = \"hi \" + \"there\";\n" +
+            "var count = 0;\n" +
+            "fun inc() { count = count + 1; return count; }\n" +
+            "for (var i = 0; i < limit; i = i + 1) { if (limit > 5 and true) inc(); }\n" +
+            "print count;\n" +
+            "print greeting + \" \" + (limit / 4);\n" +
+            "print false ? 1 : (nil or \"fallback\");\n" +
+            "class A { get() { return limit - 1; } }\n" +
+            "print A().get();\n" +
+            "fun twice(x) { return x + x; }\n" +
+            "fun half(x) { return x == nil ? nil : x / 2; }\n" +
+            "{ var k = 21; print twice(k); print half(nil); print half(twice(k)); }\n";
+
+        String expected = new Scripts().run(script, false);
+        assertEquals("10\nhi there 2.5\nfallback\n9\n42\nnil\n21\n", expected);
+        assertEquals(expected, scripts.run(script, true));
+    }
+
+    private String optimize(String source) {
+        return new AstPrinter().print(scripts.compile(source, true)).stripTrailing();
+    }
+}
@@ -0,0 +1,74 @@
+package info.ladislav.jlox.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import info.ladislav.jlox.Diagnostics;
+import info.ladislav.jlox.lexer.ByteScanner;
+import info.ladislav.jlox.lexer.ScannerBenchmark;
+import info.ladislav.jlox.lexer.TokenStream;
+import junit.framework.TestCase;
+
+/** The parallel parser must give the statements and errors of the sequential one. */
+public class ParallelParserTest extends TestCase {
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @Override
+    protected void tearDown() {
+        pool.shutdown();
+    }
+
+    public void testGeneratedLibrary() {
+        assertSameAsSequential(ScannerBenchmark.generate(256 * 1024), 1000);
+    }
+
+    public void testEveryBoundary() throws IOException {
+        assertSameAsSequential(resource("expressions.lox"), 1);
+    }
+
+    public void testErrors() throws IOException {
+        for (int grain : new int[] { 1, 7, 100 }) {
+            assertSameAsSequential(resource("errors.lox"), grain);
+            assertSameAsSequential(resource("random.lox"), grain);
+            assertSameAsSequential(ScannerBenchmark.generate(16 * 1024) + "print 1 +;\n" + ScannerBenchmark.generate(4 * 1024), grain);
+        }
+    }
+
+    /** A ';' or '}' followed by something that continues the declaration is no boundary. */
+    public void testDeclarationsContinuingAfterBoundaryTokens() {
+        assertSameAsSequential(
+            "if (a) print 1; else print 2;\n" +
+            "if (a) { print 1; } else { print 2; }\n" +
+            "fun (x) { return x; }(1);\n" +
+            "var f = fun () { print 3; };\n" +
+            "while (a) { a = a - 1; }\n" +
+            "fun g() {} print g;\n", 1);
+    }
+
+    private void assertSameAsSequential(String source, int grain) {
+        TokenStream tokens = new ByteScanner(source.getBytes(StandardCharsets.UTF_8)).scanTokenStream();
+
+        Diagnostics expectedErrors = new Diagnostics();
+        List<Stmt> expected = new Parser(tokens.iterator(), expectedErrors).parse();
+
+        Diagnostics actualErrors = new Diagnostics();
+        ParallelParser parser = new ParallelParser(tokens, pool, grain, actualErrors);
+        List<Stmt> actual = parser.parse();
+
+        assertEquals(new AstPrinter().print(expected), new AstPrinter().print(actual));
+        assertEquals(expectedErrors.all().toString(), actualErrors.all().toString());
+        if (!expectedErrors.hasErrors()) {
+            assertEquals("parsed sequentially from", -1, parser.sequentialFrom);
+        }
+    }
+
+    private static String resource(String name) throws IOException {
+        try (InputStream in = ParallelParserTest.class.getResourceAsStream("/parser/" + name)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
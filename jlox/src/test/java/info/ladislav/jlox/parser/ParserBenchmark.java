@@ -0,0 +1,34 @@
+package info.ladislav.jlox.parser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import info.ladislav.jlox.lexer.ByteScanner;
+import info.ladislav.jlox.lexer.ScannerBenchmark;
+import info.ladislav.jlox.lexer.Token;
+
+/**
+ * Parser throughput in MB of source per second, scanning excluded.
+ *
+ * Not a unit test, run it after {@code mvn test-compile} with
+ * {@code java -cp target/classes:target/test-classes info.ladislav.jlox.parser.ParserBenchmark [megabytes]}
+ */
+public class ParserBenchmark {
+
+    public static void main(String[] args) {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        byte[] bytes = ScannerBenchmark.generate(megabytes * 1024 * 1024).getBytes(StandardCharsets.UTF_8);
+        List<Token> tokens = new ByteScanner(bytes).scanTokens();
+
+        System.out.println("Parsing " + bytes.length / (1024 * 1024) + " MB, " + tokens.size() + " tokens");
+
+        for (int round = 0; round < 10; round++) {
+            long start = System.nanoTime();
+            List<Stmt> statements = new Parser(tokens).parse();
+            long nanos = System.nanoTime() - start;
+
+            System.out.printf("round %d: %8.1f MB/s   (%d statements)%n",
+                    round, bytes.length / (1024.0 * 1024.0) / (nanos / 1e9), statements.size());
+        }
+    }
+}
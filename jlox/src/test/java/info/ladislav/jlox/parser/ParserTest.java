@@ -0,0 +1,72 @@
+package info.ladislav.jlox.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import info.ladislav.jlox.Diagnostics;
+import info.ladislav.jlox.lexer.Scanner;
+import junit.framework.TestCase;
+
+/**
+ * Parses the corpora in src/test/resources/parser and compares the printed
+ * trees and the reported errors with the recorded .ast files.
+ */
+public class ParserTest extends TestCase {
+
+    public void testExpressions() throws IOException {
+        assertCorpus("expressions");
+    }
+
+    public void testErrors() throws IOException {
+        assertCorpus("errors");
+    }
+
+    public void testRandom() throws IOException {
+        assertCorpus("random");
+    }
+
+    private static void assertCorpus(String name) throws IOException {
+        String expected = resource(name + ".ast");
+        String actual = render(resource(name + ".lox"));
+
+        String[] expectedLines = expected.split("\n", -1);
+        String[] actualLines = actual.split("\n", -1);
+        for (int i = 0; i < Math.min(expectedLines.length, actualLines.length); i++) {
+            assertEquals(name + ".ast line " + (i + 1), expectedLines[i], actualLines[i]);
+        }
+        assertEquals(name + ".ast line count", expectedLines.length, actualLines.length);
+    }
+
+    /** Printed statements, one per line, followed by the reported errors. */
+    static String render(String source) {
+        Diagnostics diagnostics = new Diagnostics();
+        List<Stmt> statements = new Parser(new Scanner(source), diagnostics).parse();
+
+        StringBuilder out = new StringBuilder();
+        if (statements != null) {
+            out.append(new AstPrinter().print(statements));
+        }
+        for (Diagnostics.Diagnostic diagnostic : diagnostics.all()) {
+            out.append(diagnostic).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static String resource(String name) throws IOException {
+        try (InputStream in = ParserTest.class.getResourceAsStream("/parser/" + name)) {
+            assertNotNull("missing resource " + name, in);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /** Re-records the .ast files: {@code java -cp target/classes:target/test-classes info.ladislav.jlox.parser.ParserTest src/test/resources/parser} */
+    public static void main(String[] args) throws IOException {
+        java.nio.file.Path directory = java.nio.file.Paths.get(args[0]);
+        for (String name : new String[] { "expressions", "errors", "random" }) {
+            String source = new String(java.nio.file.Files.readAllBytes(directory.resolve(name + ".lox")), StandardCharsets.UTF_8);
+            java.nio.file.Files.write(directory.resolve(name + ".ast"), render(source).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
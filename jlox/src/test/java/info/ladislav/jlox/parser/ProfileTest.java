@@ -0,0 +1,117 @@
+package info.ladislav.jlox.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import info.ladislav.jlox.Diagnostics;
+import info.ladislav.jlox.lexer.ByteScanner;
+import junit.framework.TestCase;
+
+public class ProfileTest extends TestCase {
+
+    private static final Charset UTF_8 = StandardCharsets.UTF_8;
+
+    private static final String SCRIPT =
+        "fun square(x) { return x * x; }\n" +
+        "fun greet(name) { return \"hi \" + name; }\n" +
+        "var total = 0;\n" +
+        "var i = 0;\n" +
+        "while (i < 150) { total = total + square(i); i = i + 1; }\n" +
+        "print total;\n" +
+        "var who = \"me\";\n" +
+        "who = \"you\";\n" +
+        "print greet(who);\n";
+
+    private PrintStream originalOut;
+    private ByteArrayOutputStream out;
+    private Path directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        originalOut = System.out;
+        out = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(out, true, UTF_8));
+        directory = Files.createTempDirectory("jlox-profile");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        System.setOut(originalOut);
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    /** A second run starts from the counts of the first one and compiles ahead what was hot. */
+    public void testAppliesEarlierRuns() {
+        byte[] source = SCRIPT.getBytes(UTF_8);
+
+        List<Stmt> first = run(source);
+        assertEquals(150, function(first, 0).profile);
+        assertEquals(150, ((Stmt.While) first.get(4)).profile);
+        assertEquals("1113775\nhi you\n", out.toString());
+
+        Interpreter interpreter = new Interpreter();
+        List<Stmt> second = compile(source, interpreter);
+        assertNull(function(second, 0).numeric);
+        new Profile(directory).load(source, UTF_8, second, interpreter);
+
+        assertEquals(150, function(second, 0).profile);
+        assertEquals(1, function(second, 1).profile);
+        assertEquals(150, ((Stmt.While) second.get(4)).profile);
+        // square was hot and only got numbers, greet got a string.
+        assertNotNull(NumericFunction.of(function(second, 0), "square"));
+        assertNull(NumericFunction.of(function(second, 1), "greet"));
+
+        interpreter.interpret(second);
+        new Profile(directory).store(source, UTF_8, second);
+        assertEquals(450, function(run(source), 0).profile);
+    }
+
+    public void testIgnoresProfilesOfOtherPrograms() throws IOException {
+        byte[] source = SCRIPT.getBytes(UTF_8);
+        run(source);
+
+        Profile profile = new Profile(directory);
+        byte[] edited = (SCRIPT + "fun extra() { return square(total); }\n").getBytes(UTF_8);
+        Files.copy(profile.entry(source, UTF_8), profile.entry(edited, UTF_8));
+
+        Interpreter interpreter = new Interpreter();
+        List<Stmt> statements = compile(edited, interpreter);
+        profile.load(edited, UTF_8, statements, interpreter);
+        assertEquals(0, function(statements, 0).profile);
+        assertNull(function(statements, 0).numeric);
+    }
+
+    /** Runs the source with a profile, the way --profile does. */
+    private List<Stmt> run(byte[] source) {
+        Interpreter interpreter = new Interpreter();
+        List<Stmt> statements = compile(source, interpreter);
+        Profile profile = new Profile(directory);
+        profile.load(source, UTF_8, statements, interpreter);
+        interpreter.interpret(statements);
+        profile.store(source, UTF_8, statements);
+        return statements;
+    }
+
+    private static Expr.Function function(List<Stmt> statements, int index) {
+        return ((Stmt.Function) statements.get(index)).function;
+    }
+
+    private static List<Stmt> compile(byte[] source, Interpreter interpreter) {
+        Diagnostics errors = new Diagnostics();
+        List<Stmt> statements = new Parser(new ByteScanner(source, UTF_8, errors), errors).parse();
+        Resolver resolver = new Resolver(interpreter, errors);
+        resolver.resolve(statements);
+        assertFalse(errors.all().toString(), errors.hasErrors());
+        return new Optimizer(interpreter, resolver).optimize(statements);
+    }
+}
@@ -0,0 +1,69 @@
+package info.ladislav.jlox.parser;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import info.ladislav.jlox.Diagnostics;
+import info.ladislav.jlox.lexer.Scanner;
+import junit.framework.Assert;
+
+/**
+ * Compiles and runs sources for the tests on an interpreter of its own, which
+ * collects what it prints instead of writing to stdout, and its runtime errors
+ * the way {@link info.ladislav.jlox.JLox} prints them.
+ */
+final class Scripts {
+
+    private final List<String> lines = new ArrayList<>();
+    final Interpreter interpreter = new Interpreter(this::print,
+        e -> print(e.token == null ? e.getMessage() : e.getMessage() + "\n[line " + e.token.line + "]"));
+
+    /** The lines a new interpreter prints running an optimized source, a runtime error as one of them. */
+    static List<String> lines(String source) {
+        Scripts scripts = new Scripts();
+        scripts.interpreter.interpret(scripts.compile(source, true));
+        synchronized (scripts.lines) {
+            return new ArrayList<>(scripts.lines);
+        }
+    }
+
+    /** Runs a source, optimized if asked, and returns what it printed. */
+    String run(String source, boolean optimized) {
+        interpreter.interpret(compile(source, optimized));
+        return output();
+    }
+
+    /** Parses and resolves a source, optimized if asked, failing the test on any error. */
+    List<Stmt> compile(String source, boolean optimized) {
+        Diagnostics errors = new Diagnostics();
+        List<Stmt> statements = new Parser(new Scanner(new StringReader(source), errors), errors).parse();
+        return resolve(statements, errors, optimized);
+    }
+
+    /** Resolves parsed statements, optimized if asked, failing the test on errors in parsing or resolving them. */
+    List<Stmt> resolve(List<Stmt> statements, Diagnostics errors, boolean optimized) {
+        Resolver resolver = new Resolver(interpreter, errors);
+        resolver.resolve(statements);
+        Assert.assertFalse(errors.all().toString(), errors.hasErrors());
+        return optimized ? new Optimizer(interpreter, resolver).optimize(statements) : statements;
+    }
+
+    /** What was printed since the last call, a line break after each line. */
+    String output() {
+        synchronized (lines) {
+            StringBuilder output = new StringBuilder();
+            for (String line : lines) {
+                output.append(line).append('\n');
+            }
+            lines.clear();
+            return output.toString();
+        }
+    }
+
+    private void print(String line) {
+        synchronized (lines) {
+            lines.add(line);
+        }
+    }
+}
@@ -1,78 +1,305 @@
 package tool;
 
-import java.io.IOException;                                        
-import java.io.PrintWriter;                                        
-import java.util.Arrays;                                           
-import java.util.List;                                             
-
-class GenerateAst {                                         
-  public static void main(String[] args) throws IOException {      
-    if (args.length != 1) {                                        
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes Expr.java and Stmt.java, and Dispatch.java with the switch the
+ * interpreter uses instead of accept, into the parser package:
+ * {@code java tool/GenerateAst.java src/main/java/info/ladislav/jlox/parser}
+ */
+class GenerateAst {
+
+  private static final List<String> EXPRS = Arrays.asList(
+    "Assign   : Token name, Expr value",
+    "Binary   : Expr left, Token operator, Expr right",
+    "Call     : Expr callee, Token paren, List<Expr> arguments",
+    "Get      : Expr object, Token name",
+    "Ternary  : Expr condition, Expr if_true, Expr if_false",
+    "Grouping : Expr expression",
+    "Literal  : Object value",
+    "Logical  : Expr left, Token operator, Expr right",
+    "Set      : Expr object, Token name, Expr value",
+    "Super    : Token keyword, Token method",
+    "This     : Token keyword",
+    "Function : List<Token> parameters, List<Stmt> body",
+    "Unary    : Token operator, Expr right",
+    "Variable : Token name"
+  );
+
+  private static final List<String> STMTS = Arrays.asList(
+    "Block      : List<Stmt> statements",
+    "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+    "Expression : Expr expression",
+    "Function   : Token name, Expr.Function function",
+    "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
+    "Print      : Expr expression",
+    "Return     : Token keyword, Expr value",
+    "Var        : Token name, Expr initializer",
+    "While      : Expr condition, Stmt body"
+  );
+
+  /**
+   * Nodes the optimizer derives from the ones above, written by hand: name,
+   * class and the node it extends. Each gets a kind, a visit method that
+   * defaults to the one of the node it extends, so other passes see that
+   * node, and an entry in Dispatch.
+   */
+  private static final List<String> DERIVED_EXPRS = Arrays.asList(
+    "Increment     : Fused.Increment < Assign",
+    "PropertyChain : Fused.PropertyChain < Get"
+  );
+
+  private static final List<String> DERIVED_STMTS = Arrays.asList(
+    "CompareBranch : Fused.CompareBranch < If",
+    "ReturnBinary  : Fused.ReturnBinary < Return",
+    "CountedLoop   : CountedLoop < While"
+  );
+
+  /** Mutable fields of single node types, which passes fill in after parsing. */
+  private static final Map<String, String> TYPE_SLOTS = Collections.singletonMap(
+    "Expr.Function",
+    "    /** Set on the first call, see {@link NumericFunction#of(Function, String)}. */\n" +
+    "    volatile NumericFunction numeric;\n"
+  );
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
       System.err.println("Usage: generate_ast <output directory>");
-      System.exit(1);                                              
-    }                                                              
-    String outputDir = args[0];        
-    
-    defineAst(outputDir, "Expr", Arrays.asList(          
-      "Binary   : Expr left, Token operator, Expr right",
-      "Ternary  : Expr condition, Expr if_true, Expr if_false",
-      "Grouping : Expr expression",                      
-      "Literal  : Object value",                         
-      "Unary    : Token operator, Expr right"            
-    ));             
-  }                   
-  
-  private static void defineAst(                            
-        String outputDir, String baseName, List<String> types)
-        throws IOException {                                  
-      String path = outputDir + "/" + baseName + ".java";     
-      PrintWriter writer = new PrintWriter(path, "UTF-8");
-  
-      writer.println("package info.ladislav.jlox.parser;");
-      writer.println();                                       
-      writer.println("import java.util.List;");               
-      writer.println();      
-      writer.println("import info.ladislav.jlox.lexer.Token;");            
-      writer.println(); 
-      writer.println();                          
-      writer.println("public abstract class " + baseName + " {");    
-
-  
-      // the ast classes
-      for (String type : types) {                             
-        String className = type.split(":")[0].trim();         
-        String fields = type.split(":")[1].trim(); 
-        defineType(writer, baseName, className, fields);      
-      }                              
-
-      writer.println("}");                                    
-      writer.close();                                         
-    }                     
-    
-    private static void defineType(                                
-      PrintWriter writer, String baseName,                       
-      String className, String fieldList) {                      
-    writer.println("  static class " + className + " extends " + 
+      System.exit(1);
+    }
+    String outputDir = args[0];
+
+    defineAst(outputDir, "Expr", EXPRS, DERIVED_EXPRS,
+      "  /** Depth of the scope a local is declared in, set by the resolver; UNRESOLVED for globals. */\n" +
+      "  int depth = UNRESOLVED;\n" +
+      "\n" +
+      "  static final int UNRESOLVED = -1;\n");
+    defineAst(outputDir, "Stmt", STMTS, DERIVED_STMTS, null);
+    defineDispatch(outputDir);
+  }
+
+  private static void defineAst(
+      String outputDir, String baseName, List<String> types, List<String> derived, String slots)
+      throws IOException {
+    String path = outputDir + "/" + baseName + ".java";
+    PrintWriter writer = new PrintWriter(path, "UTF-8");
+
+    writer.println("package info.ladislav.jlox.parser;");
+    writer.println();
+    writer.println("import java.util.List;");
+    writer.println();
+    writer.println("import info.ladislav.jlox.lexer.Token;");
+    writer.println();
+    writer.println("// Generated by tool/GenerateAst.java, edit the generator instead.");
+    writer.println();
+    writer.println("public abstract class " + baseName + " {");
+
+    defineVisitor(writer, baseName, types, derived);
+
+    // The kinds, dense so that a switch over them compiles to a jump table.
+    for (int kind = 0; kind < types.size(); kind++) {
+      writer.println("  static final int " + constant(className(types.get(kind))) + " = " + kind + ";");
+    }
+    for (int kind = 0; kind < derived.size(); kind++) {
+      writer.println("  static final int " + constant(className(derived.get(kind))) + " = " +
+          (types.size() + kind) + ";");
+    }
+    writer.println();
+
+    writer.println("  /** Which of the classes below this node is, for a switch instead of accept. */");
+    writer.println("  final int kind;");
+    writer.println();
+    writer.println("  /** Free for a profiler to count executions in. */");
+    writer.println("  int profile;");
+    writer.println();
+    if (slots != null) {
+      writer.print(slots);
+      writer.println();
+    }
+    writer.println("  private " + baseName + "(int kind) {");
+    writer.println("    this.kind = kind;");
+    writer.println("  }");
+
+    // the ast classes
+    for (String type : types) {
+      String fields = type.split(":")[1].trim();
+      defineType(writer, baseName, className(type), fields, isExtended(className(type), derived));
+    }
+
+    writer.println();
+    writer.println("  abstract <R> R accept(Visitor<R> visitor);");
+    writer.println("}");
+    writer.close();
+  }
+
+  private static void defineVisitor(
+      PrintWriter writer, String baseName, List<String> types, List<String> derived) {
+    writer.println("  interface Visitor<R> {");
+
+    for (String type : types) {
+      String typeName = className(type);
+      writer.println("    R visit" + typeName + baseName + "(" +
+          typeName + " " + baseName.toLowerCase() + ");");
+    }
+
+    for (String type : derived) {
+      String typeName = className(type);
+      String parameter = baseName.toLowerCase();
+      writer.println();
+      writer.println("    /** Defaults to the node it extends, see {@link " + derivedClass(type) + "}. */");
+      writer.println("    default R visit" + typeName + baseName + "(" +
+          derivedClass(type) + " " + parameter + ") {");
+      writer.println("      return visit" + derivedBase(type) + baseName + "(" + parameter + ");");
+      writer.println("    }");
+    }
+
+    writer.println("  }");
+    writer.println();
+  }
+
+  private static void defineType(
+      PrintWriter writer, String baseName,
+      String className, String fieldList, boolean extended) {
+    // Not final: the optimizer's derived nodes extend some of these.
+    writer.println("  static class " + className + " extends " +
         baseName + " {");
 
-    // Constructor.                                              
+    // Constructor.
     writer.println("    " + className + "(" + fieldList + ") {");
+    if (extended) {
+      writer.println("      this(" + constant(className) + ", " + argumentList(fieldList) + ");");
+      writer.println("    }");
+      writer.println();
+      writer.println("    /** For the derived nodes, with a kind of their own. */");
+      writer.println("    " + className + "(int kind, " + fieldList + ") {");
+      writer.println("      super(kind);");
+    } else {
+      writer.println("      super(" + constant(className) + ");");
+    }
+
+    // Store parameters in fields.
+    String[] fields = fieldList.split(", ");
+    for (String field : fields) {
+      String name = field.split(" ")[1];
+      writer.println("      this." + name + " = " + name + ";");
+    }
+
+    writer.println("    }");
+
+    // Visitor pattern.
+    writer.println();
+    writer.println("    @Override");
+    writer.println("    <R> R accept(Visitor<R> visitor) {");
+    writer.println("      return visitor.visit" +
+        className + baseName + "(this);");
+    writer.println("    }");
+
+    // Fields.
+    writer.println();
+    for (String field : fields) {
+      writer.println("    final " + field + ";");
+    }
+
+    String slots = TYPE_SLOTS.get(baseName + "." + className);
+    if (slots != null) {
+      writer.println();
+      writer.print(slots);
+    }
+
+    writer.println("  }");
+  }
+
+  private static void defineDispatch(String outputDir) throws IOException {
+    PrintWriter writer = new PrintWriter(outputDir + "/Dispatch.java", "UTF-8");
+
+    writer.println("package info.ladislav.jlox.parser;");
+    writer.println();
+    writer.println("// Generated by tool/GenerateAst.java, edit the generator instead.");
+    writer.println();
+    writer.println("/**");
+    writer.println(" * Runs nodes in the interpreter with a switch on their kind. Unlike accept,");
+    writer.println(" * whose call sites see every node class, the switch calls the interpreter");
+    writer.println(" * directly and stays monomorphic.");
+    writer.println(" */");
+    writer.println("final class Dispatch {");
+    writer.println();
+    writer.println("  private Dispatch() {");
+    writer.println("  }");
+    writer.println();
+    writer.println("  static Object evaluate(Interpreter interpreter, Expr expr) {");
+    writer.println("    switch (expr.kind) {");
+    for (String type : EXPRS) {
+      String className = className(type);
+      writer.println("      case Expr." + constant(className) + ":");
+      writer.println("        return interpreter.visit" + className + "Expr((Expr." + className + ") expr);");
+    }
+    for (String type : DERIVED_EXPRS) {
+      writer.println("      case Expr." + constant(className(type)) + ":");
+      writer.println("        return interpreter.visit" + className(type) + "Expr((" + derivedClass(type) + ") expr);");
+    }
+    writer.println("      default:");
+    writer.println("        return expr.accept(interpreter);");
+    writer.println("    }");
+    writer.println("  }");
+    writer.println();
+    writer.println("  static void execute(Interpreter interpreter, Stmt stmt) {");
+    writer.println("    switch (stmt.kind) {");
+    for (String type : STMTS) {
+      String className = className(type);
+      writer.println("      case Stmt." + constant(className) + ":");
+      writer.println("        interpreter.visit" + className + "Stmt((Stmt." + className + ") stmt);");
+      writer.println("        return;");
+    }
+    for (String type : DERIVED_STMTS) {
+      writer.println("      case Stmt." + constant(className(type)) + ":");
+      writer.println("        interpreter.visit" + className(type) + "Stmt((" + derivedClass(type) + ") stmt);");
+      writer.println("        return;");
+    }
+    writer.println("      default:");
+    writer.println("        stmt.accept(interpreter);");
+    writer.println("    }");
+    writer.println("  }");
+    writer.println("}");
+    writer.close();
+  }
+
+  private static String className(String type) {
+    return type.split(":")[0].trim();
+  }
+
+  /** The class of a derived node, e.g. Fused.Increment. */
+  private static String derivedClass(String type) {
+    return type.split(":")[1].split("<")[0].trim();
+  }
 
-    // Store parameters in fields.                               
-    String[] fields = fieldList.split(", ");                     
-    for (String field : fields) {                                
-      String name = field.split(" ")[1];                         
-      writer.println("      this." + name + " = " + name + ";"); 
-    }                                                            
+  /** The node a derived node extends, e.g. Assign. */
+  private static String derivedBase(String type) {
+    return type.split("<")[1].trim();
+  }
 
-    writer.println("    }");                                     
+  private static boolean isExtended(String className, List<String> derived) {
+    for (String type : derived) {
+      if (derivedBase(type).equals(className)) return true;
+    }
+    return false;
+  }
 
-    // Fields.                                                   
-    writer.println();                                            
-    for (String field : fields) {                                
-      writer.println("    final " + field + ";");                
-    }                                                            
+  private static String argumentList(String fieldList) {
+    StringBuilder arguments = new StringBuilder();
+    for (String field : fieldList.split(", ")) {
+      if (arguments.length() > 0) arguments.append(", ");
+      arguments.append(field.split(" ")[1]);
+    }
+    return arguments.toString();
+  }
 
-    writer.println("  }");                                       
-  }                                
-}                                              
\ No newline at end of file
+  /** PropertyChain becomes PROPERTY_CHAIN. */
+  private static String constant(String className) {
+    return className.replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase();
+  }
+}